@@ -101,6 +101,7 @@ import com.android.camera.data.LocalDataAdapter;
 import com.android.camera.data.LocalMediaObserver;
 import com.android.camera.data.MediaDetails;
 import com.android.camera.data.SimpleViewData;
+import com.android.camera.data.ThumbnailCache;
 import com.android.camera.exif.ExifInterface;
 import com.android.camera.tinyplanet.TinyPlanetFragment;
 import com.android.camera.ui.ModuleSwitcher;
@@ -111,6 +112,7 @@ import com.android.camera.ui.PanoCaptureProcessView;
 import com.android.camera.ui.RotateTextToast;
 import com.android.camera.util.ApiHelper;
 import com.android.camera.util.CameraUtil;
+import com.android.camera.util.DecodeExecutor;
 import com.android.camera.util.GcamHelper;
 import com.android.camera.util.IntentHelper;
 import com.android.camera.util.PersistUtil;
@@ -441,6 +443,10 @@ public class CameraActivity extends Activity
                         updateStorageSpaceAndHint();
                     }
                     if (!isCameraID) {
+                        LocalData localData = mDataAdapter.getLocalData(dataID);
+                        if (localData != null) {
+                            localData.onFullScreen(full);
+                        }
                         if (!full) {
                             // Always show action bar in filmstrip mode
                             CameraActivity.this.setSystemBarsVisibility(true, false);
@@ -550,6 +556,11 @@ public class CameraActivity extends Activity
                                     }
                                 } else {
                                     updateActionBarMenu(dataID);
+                                    if (mFilmStripView.inFullScreen()) {
+                                        // Centered in full screen, replace the
+                                        // preview with the full decode.
+                                        currentData.onFullScreen(true);
+                                    }
                                 }
 
                                 Uri contentUri = currentData.getContentUri();
@@ -763,7 +774,18 @@ public class CameraActivity extends Activity
     public void updateThumbnail(final byte[] jpegData) {
         if (mUpdateThumbnailTask != null) mUpdateThumbnailTask.cancel(true);
         mUpdateThumbnailTask = new UpdateThumbnailTask(jpegData, true);
-        mUpdateThumbnailTask.execute();
+        mUpdateThumbnailTask.executeOnExecutor(DecodeExecutor.getInstance());
+    }
+
+    /**
+     * Same as {@link #updateThumbnail(byte[])} for JPEG data that carries no EXIF,
+     * with the orientation supplied by the caller.
+     */
+    public void updateThumbnail(final byte[] jpegData, int orientation) {
+        if (mUpdateThumbnailTask != null) mUpdateThumbnailTask.cancel(true);
+        mUpdateThumbnailTask = new UpdateThumbnailTask(jpegData, true);
+        mUpdateThumbnailTask.mOrientation = orientation;
+        mUpdateThumbnailTask.executeOnExecutor(DecodeExecutor.getInstance());
     }
 
     public void updateThumbnail(final Bitmap bitmap) {
@@ -894,16 +916,16 @@ public class CameraActivity extends Activity
                 if (mOrientation != -1) {
                     orientation = mOrientation;
                 } else {
-                    ExifInterface exif = new ExifInterface();
-                    try {
-                        if (mJpegData != null) {
-                            exif.readExif(mJpegData);
-                        } else {
+                    if (mJpegData != null) {
+                        orientation = Exif.getOrientation(mJpegData);
+                    } else {
+                        ExifInterface exif = new ExifInterface();
+                        try {
                             exif.readExif(path);
+                            orientation = Exif.getOrientation(exif);
+                        } catch (IOException e) {
+                            // ignore
                         }
-                        orientation = Exif.getOrientation(exif);
-                    } catch (IOException e) {
-                        // ignore
                     }
                 }
             }
@@ -932,6 +954,7 @@ public class CameraActivity extends Activity
 
             opt.inJustDecodeBounds = false;
             opt.inSampleSize = sample;
+            opt.inTempStorage = DecodeExecutor.getTempStorage();
             final BitmapRegionDecoder decoder;
             try {
                 if (mJpegData == null) {
@@ -1942,6 +1965,13 @@ public class CameraActivity extends Activity
         unbindAIDenoiserService();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        ThumbnailCache.getInstance(this).trimMemory(level);
+        DecodeExecutor.getInstance().logStats();
+    }
+
     @Override
     public void onDestroy() {
         if (mWakeLock != null && mWakeLock.isHeld()) {
@@ -131,6 +131,7 @@ import com.android.camera.ui.TouchTrackFocusRenderer;
 import com.android.camera.ui.StateNNTrackFocusRenderer;
 import com.android.camera.util.ApiHelper;
 import com.android.camera.util.CameraUtil;
+import com.android.camera.util.FrameSynchronizer;
 import com.android.camera.util.PersistUtil;
 import com.android.camera.util.SettingTranslation;
 import com.android.camera.util.AccessibilityUtils;
@@ -824,6 +825,7 @@ public class CaptureModule implements CameraModule, PhotoController,
     private NamedImages mNamedImages;
     private ContentResolver mContentResolver;
     private byte[] mLastJpegData;
+    private int mLastJpegOrientation = -1;
     private int mJpegFileSizeEstimation;
     private boolean mFirstPreviewLoaded;
     private int[] mPrecaptureRequestHashCode = new int[MAX_NUM_CAM];
@@ -966,7 +968,9 @@ public class CaptureModule implements CameraModule, PhotoController,
                     if (uri != null)
                         mActivity.notifyNewMedia(uri);
                     mActivity.updateStorageSpaceAndHint();
-                    if (mLastJpegData != null) mActivity.updateThumbnail(mLastJpegData);
+                    if (mLastJpegData != null) {
+                        mActivity.updateThumbnail(mLastJpegData, mLastJpegOrientation);
+                    }
                 }
             });
             mediaSaveNotifyThread = null;
@@ -974,7 +978,16 @@ public class CaptureModule implements CameraModule, PhotoController,
     }
 
     public void updateThumbnailJpegData(byte[] jpegData) {
+        updateThumbnailJpegData(jpegData, -1);
+    }
+
+    /**
+     * @param orientation orientation of jpegData in degrees, or -1 to read it
+     *                    from the EXIF embedded in jpegData.
+     */
+    public void updateThumbnailJpegData(byte[] jpegData, int orientation) {
         mLastJpegData = jpegData;
+        mLastJpegOrientation = orientation;
     }
 
     private MediaSaveNotifyThread mediaSaveNotifyThread;
@@ -4301,7 +4314,7 @@ public class CaptureModule implements CameraModule, PhotoController,
                                                     mOnMediaSavedListener, mContentResolver,pictureFormat);
 
                                             if (mLongshotActive) {
-                                                mLastJpegData = bytes;
+                                                updateThumbnailJpegData(bytes);
                                             } else {
                                                 if (imageFormat != ImageFormat.HEIC){
                                                     mActivity.updateThumbnail(bytes);
@@ -6064,8 +6077,7 @@ public class CaptureModule implements CameraModule, PhotoController,
                     CameraUtil.closeSilently(outputStream);
                 }
             } else {
-                ExifInterface exif = Exif.getExif(data);
-                int orientation = Exif.getOrientation(exif);
+                int orientation = Exif.getOrientation(data);
                 Bitmap bitmap = CameraUtil.makeBitmap(data, 50 * 1024);
                 bitmap = CameraUtil.rotate(bitmap, orientation);
                 mActivity.setResultEx(Activity.RESULT_OK,
@@ -11358,9 +11370,22 @@ public class CaptureModule implements CameraModule, PhotoController,
     private class MpoSaveHandler extends Handler {
         static final int MSG_CONFIGURE = 0;
         static final int MSG_NEW_IMG = 1;
-
-        private Image monoImage;
-        private Image bayerImage;
+        static final int STREAM_BAYER = 0;
+        static final int STREAM_MONO = 1;
+
+        // Pairs the bayer and mono JPEGs of one shot by sensor timestamp. The
+        // two are taken by separate capture() calls, so they are further apart
+        // than the frames of a ClearSight burst.
+        private final FrameSynchronizer<Image> mFrameSync = new FrameSynchronizer<Image>(
+                2, MAX_IMAGEREADERS + 2, PersistUtil.getMpoTimestampLimit() * 1000000,
+                new FrameSynchronizer.Releaser<Image>() {
+                    @Override
+                    public void release(Image image) {
+                        Log.d(TAG, "MpoSaveHandler: no pair for ts: " + image.getTimestamp());
+                        image.close();
+                    }
+                });
+        private final Image[] mPair = new Image[2];
         private Long captureStartTime;
 
         public MpoSaveHandler(Looper looper) {
@@ -11372,6 +11397,8 @@ public class CaptureModule implements CameraModule, PhotoController,
             switch (msg.what) {
             case MSG_CONFIGURE:
                 captureStartTime = (Long) msg.obj;
+                // Images of an earlier shot that never got a pair.
+                mFrameSync.clear();
                 break;
             case MSG_NEW_IMG:
                 processNewImage(msg);
@@ -11381,18 +11408,16 @@ public class CaptureModule implements CameraModule, PhotoController,
 
         private void processNewImage(Message msg) {
             Log.d(TAG, "MpoSaveHandler:processNewImage for cam id: " + msg.arg1);
-            if(msg.arg1 == MONO_ID) {
-                monoImage = (Image)msg.obj;
-            } else if(bayerImage == null){
-                bayerImage = (Image)msg.obj;
-            }
+            Image image = (Image)msg.obj;
+            mFrameSync.add(msg.arg1 == MONO_ID ? STREAM_MONO : STREAM_BAYER,
+                    image.getTimestamp(), image);
 
-            if(monoImage != null && bayerImage != null) {
-                saveMpoImage();
+            while(mFrameSync.poll(mPair)) {
+                saveMpoImage(mPair[STREAM_BAYER], mPair[STREAM_MONO]);
             }
         }
 
-        private void saveMpoImage() {
+        private void saveMpoImage(Image bayerImage, Image monoImage) {
             mNamedImages.nameNewImage(captureStartTime);
             NamedEntity namedEntity = mNamedImages.getNextNameEntity();
             String title = (namedEntity == null) ? null : namedEntity.title;
@@ -11402,8 +11427,7 @@ public class CaptureModule implements CameraModule, PhotoController,
             byte[] bayerBytes = getJpegData(bayerImage);
             byte[] monoBytes = getJpegData(monoImage);
 
-            ExifInterface exif = Exif.getExif(bayerBytes);
-            int orientation = Exif.getOrientation(exif);
+            int orientation = Exif.getOrientation(bayerBytes);
 
             mActivity.getMediaSaveService().addMpoImage(
                     null, bayerBytes, monoBytes, width, height, title,
@@ -11412,10 +11436,7 @@ public class CaptureModule implements CameraModule, PhotoController,
             mActivity.updateThumbnail(bayerBytes);
 
             bayerImage.close();
-            bayerImage = null;
             monoImage.close();
-            monoImage = null;
-            namedEntity = null;
         }
     }
 
@@ -11429,7 +11450,8 @@ public class CaptureModule implements CameraModule, PhotoController,
     @Override
     public void onClearSightSuccess(byte[] thumbnailBytes) {
         Log.d(TAG, "onClearSightSuccess");
-        onReleaseShutterLock();
+        // The shutter was already handed back by onReleaseShutterLock, the
+        // next capture may be in progress.
         if(thumbnailBytes != null) mActivity.updateThumbnail(thumbnailBytes);
         warningToast(R.string.clearsight_capture_success, false);
     }
@@ -11439,7 +11461,6 @@ public class CaptureModule implements CameraModule, PhotoController,
         Log.d(TAG, "onClearSightFailure");
         if(thumbnailBytes != null) mActivity.updateThumbnail(thumbnailBytes);
         warningToast(R.string.clearsight_capture_fail, false);
-        onReleaseShutterLock();
     }
 
     /**
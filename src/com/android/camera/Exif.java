@@ -16,15 +16,30 @@
 
 package com.android.camera;
 
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.util.Log;
 
 import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifScanner;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 public class Exif {
     private static final String TAG = "CameraExif";
 
+    // Longest edge of the IFD1 thumbnails embedded by the camera. Large
+    // enough for a filmstrip preview, small enough to stay well inside the
+    // 64K APP1 segment.
+    public static final int THUMBNAIL_MAX_SIZE = 512;
+    public static final int THUMBNAIL_QUALITY = 80;
+    // Used once if a thumbnail does not fit at THUMBNAIL_QUALITY.
+    public static final int THUMBNAIL_FALLBACK_QUALITY = 50;
+    // Leaves room for the rest of the APP1 segment; a larger thumbnail is
+    // not embedded.
+    public static final int THUMBNAIL_MAX_BYTES = 48 * 1024;
+
     public static ExifInterface getExif(byte[] jpegData) {
         ExifInterface exif = new ExifInterface();
         try {
@@ -48,7 +63,64 @@ public class Exif {
     public static int getOrientation(byte[] jpegData) {
         if (jpegData == null) return 0;
 
-        ExifInterface exif = getExif(jpegData);
-        return getOrientation(exif);
+        return ExifScanner.getRotation(jpegData);
+    }
+
+    /**
+     * Makes sure the EXIF data carries an IFD1 thumbnail of the JPEG, so that
+     * viewers can show a preview without decoding the main image. A thumbnail
+     * already embedded in the JPEG is reused, otherwise one is decoded at a
+     * reduced sample size.
+     *
+     * @return true if the EXIF data has a thumbnail afterwards.
+     */
+    public static boolean addThumbnail(ExifInterface exif, byte[] jpegData) {
+        if (exif.hasThumbnail()) {
+            return true;
+        }
+        ExifScanner scanner = new ExifScanner();
+        if (scanner.scan(jpegData, 0, jpegData.length) && scanner.hasThumbnail()
+                && scanner.getThumbnailLength() <= THUMBNAIL_MAX_BYTES) {
+            byte[] thumb = new byte[scanner.getThumbnailLength()];
+            System.arraycopy(jpegData, scanner.getThumbnailOffset(), thumb, 0, thumb.length);
+            return exif.setCompressedThumbnail(thumb);
+        }
+
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpegData, 0, jpegData.length, opts);
+        int size = Math.max(opts.outWidth, opts.outHeight);
+        if (size <= 0) {
+            return false;
+        }
+        opts.inJustDecodeBounds = false;
+        opts.inSampleSize = 1;
+        while (size / (opts.inSampleSize * 2) >= THUMBNAIL_MAX_SIZE) {
+            opts.inSampleSize *= 2;
+        }
+        Bitmap b = BitmapFactory.decodeByteArray(jpegData, 0, jpegData.length, opts);
+        if (b == null) {
+            return false;
+        }
+        size = Math.max(b.getWidth(), b.getHeight());
+        if (size > THUMBNAIL_MAX_SIZE) {
+            float scale = (float) THUMBNAIL_MAX_SIZE / size;
+            Bitmap scaled = Bitmap.createScaledBitmap(b, Math.round(b.getWidth() * scale),
+                    Math.round(b.getHeight() * scale), true);
+            b.recycle();
+            b = scaled;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(THUMBNAIL_MAX_BYTES);
+        boolean ok = b.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, out);
+        if (ok && out.size() > THUMBNAIL_MAX_BYTES) {
+            out.reset();
+            ok = b.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_FALLBACK_QUALITY, out);
+        }
+        b.recycle();
+        if (!ok || out.size() > THUMBNAIL_MAX_BYTES) {
+            Log.w(TAG, "Could not create EXIF thumbnail");
+            return false;
+        }
+        return exif.setCompressedThumbnail(out.toByteArray());
     }
 }
@@ -16,25 +16,27 @@
 
 package com.android.camera;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteOrder;
 
 import android.app.Service;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Intent;
-import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Color;
 import android.graphics.Rect;
 import android.location.Location;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.provider.MediaStore.Video;
 import android.util.Log;
 import android.widget.Toast;
@@ -43,6 +45,7 @@ import com.android.camera.exif.ExifInterface;
 import com.android.camera.mpo.MpoData;
 import com.android.camera.mpo.MpoImageData;
 import com.android.camera.mpo.MpoInterface;
+import com.android.camera.util.ExtendedXmpWriter;
 import com.android.camera.util.PersistUtil;
 import com.android.camera.util.XmpUtil;
 
@@ -70,8 +73,11 @@ public class MediaSaveService extends Service {
 
     private final IBinder mBinder = new LocalBinder();
     private Listener mListener;
-    // Memory used by the total queued save request, in bytes.
-    private long mMemoryUse;
+    private SaveScheduler mScheduler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // Last queue status reported to the listener. Guarded by this, since
+    // requests are admitted from the capture threads as well.
+    private boolean mQueueFullReported;
 
     public interface Listener {
         public void onQueueStatus(boolean full);
@@ -99,15 +105,47 @@ public class MediaSaveService extends Service {
 
     @Override
     public void onDestroy() {
+        mScheduler.logStats();
+        mScheduler.shutdown();
     }
 
     @Override
     public void onCreate() {
-        mMemoryUse = 0;
+        mScheduler = new SaveScheduler(SAVE_TASK_MEMORY_LIMIT,
+                PersistUtil.getSaveJpegThreads(), PersistUtil.getSaveBlockTimeoutMs(),
+                new File(getCacheDir(), "save_spill"));
     }
 
     public boolean isQueueFull() {
-        return (mMemoryUse >= SAVE_TASK_MEMORY_LIMIT);
+        return mScheduler.isOverBudget();
+    }
+
+    /**
+     * Accounts data against the memory budget of queued saves, waiting for
+     * room if needed. If the budget stays exhausted the data is spilled to a
+     * temporary file rather than dropped. On the main thread, which must
+     * neither wait nor write files, the data is kept in memory over budget.
+     *
+     * @return the spill file, or null if the data stays in memory and its
+     *         length has been reserved.
+     */
+    private File admit(byte[] data) {
+        File spill = null;
+        if (!mScheduler.reserve(data.length)) {
+            spill = mScheduler.spill(data);
+            if (spill == null) {
+                mScheduler.forceReserve(data.length);
+            }
+        }
+        updateQueueStatus();
+        return spill;
+    }
+
+    private void admit(long size) {
+        if (!mScheduler.reserve(size)) {
+            mScheduler.forceReserve(size);
+        }
+        updateQueueStatus();
     }
 
     public void addMpoImage(final byte[] csImage,
@@ -116,88 +154,53 @@ public class MediaSaveService extends Service {
             String title, long date, Location loc, int orientation,
             OnMediaSavedListener l, ContentResolver resolver,
             String pictureFormat) {
-        if (isQueueFull()) {
-            Log.e(TAG, "Cannot add image when the queue is full");
-            return;
-        }
-
-        MpoSaveTask t = new MpoSaveTask(csImage, bayerImg, monoImg,
-                width, height, title, date, loc, orientation, l,
-                resolver, pictureFormat);
-
         long size = (csImage == null ? 0
                 : csImage.length)
                 + bayerImg.length + monoImg.length;
-        mMemoryUse += size;
-        if (isQueueFull()) {
-            onQueueFull();
-        }
-        t.execute();
+        admit(size);
+        MpoSaveTask t = new MpoSaveTask(csImage, bayerImg, monoImg,
+                width, height, title, date, loc, orientation, l,
+                resolver, pictureFormat, size);
+        t.executeOnExecutor(mScheduler.getExecutor(SaveScheduler.LANE_MPO));
     }
 
     public void addImage(final byte[] data, String title, long date, Location loc,
             int width, int height, int orientation, ExifInterface exif,
             OnMediaSavedListener l, ContentResolver resolver, String pictureFormat) {
-        if (isQueueFull()) {
-            Log.e(TAG, "Cannot add image when the queue is full");
-            return;
-        }
-        ImageSaveTask t = new ImageSaveTask(data, title, date,
+        File spill = admit(data);
+        ImageSaveTask t = new ImageSaveTask(spill == null ? data : null, spill, title, date,
                 (loc == null) ? null : new Location(loc),
                 width, height, orientation, exif, resolver, l, pictureFormat);
-
-        mMemoryUse += data.length;
-        if (isQueueFull()) {
-            onQueueFull();
-        }
-        t.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        t.executeOnExecutor(mScheduler.getExecutor(SaveScheduler.LANE_JPEG));
     }
 
     public void addRawImage(final byte[] data, String title, String pictureFormat) {
-        if (isQueueFull()) {
-            Log.e(TAG, "Cannot add image when the queue is full");
-            return;
-        }
-        RawImageSaveTask t = new RawImageSaveTask(data, title, pictureFormat);
-
-        mMemoryUse += data.length;
-        if (isQueueFull()) {
-            onQueueFull();
-        }
-        t.execute();
+        File spill = admit(data);
+        RawImageSaveTask t = new RawImageSaveTask(spill == null ? data : null, spill,
+                title, pictureFormat);
+        t.executeOnExecutor(mScheduler.getExecutor(SaveScheduler.LANE_RAW));
     }
 
     public void addHEIFImage(String path,String title,long date , Location loc,
                              int width, int height, int orientation, ExifInterface exif,
                              ContentResolver resolver, OnMediaSavedListener listener,
                              int qualitiy, String pictureFormat) {
-        if (isQueueFull()) {
-            Log.e(TAG, "Cannot add image when the queue is full");
-            return;
-        }
+        // The encoded image is already on disk, so it does not count against
+        // the memory budget.
         HEIFImageSaveTask t = new HEIFImageSaveTask(path,title,date, loc, width, height, orientation,
                 exif, resolver, listener, qualitiy, pictureFormat);
-
-        t.execute();
+        t.executeOnExecutor(mScheduler.getExecutor(SaveScheduler.LANE_HEIF));
     }
 
     public void addClearsightImage(byte[] clearsight, GImage bayer, GDepth.DepthMap depthMap,
                                    String title, long date, Location loc, int width, int height,
                                    int orientation, ExifInterface exif,
                                    OnMediaSavedListener l, ContentResolver resolver, String pictureFormat) {
-        if (isQueueFull()) {
-            Log.e(TAG, "Cannot add image when the queue is full");
-            return;
-        }
+        admit(clearsight.length);
         ClearsightImageSaveTask t = new ClearsightImageSaveTask(clearsight, bayer, depthMap,
                 title, date,  (loc == null) ? null : new Location(loc),
                 width, height, orientation, exif, resolver, l, pictureFormat);
-
-        mMemoryUse += clearsight.length;
-        if (isQueueFull()) {
-            onQueueFull();
-        }
-        t.execute();
+        t.executeOnExecutor(mScheduler.getExecutor(SaveScheduler.LANE_MPO));
     }
 
     public void addImage(final byte[] data, String title, long date, Location loc,
@@ -219,21 +222,32 @@ public class MediaSaveService extends Service {
             OnMediaSavedListener l, ContentResolver resolver) {
         // We don't set a queue limit for video saving because the file
         // is already in the storage. Only updating the database.
-        new VideoSaveTask(path, duration, values, l, resolver).execute();
+        new VideoSaveTask(path, duration, values, l, resolver)
+                .executeOnExecutor(mScheduler.getExecutor(SaveScheduler.LANE_VIDEO));
     }
 
     public void setListener(Listener l) {
         mListener = l;
         if (l == null) return;
-        l.onQueueStatus(isQueueFull());
-    }
-
-    private void onQueueFull() {
-        if (mListener != null) mListener.onQueueStatus(true);
+        boolean full;
+        synchronized (this) {
+            full = mQueueFullReported = isQueueFull();
+        }
+        l.onQueueStatus(full);
     }
 
-    private void onQueueAvailable() {
-        if (mListener != null) mListener.onQueueStatus(false);
+    // Listeners are always called on the main thread. Changes are posted in
+    // the order they are detected, so the last report matches the queue.
+    private synchronized void updateQueueStatus() {
+        final boolean full = isQueueFull();
+        if (full == mQueueFullReported) return;
+        mQueueFullReported = full;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mListener != null) mListener.onQueueStatus(full);
+            }
+        });
     }
 
     private class MpoSaveTask extends AsyncTask<Void, Void, Uri> {
@@ -248,11 +262,12 @@ public class MediaSaveService extends Service {
         private ContentResolver resolver;
         private OnMediaSavedListener listener;
         private String pictureFormat;
+        private long reserved;
 
         public MpoSaveTask(byte[] csImage, byte[] bayerImg,
                 byte[] monoImg, int width, int height, String title, long date,
                 Location loc, int orientation, OnMediaSavedListener listener,
-                ContentResolver resolver, String pictureFormat) {
+                ContentResolver resolver, String pictureFormat, long reserved) {
             this.csImage = csImage;
             this.bayerImage = bayerImg;
             this.monoImage = monoImg;
@@ -265,10 +280,19 @@ public class MediaSaveService extends Service {
             this.resolver = resolver;
             this.listener = listener;
             this.pictureFormat = pictureFormat;
+            this.reserved = reserved;
         }
 
         @Override
         protected Uri doInBackground(Void... v) {
+            try {
+                return saveMpo();
+            } finally {
+                mScheduler.release(reserved);
+            }
+        }
+
+        private Uri saveMpo() {
             // encode jpeg and add exif for all images
             MpoData mpo = new MpoData();
             MpoImageData bayer = new MpoImageData(bayerImage,
@@ -292,10 +316,9 @@ public class MediaSaveService extends Service {
             // combine to single mpo
             String path = Storage.generateFilepath(title, pictureFormat);
             int size = MpoInterface.writeMpo(mpo, path);
-            // Try to get the real image size after add exif.
-            File f = new File(path);
-            if (f.exists() && f.isFile()) {
-                size = (int) f.length();
+            if (size < 0) {
+                Log.e(TAG, "Failed to write mpo image " + path);
+                return null;
             }
             return Storage.addImage(resolver, title, date, loc, orientation, null,
                     size, path, width, height, pictureFormat);
@@ -305,24 +328,19 @@ public class MediaSaveService extends Service {
         protected void onPostExecute(Uri uri) {
             if (listener != null)
                 listener.onMediaSaved(uri);
-            boolean previouslyFull = isQueueFull();
-            long size = (csImage == null ? 0
-                    : csImage.length)
-                    + bayerImage.length
-                    + monoImage.length;
-            mMemoryUse -= size;
-            if (isQueueFull() != previouslyFull)
-                onQueueAvailable();
+            updateQueueStatus();
         }
     }
 
     private class RawImageSaveTask extends AsyncTask<Void, Void, Long> {
         private byte[] data;
+        private File spill;
         private String title;
         private String pictureFormat;
 
-        public RawImageSaveTask(byte[] data, String title, String pictureFormat) {
+        public RawImageSaveTask(byte[] data, File spill, String title, String pictureFormat) {
             this.data = data;
+            this.spill = spill;
             this.title = title;
             this.pictureFormat = pictureFormat;
         }
@@ -334,15 +352,21 @@ public class MediaSaveService extends Service {
 
         @Override
         protected Long doInBackground(Void... params) {
-            long length = Storage.addRawImage(title, data, pictureFormat);
-            return new Long(length);
+            if (spill != null) {
+                byte[] bytes = SaveScheduler.unspill(spill);
+                return new Long(bytes == null ? -1 : Storage.addRawImage(title, bytes, pictureFormat));
+            }
+            try {
+                long length = Storage.addRawImage(title, data, pictureFormat);
+                return new Long(length);
+            } finally {
+                mScheduler.release(data.length);
+            }
         }
 
         @Override
         protected void onPostExecute(Long l) {
-            boolean previouslyFull = isQueueFull();
-            mMemoryUse -= data.length;
-            if (isQueueFull() != previouslyFull) onQueueAvailable();
+            updateQueueStatus();
         }
     }
 
@@ -397,6 +421,7 @@ public class MediaSaveService extends Service {
 
     private class ImageSaveTask extends AsyncTask <Void, Void, Uri> {
         private byte[] data;
+        private File spill;
         private String title;
         private long date;
         private Location loc;
@@ -407,10 +432,11 @@ public class MediaSaveService extends Service {
         private OnMediaSavedListener listener;
         private String pictureFormat;
 
-        public ImageSaveTask(byte[] data, String title, long date, Location loc,
+        public ImageSaveTask(byte[] data, File spill, String title, long date, Location loc,
                              int width, int height, int orientation, ExifInterface exif,
                              ContentResolver resolver, OnMediaSavedListener listener, String pictureFormat) {
             this.data = data;
+            this.spill = spill;
             this.title = title;
             this.date = date;
             this.loc = loc;
@@ -430,6 +456,19 @@ public class MediaSaveService extends Service {
 
         @Override
         protected Uri doInBackground(Void... v) {
+            if (spill != null) {
+                byte[] bytes = SaveScheduler.unspill(spill);
+                return bytes == null ? null : saveImage(bytes);
+            }
+            try {
+                return saveImage(data);
+            } finally {
+                mScheduler.release(data.length);
+                data = null;
+            }
+        }
+
+        private Uri saveImage(byte[] data) {
             if (width == 0 || height == 0) {
                 // Decode bounds
                 BitmapFactory.Options options = new BitmapFactory.Options();
@@ -438,6 +477,11 @@ public class MediaSaveService extends Service {
                 width = options.outWidth;
                 height = options.outHeight;
             }
+            if (exif != null && PhotoModule.PIXEL_FORMAT_JPEG.equalsIgnoreCase(pictureFormat)) {
+                // The EXIF block replaces the one in the data, keep a
+                // thumbnail in it for fast previews.
+                Exif.addThumbnail(exif, data);
+            }
             return Storage.addImage(
                     resolver, title, date, loc, orientation, exif, data, width, height, pictureFormat);
         }
@@ -445,9 +489,7 @@ public class MediaSaveService extends Service {
         @Override
         protected void onPostExecute(Uri uri) {
             if (listener != null) listener.onMediaSaved(uri);
-            boolean previouslyFull = isQueueFull();
-            mMemoryUse -= data.length;
-            if (isQueueFull() != previouslyFull) onQueueAvailable();
+            updateQueueStatus();
         }
     }
 
@@ -457,7 +499,6 @@ public class MediaSaveService extends Service {
         private GImage bayer;
         private GDepth.DepthMap depthMap;
         private GDepth gDepth;
-        private byte[] data;
         private String title;
         private long date;
         private Location loc;
@@ -497,58 +538,53 @@ public class MediaSaveService extends Service {
 
         @Override
         protected Uri doInBackground(Void... v) {
+            try {
+                return saveClearsight();
+            } finally {
+                mScheduler.release(clearsight.length);
+            }
+        }
+
+        private Uri saveClearsight() {
             if ( depthMap != null ) {
-                depthMap.buffer = converToJpegByte(depthMap.rawDepth, depthMap.width, depthMap.height);
                 gDepth = GDepth.createGDepth(depthMap);
             }
-            data = embedGDepthAndBayerInClearSight(clearsight);
-            if ( data == null ) {
-                data = clearsight;
-                Log.e(TAG, "embedGDepthAndBayerInClearSight fail");
-            }
 
             if (width == 0 || height == 0) {
-                // Decode bounds
+                // Decode bounds, embedding metadata does not change them.
                 BitmapFactory.Options options = new BitmapFactory.Options();
                 options.inJustDecodeBounds = true;
-                BitmapFactory.decodeByteArray(data, 0, data.length, options);
+                BitmapFactory.decodeByteArray(clearsight, 0, clearsight.length, options);
                 width = options.outWidth;
                 height = options.outHeight;
             }
-            return Storage.addImage(
-                    resolver, title, date, loc, orientation, exif, data, width, height, pictureFormat);
+
+            String path = Storage.generateFilepath(title, pictureFormat);
+            if ( !embedGDepthAndBayerInClearSight(clearsight, path) ) {
+                Log.e(TAG, "embedGDepthAndBayerInClearSight fail");
+                new File(path).delete();
+                return Storage.addImage(resolver, title, date, loc, orientation, exif,
+                        clearsight, width, height, pictureFormat);
+            }
+            int size = (int) new File(path).length();
+            return Storage.addImage(resolver, title, date, loc, orientation, exif,
+                    size, path, width, height, pictureFormat);
         }
 
         @Override
         protected void onPostExecute(Uri uri) {
             if (listener != null) listener.onMediaSaved(uri);
-            boolean previouslyFull = isQueueFull();
-            mMemoryUse -= data.length;
-            if (isQueueFull() != previouslyFull) onQueueAvailable();
-        }
-
-        private byte[] converToJpegByte(byte[] depthBuf, int width, int height) {
-            int[] colors = new int[depthBuf.length];
-            for(int i=0; i < colors.length; ++i) {
-                colors[i] =  (256+depthBuf[i])%256;
-            }
-            Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-            for( int y=0; y < height; ++y ) {
-                for( int x=0; x < width; ++x) {
-                    int c = colors[y*width+x];
-                    bitmap.setPixel(x, y, Color.rgb(c, c, c));
-                }
-            }
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            bitmap.compress(Bitmap.CompressFormat.JPEG, 100, baos);
-            return baos.toByteArray();
+            updateQueueStatus();
         }
 
-        private byte[] embedGDepthAndBayerInClearSight(byte[] clearSightImageBytes) {
+        // Writes the image with its depth map and bayer image straight into
+        // the file at path, so the result is never held in memory.
+        private boolean embedGDepthAndBayerInClearSight(byte[] clearSightImageBytes,
+                String path) {
             Log.d(TAG, "embedGDepthInClearSight");
             if ( clearSightImageBytes == null || (gDepth ==null && bayer==null) ) {
                 Log.d(TAG, "clearSightImageBytes is null");
-                return null;
+                return false;
             }
 
             XMPMeta xmpMeta = XmpUtil.createXMPMeta();
@@ -573,32 +609,51 @@ public class MediaSaveService extends Service {
 
             } catch(XMPException exception) {
                 Log.d(TAG, "create XMPMeta error", exception);
-                return null;
+                return false;
             }
 
-            XMPMeta extendXmpMeta = XmpUtil.createXMPMeta();
-            try{
-                if ( gDepth != null) {
-                    extendXmpMeta.setProperty(GDepth.NAMESPACE_URL, GDepth.PROPERTY_DATA, gDepth.getData());
-                }
-
-                if ( bayer != null ) {
-                    extendXmpMeta.setProperty(GImage.NAMESPACE_URL, GImage.PROPERTY_DATA, bayer.getData());
-                }
-            }catch(XMPException exception) {
-                Log.d(TAG, "create extended XMPMeta error", exception);
+            ExtendedXmpWriter extendedXmp = new ExtendedXmpWriter();
+            if ( gDepth != null) {
+                extendedXmp.addProperty(GDepth.NAMESPACE_URL, GDepth.PREFIX,
+                        GDepth.PROPERTY_DATA, gDepth.getJpegBytes());
             }
 
+            if ( bayer != null ) {
+                extendedXmp.addProperty(GImage.NAMESPACE_URL, GImage.PREFIX,
+                        GImage.PROPERTY_DATA, bayer.getBytes());
+            }
 
             ByteArrayInputStream bais = new ByteArrayInputStream(clearSightImageBytes);
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            if ( XmpUtil.writeXMPMeta(bais, baos, xmpMeta, extendXmpMeta) ){
-                return baos.toByteArray();
-            }else{
-                Log.e(TAG, "embedGDepthInClearSight failure ");
-                return null;
+            OutputStream out = null;
+            try {
+                out = new BufferedOutputStream(new FileOutputStream(path));
+                // As in Storage.writeFile(), the EXIF block replaces the
+                // first APP1 segment on the way to the file.
+                if (exif != null && (pictureFormat == null
+                        || pictureFormat.equalsIgnoreCase("jpeg"))) {
+                    out = exif.getExifWriterStream(out);
+                }
+                if ( !XmpUtil.writeXMPMeta(bais, out, xmpMeta, extendedXmp) ){
+                    Log.e(TAG, "embedGDepthInClearSight failure ");
+                    return false;
+                }
+                // A failed final flush would leave a truncated file.
+                OutputStream closing = out;
+                out = null;
+                closing.close();
+                return true;
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write " + path, e);
+                return false;
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // Ignore.
+                    }
+                }
             }
-
         }
     }
 
@@ -28,10 +28,13 @@
  */
 package com.android.camera;
 
-import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
 import android.animation.Animator;
 import android.animation.Keyframe;
@@ -52,6 +55,7 @@ import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.Display;
@@ -131,20 +135,18 @@ public class RefocusActivity extends Activity {
         mImageView.setOnTouchListener(new View.OnTouchListener() {
             @Override
             public boolean onTouch(View v, MotionEvent event) {
+                float x = event.getX();
+                float y = event.getY();
                 switch (event.getAction()) {
+                    case MotionEvent.ACTION_DOWN:
+                    case MotionEvent.ACTION_MOVE:
+                        // Depth lookups are cheap, refocus live while dragging.
+                        refocus(x / (float) v.getWidth(), y / (float) v.getHeight());
+                        break;
                     case MotionEvent.ACTION_UP:
-                        float x = event.getX();
-                        float y = event.getY();
-                        int w = v.getWidth();
-                        int h = v.getHeight();
                         mIndicator.startAnimation(x + mImageView.getLeft(),
                                 y + mImageView.getTop());
-                        if (mDepthMap != null) {
-                            int depth = mDepthMap.getDepth(x / (float) w, y / (float) h);
-                            setCurrentImage(depth);
-                            mAllInFocusView.setBackground(getDrawable(
-                                    R.drawable.refocus_button_disable));
-                        }
+                        refocus(x / (float) v.getWidth(), y / (float) v.getHeight());
                         break;
                 }
                 return true;
@@ -189,6 +191,15 @@ public class RefocusActivity extends Activity {
         allInFocus();
     }
 
+    private void refocus(float x, float y) {
+        if (mDepthMap != null) {
+            int depth = mDepthMap.getDepth(x, y);
+            setCurrentImage(depth);
+            mAllInFocusView.setBackground(getDrawable(
+                    R.drawable.refocus_button_disable));
+        }
+    }
+
     private void setCurrentImage(int depth) {
         if (depth >= 0 && depth < NAMES.length && depth != mRequestedImage) {
             mRequestedImage = depth;
@@ -283,37 +294,120 @@ public class RefocusActivity extends Activity {
         }
     }
 
+    /*
+     * The depth file holds one depth level per pixel followed by a 25 byte
+     * trailer: a failure flag and the big endian width and height. The depth
+     * of a touch is the most frequent level in a window around it. Those are
+     * computed once for a coarse grid of points when the map is loaded, so a
+     * touch is a single lookup.
+     */
     private class DepthMap {
-        private byte[] mData;
+        private static final int W_SIZE = 61;
+        private static final int TRAILER_SIZE = 25;
+        // Grid points are at most this many per side.
+        private static final int MAX_GRID_SIZE = 256;
+
         private int mWidth;
         private int mHeight;
         private boolean mFail = true;
-        private static final int W_SIZE = 61;
+        private int mStep;
+        private int mGridWidth;
+        private int mGridHeight;
+        private byte[] mGrid;
 
         public DepthMap(final String path) {
-            File file = new File(path);
+            FileInputStream stream = null;
             try {
-                FileInputStream stream = new FileInputStream(file);
-                mData = new byte[(int) file.length()];
-                stream.read(mData);
-                stream.close();
-            } catch (Exception e) {
-                mData = new byte[0];
+                stream = new FileInputStream(path);
+                FileChannel channel = stream.getChannel();
+                long length = channel.size();
+                if (length > TRAILER_SIZE) {
+                    MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+                    int trailer = (int) length - TRAILER_SIZE;
+                    mFail = data.get(trailer) != 0;
+                    mWidth = data.getInt(trailer + 1);
+                    mHeight = data.getInt(trailer + 5);
+                    if (mWidth <= 0 || mHeight <= 0
+                            || (long) mWidth * mHeight + TRAILER_SIZE > length) {
+                        mFail = true;
+                    }
+                    if (!mFail) {
+                        long start = SystemClock.uptimeMillis();
+                        buildGrid(data);
+                        Log.d(TAG, "Depth grid " + mGridWidth + "x" + mGridHeight + " for "
+                                + mWidth + "x" + mHeight + " built in "
+                                + (SystemClock.uptimeMillis() - start) + "ms");
+                    }
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to load depth map " + path, e);
+                mFail = true;
+            } finally {
+                if (stream != null) {
+                    try {
+                        stream.close();
+                    } catch (IOException e) {
+                        // Do nothing
+                    }
+                }
             }
+        }
 
-            int length = (int) mData.length;
-            if (length > 25) {
-                mFail = (mData[length - 25] != 0);
-                mWidth = readInteger(length - 24);
-                mHeight = readInteger(length - 20);
+        /*
+         * For every level present, counts the pixels at that level in each
+         * grid window through an integral image, keeping the level with the
+         * highest count. Ties go to the lowest level.
+         */
+        private void buildGrid(ByteBuffer data) {
+            mStep = Math.max(1, (Math.max(mWidth, mHeight) + MAX_GRID_SIZE - 1) / MAX_GRID_SIZE);
+            mGridWidth = (mWidth - 1) / mStep + 1;
+            mGridHeight = (mHeight - 1) / mStep + 1;
+            mGrid = new byte[mGridWidth * mGridHeight];
+            Arrays.fill(mGrid, (byte) (NAMES.length - 1));
+            int[] bestCount = new int[mGrid.length];
+
+            boolean[] present = new boolean[256];
+            for (int i = 0, n = mWidth * mHeight; i < n; i++) {
+                present[data.get(i) & 0xFF] = true;
             }
-            if (mWidth * mHeight + 25 > length) {
-                mFail = true;
+
+            int stride = mWidth + 1;
+            int[] integral = new int[stride * (mHeight + 1)];
+            for (int level = 0; level < 256; level++) {
+                if (!present[level]) continue;
+                for (int row = 0; row < mHeight; row++) {
+                    int rowSum = 0;
+                    int src = row * mWidth;
+                    int dst = (row + 1) * stride + 1;
+                    for (int col = 0; col < mWidth; col++) {
+                        if ((data.get(src + col) & 0xFF) == level) {
+                            rowSum++;
+                        }
+                        integral[dst + col] = integral[dst + col - stride] + rowSum;
+                    }
+                }
+                for (int gy = 0; gy < mGridHeight; gy++) {
+                    int rowStart = Math.max(gy * mStep - W_SIZE / 2, 0);
+                    int rowEnd = Math.min(rowStart + W_SIZE, mHeight);
+                    for (int gx = 0; gx < mGridWidth; gx++) {
+                        int colStart = Math.max(gx * mStep - W_SIZE / 2, 0);
+                        int colEnd = Math.min(colStart + W_SIZE, mWidth);
+                        int count = integral[rowEnd * stride + colEnd]
+                                - integral[rowStart * stride + colEnd]
+                                - integral[rowEnd * stride + colStart]
+                                + integral[rowStart * stride + colStart];
+                        int cell = gy * mGridWidth + gx;
+                        if (count > bestCount[cell]) {
+                            bestCount[cell] = count;
+                            mGrid[cell] = (byte) level;
+                        }
+                    }
+                }
             }
         }
 
         public int getDepth(float x, float y) {
-            if (mFail || x > 1.0f || y > 1.0f) {
+            if (mFail || x < 0.0f || y < 0.0f || x > 1.0f || y > 1.0f) {
                 return NAMES.length - 1;
             }
 
@@ -335,42 +429,9 @@ public class RefocusActivity extends Activity {
                 }
             }
 
-            int[] hist = new int[256];
-            for (int i = 0; i < 256; i++) {
-                hist[i] = 0;
-            }
-
-            int colStart = Math.max(newX - W_SIZE / 2, 0);
-            int colEnd = Math.min(colStart + W_SIZE, mWidth);
-            int rowStart = Math.max(newY - W_SIZE / 2, 0);
-            int rowEnd = Math.min(rowStart + W_SIZE, mHeight);
-
-            for (int col = colStart; col < colEnd; col++) {
-                for (int row = rowStart; row < rowEnd; row++) {
-                    int level = mData[row * mWidth + col];
-                    hist[level]++;
-                }
-            }
-
-            int depth = NAMES.length - 1;
-            int maxCount = 0;
-            for (int i = 0; i < 256; i++) {
-                int count = hist[i];
-                if (count != 0 && (maxCount == 0 || count > maxCount)) {
-                    maxCount = count;
-                    depth = i;
-                }
-            }
-            return depth;
-        }
-
-        private int readInteger(int offset) {
-            int result = mData[offset] & 0xff;
-            for (int i = 1; i < 4; ++i) {
-                result <<= 8;
-                result += mData[offset + i] & 0xff;
-            }
-            return result;
+            int gx = Math.min(Math.round(newX / (float) mStep), mGridWidth - 1);
+            int gy = Math.min(Math.round(newY / (float) mStep), mGridHeight - 1);
+            return mGrid[gy * mGridWidth + gx] & 0xFF;
         }
     }
 
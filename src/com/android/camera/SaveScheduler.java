@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Schedules the background work of MediaSaveService. Every kind of media has
+ * its own lane with a fixed number of worker threads, so a burst of JPEGs does
+ * not wait behind a slow MPO or RAW write. The memory held by queued requests
+ * is bounded by a byte budget: once it is exhausted producers wait for running
+ * saves to finish, and requests that still do not fit are spilled to disk
+ * instead of being dropped.
+ */
+class SaveScheduler {
+    private static final String TAG = "CAM_SaveScheduler";
+
+    public static final int LANE_JPEG = 0;
+    public static final int LANE_RAW = 1;
+    public static final int LANE_HEIF = 2;
+    public static final int LANE_MPO = 3;
+    public static final int LANE_VIDEO = 4;
+    private static final int LANE_COUNT = 5;
+    private static final String[] LANE_NAMES = {"jpeg", "raw", "heif", "mpo", "video"};
+
+    private static final long KEEP_ALIVE_MS = 10000;
+
+    private final Lane[] mLanes = new Lane[LANE_COUNT];
+    private final long mBudget;
+    private final long mBlockTimeoutMs;
+    private final File mSpillDir;
+    // Spill files of this scheduler start with this prefix, anything else in
+    // the directory was left behind by a process that died before saving.
+    private final String mSpillPrefix = "spill_" + System.currentTimeMillis() + "_";
+    private final AtomicInteger mSpillId = new AtomicInteger();
+
+    // Guarded by mBudgetLock.
+    private final Object mBudgetLock = new Object();
+    private long mBytesInUse;
+    private long mPeakBytes;
+    private int mBlockedCount;
+    private long mBlockedTimeMs;
+    private int mOverBudgetCount;
+    private int mSpilledCount;
+    private long mSpilledBytes;
+
+    SaveScheduler(long budget, int jpegThreads, long blockTimeoutMs, File spillDir) {
+        mBudget = budget;
+        mBlockTimeoutMs = blockTimeoutMs;
+        mSpillDir = spillDir;
+        for (int i = 0; i < LANE_COUNT; i++) {
+            // Only JPEG saves are frequent and small enough to benefit from
+            // parallel writes; the other lanes are bound by storage throughput.
+            mLanes[i] = new Lane(LANE_NAMES[i], i == LANE_JPEG ? Math.max(1, jpegThreads) : 1);
+        }
+        if (mSpillDir != null) {
+            // Off the main thread, which creates the scheduler.
+            mLanes[LANE_VIDEO].execute(new Runnable() {
+                @Override
+                public void run() {
+                    purgeStaleSpills();
+                }
+            });
+        }
+    }
+
+    private void purgeStaleSpills() {
+        File[] files = mSpillDir.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (!file.getName().startsWith(mSpillPrefix) && file.delete()) {
+                Log.d(TAG, "Deleted stale spill file " + file.getName());
+            }
+        }
+    }
+
+    public Executor getExecutor(int lane) {
+        return mLanes[lane];
+    }
+
+    /**
+     * Reserves memory for a queued request. If the budget is exhausted, the
+     * caller waits up to the block timeout for running saves to release
+     * memory. The main thread never waits.
+     *
+     * @return true if the bytes were reserved, false if the budget is still
+     *         exhausted and the request should be spilled or forced.
+     */
+    public boolean reserve(long bytes) {
+        boolean mayBlock = mBlockTimeoutMs > 0 && Looper.myLooper() != Looper.getMainLooper();
+        synchronized (mBudgetLock) {
+            if (!fits(bytes) && mayBlock) {
+                long start = SystemClock.uptimeMillis();
+                long deadline = start + mBlockTimeoutMs;
+                long now = start;
+                mBlockedCount++;
+                while (!fits(bytes) && now < deadline) {
+                    try {
+                        mBudgetLock.wait(deadline - now);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                    now = SystemClock.uptimeMillis();
+                }
+                mBlockedTimeMs += now - start;
+            }
+            if (!fits(bytes)) {
+                return false;
+            }
+            addBytesLocked(bytes);
+            return true;
+        }
+    }
+
+    /**
+     * Reserves memory for a request that cannot be spilled, even if this
+     * exceeds the budget.
+     */
+    public void forceReserve(long bytes) {
+        synchronized (mBudgetLock) {
+            if (!fits(bytes)) {
+                mOverBudgetCount++;
+            }
+            addBytesLocked(bytes);
+        }
+    }
+
+    public void release(long bytes) {
+        if (bytes == 0) return;
+        synchronized (mBudgetLock) {
+            mBytesInUse -= bytes;
+            mBudgetLock.notifyAll();
+        }
+    }
+
+    public boolean isOverBudget() {
+        synchronized (mBudgetLock) {
+            return mBytesInUse >= mBudget;
+        }
+    }
+
+    // A single request larger than the whole budget is still admitted when
+    // nothing else is queued.
+    private boolean fits(long bytes) {
+        return mBytesInUse == 0 || mBytesInUse + bytes <= mBudget;
+    }
+
+    private void addBytesLocked(long bytes) {
+        mBytesInUse += bytes;
+        if (mBytesInUse > mPeakBytes) {
+            mPeakBytes = mBytesInUse;
+        }
+    }
+
+    /**
+     * Writes data to a temporary file so that it does not count against the
+     * memory budget. Nothing is written on the main thread.
+     *
+     * @return the file, or null if the data could not or must not be written.
+     */
+    public File spill(byte[] data) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            return null;
+        }
+        if (mSpillDir == null || (!mSpillDir.isDirectory() && !mSpillDir.mkdirs())) {
+            return null;
+        }
+        File file = new File(mSpillDir, mSpillPrefix + mSpillId.incrementAndGet());
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            out.write(data);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to spill " + data.length + " bytes", e);
+            file.delete();
+            return null;
+        } finally {
+            closeSilently(out);
+        }
+        synchronized (mBudgetLock) {
+            mSpilledCount++;
+            mSpilledBytes += data.length;
+        }
+        return file;
+    }
+
+    /**
+     * Reads back and deletes a file created by {@link #spill}.
+     *
+     * @return the data, or null if it could not be read.
+     */
+    public static byte[] unspill(File file) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] data = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < data.length) {
+                int n = in.read(data, offset, data.length - offset);
+                if (n < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                offset += n;
+            }
+            return data;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read spilled request " + file, e);
+            return null;
+        } finally {
+            closeSilently(in);
+            file.delete();
+        }
+    }
+
+    /**
+     * Stops accepting new work. Requests already queued still complete.
+     */
+    public void shutdown() {
+        for (Lane lane : mLanes) {
+            lane.mExecutor.shutdown();
+        }
+    }
+
+    public void logStats() {
+        synchronized (mBudgetLock) {
+            Log.d(TAG, "budget=" + mBudget + " inUse=" + mBytesInUse + " peak=" + mPeakBytes
+                    + " blocked=" + mBlockedCount + " (" + mBlockedTimeMs + "ms)"
+                    + " overBudget=" + mOverBudgetCount
+                    + " spilled=" + mSpilledCount + " (" + mSpilledBytes + " bytes)");
+        }
+        for (Lane lane : mLanes) {
+            lane.logStats();
+        }
+    }
+
+    private static void closeSilently(Closeable c) {
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (IOException e) {
+            // Do nothing
+        }
+    }
+
+    private static class Lane implements Executor {
+        private final String mName;
+        private final ThreadPoolExecutor mExecutor;
+
+        // Guarded by this.
+        private int mQueueDepth;
+        private int mMaxQueueDepth;
+        private long mCompleted;
+        private long mTotalLatencyMs;
+        private long mMaxLatencyMs;
+
+        Lane(final String name, int threads) {
+            mName = name;
+            mExecutor = new ThreadPoolExecutor(threads, threads,
+                    KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            return new Thread(r, "CameraSave-" + name + "-"
+                                    + mCount.incrementAndGet());
+                        }
+                    });
+            mExecutor.allowCoreThreadTimeOut(true);
+        }
+
+        @Override
+        public void execute(final Runnable command) {
+            final long enqueued = SystemClock.uptimeMillis();
+            synchronized (this) {
+                mQueueDepth++;
+                if (mQueueDepth > mMaxQueueDepth) {
+                    mMaxQueueDepth = mQueueDepth;
+                }
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        command.run();
+                    } finally {
+                        onDone(SystemClock.uptimeMillis() - enqueued);
+                    }
+                }
+            });
+        }
+
+        private synchronized void onDone(long latencyMs) {
+            mQueueDepth--;
+            mCompleted++;
+            mTotalLatencyMs += latencyMs;
+            if (latencyMs > mMaxLatencyMs) {
+                mMaxLatencyMs = latencyMs;
+            }
+        }
+
+        synchronized void logStats() {
+            if (mCompleted == 0 && mQueueDepth == 0) return;
+            Log.d(TAG, mName + ": depth=" + mQueueDepth + " maxDepth=" + mMaxQueueDepth
+                    + " completed=" + mCompleted
+                    + " avgLatency=" + (mCompleted == 0 ? 0 : mTotalLatencyMs / mCompleted) + "ms"
+                    + " maxLatency=" + mMaxLatencyMs + "ms");
+        }
+    }
+}
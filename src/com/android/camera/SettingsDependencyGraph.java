@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The settings dependencies of dependency.json, compiled once into an
+ * immutable graph. For every setting key and value it holds the keys the
+ * value overrides together with their overridden values, and for every pair
+ * of values of a key the keys turned on and off when switching between them,
+ * so that setting changes never touch JSON.
+ */
+final class SettingsDependencyGraph {
+    private static final String TAG = "SnapCam_SettingsDepGraph";
+    private static final String DEFAULT = "default";
+    private static final String[] EMPTY = new String[0];
+
+    private final Map<String, Rule> mRules;
+
+    private SettingsDependencyGraph(Map<String, Rule> rules) {
+        mRules = rules;
+    }
+
+    /**
+     * Compiles the parsed dependency file. A null file yields an empty graph.
+     */
+    static SettingsDependencyGraph compile(JSONObject json) {
+        Map<String, Rule> rules = new HashMap<>();
+        if (json != null) {
+            Iterator<String> keys = json.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                JSONObject map = json.optJSONObject(key);
+                if (map != null) {
+                    rules.put(key, new Rule(key, map));
+                }
+            }
+        }
+        return new SettingsDependencyGraph(Collections.unmodifiableMap(rules));
+    }
+
+    /**
+     * Returns the dependencies of the key, or null if it has none.
+     */
+    Rule getRule(String key) {
+        return mRules.get(key);
+    }
+
+    /**
+     * Returns the dependency entry for the key at the given value, or null if
+     * the key has no dependencies.
+     */
+    Entry getEntry(String key, String value) {
+        Rule rule = mRules.get(key);
+        return rule == null ? null : rule.get(value);
+    }
+
+    static final class Rule {
+        final String key;
+        private final Map<String, Entry> mEntries = new HashMap<>();
+        private final Entry mDefault;
+        // Indexed by the from and to entry indices.
+        private final Transition[][] mTransitions;
+
+        private Rule(String key, JSONObject map) {
+            this.key = key;
+            List<Entry> entries = new ArrayList<>();
+            Iterator<String> values = map.keys();
+            while (values.hasNext()) {
+                String value = values.next();
+                Entry entry = new Entry(entries.size(), value, map.optJSONObject(value));
+                entries.add(entry);
+                mEntries.put(value, entry);
+            }
+            Entry def = mEntries.get(DEFAULT);
+            if (def == null) {
+                // Values without an entry all resolve to the missing
+                // default, which has no dependencies.
+                def = new Entry(entries.size(), DEFAULT, null);
+                entries.add(def);
+            }
+            mDefault = def;
+
+            int count = entries.size();
+            mTransitions = new Transition[count][count];
+            for (Entry from : entries) {
+                for (Entry to : entries) {
+                    if (from != to) {
+                        mTransitions[from.mIndex][to.mIndex] = new Transition(from, to);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns the entry of the value, or the default entry if the value
+         * has none. Never null.
+         */
+        Entry get(String value) {
+            Entry entry = value == null ? null : mEntries.get(value);
+            return entry != null ? entry : mDefault;
+        }
+
+        /**
+         * Returns the keys turned on and off when the key changes between
+         * the two entries, or null if both are the same entry.
+         */
+        Transition getTransition(Entry from, Entry to) {
+            return mTransitions[from.mIndex][to.mIndex];
+        }
+    }
+
+    static final class Entry {
+        final String name;
+        private final int mIndex;
+        private final String[] mKeys;
+        private final Map<String, String> mValues;
+
+        private Entry(int index, String name, JSONObject list) {
+            mIndex = index;
+            this.name = name;
+            if (list == null || list.length() == 0) {
+                mKeys = EMPTY;
+                mValues = Collections.emptyMap();
+                return;
+            }
+            mKeys = new String[list.length()];
+            mValues = new HashMap<>();
+            Iterator<String> it = list.keys();
+            for (int i = 0; it.hasNext(); i++) {
+                String key = it.next();
+                mKeys[i] = key;
+                Object value = list.opt(key);
+                if (value instanceof JSONObject || value instanceof JSONArray) {
+                    Log.w(TAG, "Unexpected value for " + key + " in " + name);
+                }
+                mValues.put(key, String.valueOf(value));
+            }
+        }
+
+        /** The keys this entry overrides. */
+        String[] getKeys() {
+            return mKeys;
+        }
+
+        /** The overridden value of the key, or null if it is not overridden. */
+        String getValue(String key) {
+            return mValues.get(key);
+        }
+
+        boolean hasKey(String key) {
+            return mValues.containsKey(key);
+        }
+    }
+
+    static final class Transition {
+        /** Keys overridden by the old entry but not by the new one. */
+        final String[] turnOn;
+        /** Keys overridden by the new entry but not by the old one. */
+        final String[] turnOff;
+
+        private Transition(Entry from, Entry to) {
+            turnOn = difference(from, to);
+            turnOff = difference(to, from);
+        }
+
+        private static String[] difference(Entry a, Entry b) {
+            List<String> result = new ArrayList<>();
+            for (String key : a.mKeys) {
+                if (!b.hasKey(key)) {
+                    result.add(key);
+                }
+            }
+            return result.isEmpty() ? EMPTY : result.toArray(new String[result.size()]);
+        }
+    }
+}
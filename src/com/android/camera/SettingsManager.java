@@ -90,7 +90,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -275,7 +274,8 @@ public class SettingsManager implements ListMenu.SettingsListener {
     private boolean mIsFrontCameraPresent = false;
     private boolean mHasMultiCamera = false;
     private boolean mIsHFRSupported = false;
-    private JSONObject mDependency;
+    private static SettingsDependencyGraph sDependencyGraph;
+    private SettingsDependencyGraph mDependency;
     private int mCameraId;
     private int mBackCamId = -1;
     private int mFrontCamId = -1;
@@ -366,7 +366,7 @@ public class SettingsManager implements ListMenu.SettingsListener {
             e.printStackTrace();
         }
 
-        mDependency = parseJson("dependency.json");
+        mDependency = getDependencyGraph();
     }
 
     public void reloadCharacteristics(int cameraId){
@@ -709,11 +709,9 @@ public class SettingsManager implements ListMenu.SettingsListener {
             String baseKey = pref.getKey();
             String value = pref.getValue();
 
-            JSONObject dependency = getDependencyList(baseKey, value);
+            SettingsDependencyGraph.Entry dependency = mDependency.getEntry(baseKey, value);
             if (dependency != null) {
-                Iterator<String> keys = dependency.keys();
-                while (keys.hasNext()) {
-                    String key = keys.next();
+                for (String key : dependency.getKeys()) {
                     pref = mPreferenceGroup.findPreference(key);
                     if (pref == null) continue; //filtered?
                     Set set = mDependendsOnMap.get(key);
@@ -744,13 +742,13 @@ public class SettingsManager implements ListMenu.SettingsListener {
             Set<String> dependsOnSet = mDependendsOnMap.get(keyToProcess);
             String dependentKey = dependsOnSet.iterator().next();
             String value = getValue(dependentKey);
-            JSONObject dependencyList = getDependencyList(dependentKey, value);
+            SettingsDependencyGraph.Entry dependencyList =
+                    mDependency.getEntry(dependentKey, value);
 
-            String newValue = null;
-            try {
-                newValue = dependencyList.getString(keyToProcess);
-            } catch (JSONException e) {
-                Log.w(TAG, "initializeValueMap JSONException No value for:" + keyToProcess);
+            String newValue = dependencyList == null ? null
+                    : dependencyList.getValue(keyToProcess);
+            if (newValue == null) {
+                Log.w(TAG, "initializeValueMap No value for:" + keyToProcess);
                 continue;
             }
             Values values = new Values(getValue(keyToProcess), newValue);
@@ -771,41 +769,15 @@ public class SettingsManager implements ListMenu.SettingsListener {
         mValuesMap.put(changedPrefKey, values);
         changed.add(new SettingState(changedPrefKey, values));
 
-        JSONObject map = getDependencyMapForKey(changedPrefKey);
-        if (map == null || getDependencyKey(map, value).equals(getDependencyKey(map,prevValue)))
-            return changed;
-
-        Set<String> turnOn = new HashSet<>();
-        Set<String> turnOff = new HashSet<>();
+        SettingsDependencyGraph.Rule rule = mDependency.getRule(changedPrefKey);
+        if (rule == null) return changed;
+        SettingsDependencyGraph.Entry dependencyList = rule.get(value);
+        SettingsDependencyGraph.Transition transition =
+                rule.getTransition(rule.get(prevValue), dependencyList);
+        if (transition == null) return changed;
 
-        JSONObject dependencyList = getDependencyList(changedPrefKey, value);
-        JSONObject originalDependencyList = getDependencyList(changedPrefKey, prevValue);
-
-        Iterator<String> it = null;
-        if (originalDependencyList != null) {
-            it = originalDependencyList.keys();
-            while (it != null && it.hasNext()) {
-                turnOn.add(it.next());
-            }
-        }
-        if (dependencyList != null) {
-            it = dependencyList.keys();
-            while (it != null && it.hasNext()) {
-                turnOff.add(it.next());
-            }
-        }
-        if (originalDependencyList != null) {
-            it = originalDependencyList.keys();
-            while (it != null && it.hasNext()) {
-                turnOff.remove(it.next());
-            }
-        }
-        if (dependencyList != null) {
-            it = dependencyList.keys();
-            while (it != null && it.hasNext()) {
-                turnOn.remove(it.next());
-            }
-        }
+        String[] turnOn = transition.turnOn;
+        String[] turnOff = transition.turnOff;
 
         for (String keyToTurnOn: turnOn) {
             Set<String> dependsOnSet = mDependendsOnMap.get(keyToTurnOn);
@@ -824,13 +796,7 @@ public class SettingsManager implements ListMenu.SettingsListener {
             values = mValuesMap.get(keyToTurnOff);
             if (values == null) continue;
             if (values != null && values.overriddenValue != null) continue;
-            String newValue = null;
-            try {
-                newValue = dependencyList.getString(keyToTurnOff);
-            } catch (JSONException e) {
-                Log.w(TAG, "checkDependencyAndUpdate JSONException No value for:" + keyToTurnOff);
-                continue;
-            }
+            String newValue = dependencyList.getValue(keyToTurnOff);
             if (newValue == null) continue;
 
             Values newValues = new Values(pref.getValue(), newValue);
@@ -841,14 +807,12 @@ public class SettingsManager implements ListMenu.SettingsListener {
         return changed;
     }
 
-    private void updateBackDependency(String key, Set<String> remove, Set<String> add) {
-        for (CharSequence c : remove) {
-            String currentKey = c.toString();
+    private void updateBackDependency(String key, String[] remove, String[] add) {
+        for (String currentKey : remove) {
             Set<String> dependsOnSet = mDependendsOnMap.get(currentKey);
             if (dependsOnSet != null) dependsOnSet.remove(key);
         }
-        for (CharSequence c : add) {
-            String currentKey = c.toString();
+        for (String currentKey : add) {
             Set<String> dependsOnSet = mDependendsOnMap.get(currentKey);
             if (dependsOnSet == null) {
                 dependsOnSet = new HashSet<>();
@@ -3121,13 +3085,9 @@ public class SettingsManager implements ListMenu.SettingsListener {
     public List<String> getDependentKeys(String key) {
         List<String> list = null;
         String value = getValue(key);
-        JSONObject dependencies = getDependencyList(key, value);
+        SettingsDependencyGraph.Entry dependencies = mDependency.getEntry(key, value);
         if (dependencies != null) {
-            list = new ArrayList<>();
-            Iterator<String> it = dependencies.keys();
-            while (it.hasNext()) {
-                list.add(it.next());
-            }
+            list = new ArrayList<>(Arrays.asList(dependencies.getKeys()));
         }
         return list;
     }
@@ -3151,39 +3111,19 @@ public class SettingsManager implements ListMenu.SettingsListener {
         }
     }
 
-    private JSONObject getDependencyMapForKey(String key) {
-        if (mDependency == null) return null;
-        try {
-            return mDependency.getJSONObject(key);
-        } catch (JSONException e) {
-            if (DEBUG) {
-                Log.w(TAG, "getDependencyMapForKey JSONException No value for:" + key);
+    /**
+     * Returns the dependency graph, compiled from dependency.json once per
+     * process since the asset never changes.
+     */
+    private SettingsDependencyGraph getDependencyGraph() {
+        synchronized (SettingsManager.class) {
+            if (sDependencyGraph == null) {
+                sDependencyGraph = SettingsDependencyGraph.compile(parseJson("dependency.json"));
             }
-            return null;
+            return sDependencyGraph;
         }
     }
 
-    private JSONObject getDependencyList(String key, String value) {
-        JSONObject dependencyMap = getDependencyMapForKey(key);
-        if (dependencyMap == null) return null;
-        if (!dependencyMap.has(value)) value = "default";
-        if (!dependencyMap.has(value)) return null;
-        value = getDependencyKey(dependencyMap, value);
-        try {
-            return dependencyMap.getJSONObject(value);
-        } catch (JSONException e) {
-            if (DEBUG) {
-                Log.w(TAG, "getDependencyList JSONException No value for:" + key);
-            }
-            return null;
-        }
-    }
-
-    private String getDependencyKey(JSONObject dependencyMap, String value) {
-        if (!dependencyMap.has(value)) value = "default";
-        return value;
-    }
-
     public void restoreSettings() {
         clearPerCameraPreferences();
         mValuesMap.clear();
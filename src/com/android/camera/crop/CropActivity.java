@@ -42,6 +42,7 @@ import android.view.View.OnClickListener;
 import android.view.WindowManager;
 import android.widget.Toast;
 
+import com.android.camera.util.DecodeExecutor;
 import org.codeaurora.snapcam.R;
 
 import java.io.ByteArrayInputStream;
@@ -170,7 +171,7 @@ public class CropActivity extends Activity {
             final View loading = findViewById(R.id.loading);
             loading.setVisibility(View.VISIBLE);
             mLoadBitmapTask = new LoadBitmapTask();
-            mLoadBitmapTask.execute(uri);
+            mLoadBitmapTask.executeOnExecutor(DecodeExecutor.getInstance(), uri);
         } else {
             cannotLoadImage();
             done();
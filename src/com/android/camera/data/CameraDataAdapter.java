@@ -34,6 +34,7 @@ import com.android.camera.ui.FilmStripView.ImageData;
 
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.List;
 
 /**
  * A {@link LocalDataAdapter} that provides data in the camera folder.
@@ -42,6 +43,10 @@ public class CameraDataAdapter implements LocalDataAdapter {
     private static final String TAG = "CAM_CameraDataAdapter";
 
     private static final int DEFAULT_DECODE_SIZE = 1600;
+    // The first page only has to fill the filmstrip, the following ones are
+    // larger to keep the number of UI updates low.
+    private static final int FIRST_PAGE_SIZE = 16;
+    private static final int PAGE_SIZE = 256;
 
     private LocalDataList mImages;
 
@@ -52,6 +57,7 @@ public class CameraDataAdapter implements LocalDataAdapter {
     private int mSuggestedHeight = DEFAULT_DECODE_SIZE;
 
     private LocalData mLocalDataToDelete;
+    private QueryTask mQueryTask;
 
     public CameraDataAdapter(Drawable placeHolder) {
         mImages = new LocalDataList();
@@ -60,8 +66,13 @@ public class CameraDataAdapter implements LocalDataAdapter {
 
     @Override
     public void requestLoad(ContentResolver resolver) {
-        QueryTask qtask = new QueryTask();
-        qtask.execute(resolver);
+        if (mQueryTask != null) {
+            mQueryTask.cancel(false);
+        }
+        mQueryTask = new QueryTask();
+        // Not on the serial executor, so that inserts are not queued behind
+        // the whole load.
+        mQueryTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, resolver);
     }
 
     @Override
@@ -130,62 +141,21 @@ public class CameraDataAdapter implements LocalDataAdapter {
         mListener.onDataRemoved(dataID, d);
     }
 
-    // TODO: put the database query on background thread
     @Override
     public void addNewVideo(ContentResolver cr, Uri uri) {
-        Cursor c = cr.query(uri,
-                LocalMediaData.VideoData.QUERY_PROJECTION,
-                MediaStore.Video.Media.DATA + " like ? or " +
-                MediaStore.Video.Media.DATA + " like ? ", getCameraPath(),
-                LocalMediaData.VideoData.QUERY_ORDER);
-        if (c == null || !c.moveToFirst()) {
-            return;
-        }
-        int pos = findDataByContentUri(uri);
-        LocalMediaData.VideoData newData = LocalMediaData.VideoData.buildFromCursor(c);
-        if (newData != null) {
-            if (pos != -1) {
-                // A duplicate one, just do a substitute.
-                updateData(pos, newData);
-            } else {
-                // A new data.
-                insertData(newData);
-            }
-        } else {
-            Log.e(TAG, "video data not found");
-        }
-        c.close();
+        new InsertTask(cr, uri, true).execute();
     }
 
-    // TODO: put the database query on background thread
     @Override
     public void addNewPhoto(ContentResolver cr, Uri uri) {
-        Cursor c = cr.query(uri,
-                LocalMediaData.PhotoData.QUERY_PROJECTION,
-                MediaStore.Images.Media.DATA + " like ? or " +
-                MediaStore.Images.Media.DATA + " like ? ", getCameraPath(),
-                LocalMediaData.PhotoData.QUERY_ORDER);
-        if (c == null || !c.moveToFirst()) {
-            return;
-        }
-        int pos = findDataByContentUri(uri);
-        LocalMediaData.PhotoData newData = LocalMediaData.PhotoData.buildFromCursor(c);
-        if (pos != -1) {
-            // a duplicate one, just do a substitute.
-            Log.v(TAG, "found duplicate photo");
-            updateData(pos, newData);
-        } else {
-            // a new data.
-            insertData(newData);
-        }
-        c.close();
+        new InsertTask(cr, uri, false).execute();
     }
 
     @Override
     public int findDataByContentUri(Uri uri) {
-        // LocalDataList will return in O(1) if the uri is not contained.
-        // Otherwise the performance is O(n), but this is acceptable as we will
-        // most often call this to find an element at the beginning of the list.
+        // LocalDataList looks the uri up in its position map. Positions past
+        // the first insert or removal are re-indexed lazily, once, on the
+        // first lookup that lands there; every other lookup is O(1).
         return mImages.indexOf(uri);
     }
 
@@ -210,6 +180,10 @@ public class CameraDataAdapter implements LocalDataAdapter {
 
     @Override
     public void flush() {
+        if (mQueryTask != null) {
+            mQueryTask.cancel(false);
+            mQueryTask = null;
+        }
         replaceData(new LocalDataList());
     }
 
@@ -271,93 +245,226 @@ public class CameraDataAdapter implements LocalDataAdapter {
         }
     }
 
+    /**
+     * Appends a page of loaded data, which is older than everything already
+     * in the list except for data inserted meanwhile.
+     */
+    private void appendData(List<LocalData> page) {
+        int oldSize = mImages.size();
+        for (LocalData data : page) {
+            if (mImages.indexOf(data.getContentUri()) == -1) {
+                mImages.add(data);
+            }
+        }
+        if (mImages.size() != oldSize && mListener != null) {
+            // Let the filmstrip fill its empty slots past the old end.
+            mListener.onDataUpdated(new UpdateReporter() {
+                @Override
+                public boolean isDataRemoved(int dataID) {
+                    return false;
+                }
+
+                @Override
+                public boolean isDataUpdated(int dataID) {
+                    return false;
+                }
+            });
+        }
+    }
+
+    private static Cursor queryPhotos(ContentResolver resolver, Uri uri) {
+        return resolver.query(uri,
+                LocalMediaData.PhotoData.QUERY_PROJECTION,
+                MediaStore.Images.Media.DATA + " like ? or " +
+                MediaStore.Images.Media.DATA + " like ? ", getCameraPath(),
+                LocalMediaData.PhotoData.QUERY_ORDER);
+    }
+
+    private static Cursor queryVideos(ContentResolver resolver, Uri uri) {
+        return resolver.query(uri,
+                LocalMediaData.VideoData.QUERY_PROJECTION,
+                MediaStore.Video.Media.DATA + " like ? or " +
+                MediaStore.Video.Media.DATA + " like ? ", getCameraPath(),
+                LocalMediaData.VideoData.QUERY_ORDER);
+    }
+
     private static String[] getCameraPath() {
         String[] cameraPath =
                 {Storage.DIRECTORY + "/%", SDCard.instance().getDirectory() + "/%"};
         return cameraPath;
     }
 
-    private class QueryTask extends AsyncTask<ContentResolver, Void, LocalDataList> {
+    private class QueryTask extends AsyncTask<ContentResolver, List<LocalData>, Void> {
+        private static final int PHOTOS = 0;
+        private static final int VIDEOS = 1;
+
+        private boolean mFirstPage = true;
 
         /**
-         * Loads all the photo and video data in the camera folder in background
-         * and combine them into one single list.
+         * Loads all the photo and video data in the camera folder in background.
+         * Both cursors are already sorted newest first, so they are merged as
+         * they are read and the result is published page by page.
          *
          * @param resolver {@link ContentResolver} to load all the data.
-         * @return An {@link ArrayList} of all loaded data.
          */
         @Override
-        protected LocalDataList doInBackground(ContentResolver... resolver) {
-            LocalDataList l = new LocalDataList();
-            // Photos
-            Cursor c = resolver[0].query(
-                    LocalMediaData.PhotoData.CONTENT_URI,
-                    LocalMediaData.PhotoData.QUERY_PROJECTION,
-                    MediaStore.Images.Media.DATA + " like ? or " +
-                    MediaStore.Images.Media.DATA + " like ? ", getCameraPath(),
-                    LocalMediaData.PhotoData.QUERY_ORDER);
-            if (c != null && c.moveToFirst()) {
-                // build up the list.
-                while (true) {
-                    LocalData data = LocalMediaData.PhotoData.buildFromCursor(c);
-                    if (data != null) {
-                        if (data.getMimeType().equals(PlaceholderManager.PLACEHOLDER_MIME_TYPE)) {
-                            l.add(new InProgressDataWrapper(data, true));
-                        } else {
-                            l.add(data);
+        protected Void doInBackground(ContentResolver... resolver) {
+            Cursor[] cursors = new Cursor[2];
+            try {
+                cursors[PHOTOS] = queryPhotos(resolver[0], LocalMediaData.PhotoData.CONTENT_URI);
+                cursors[VIDEOS] = queryVideos(resolver[0], LocalMediaData.VideoData.CONTENT_URI);
+                LocalData[] heads = new LocalData[cursors.length];
+                for (int i = 0; i < cursors.length; i++) {
+                    heads[i] = next(i, cursors[i]);
+                }
+
+                Comparator<LocalData> comp = new LocalData.NewestFirstComparator();
+                int pageSize = FIRST_PAGE_SIZE;
+                List<LocalData> page = new ArrayList<LocalData>(pageSize);
+                while (!isCancelled()) {
+                    int newest = -1;
+                    for (int i = 0; i < heads.length; i++) {
+                        if (heads[i] != null && (newest == -1
+                                || comp.compare(heads[i], heads[newest]) < 0)) {
+                            newest = i;
                         }
-                    } else {
-                        Log.e(TAG, "Error loading data:"
-                                + c.getString(LocalMediaData.PhotoData.COL_DATA));
                     }
-                    if (c.isLast()) {
+                    if (newest == -1) {
                         break;
                     }
-                    c.moveToNext();
+                    page.add(heads[newest]);
+                    heads[newest] = next(newest, cursors[newest]);
+                    if (page.size() == pageSize) {
+                        publishProgress(page);
+                        pageSize = PAGE_SIZE;
+                        page = new ArrayList<LocalData>(pageSize);
+                    }
+                }
+                if (!page.isEmpty()) {
+                    publishProgress(page);
+                }
+            } finally {
+                for (Cursor c : cursors) {
+                    if (c != null) {
+                        c.close();
+                    }
                 }
             }
-            if (c != null) {
-                c.close();
-            }
+            return null;
+        }
 
-            c = resolver[0].query(
-                    LocalMediaData.VideoData.CONTENT_URI,
-                    LocalMediaData.VideoData.QUERY_PROJECTION,
-                    MediaStore.Video.Media.DATA + " like ? or " +
-                    MediaStore.Video.Media.DATA + " like ? ", getCameraPath(),
-                    LocalMediaData.VideoData.QUERY_ORDER);
-            if (c != null && c.moveToFirst()) {
-                // build up the list.
-                c.moveToFirst();
-                while (true) {
+        // Returns the next valid data of the cursor, or null at its end.
+        private LocalData next(int kind, Cursor c) {
+            if (c == null) {
+                return null;
+            }
+            while (c.moveToNext()) {
+                if (kind == VIDEOS) {
                     LocalData data = LocalMediaData.VideoData.buildFromCursor(c);
                     if (data != null) {
-                        l.add(data);
-                    } else {
-                        Log.e(TAG, "Error loading data:"
-                                + c.getString(LocalMediaData.VideoData.COL_DATA));
+                        return data;
                     }
-                    if (!c.isLast()) {
-                        c.moveToNext();
-                    } else {
-                        break;
+                    Log.e(TAG, "Error loading data:"
+                            + c.getString(LocalMediaData.VideoData.COL_DATA));
+                } else {
+                    LocalData data = LocalMediaData.PhotoData.buildFromCursor(c);
+                    if (data != null) {
+                        if (data.getMimeType().equals(PlaceholderManager.PLACEHOLDER_MIME_TYPE)) {
+                            return new InProgressDataWrapper(data, true);
+                        }
+                        return data;
                     }
+                    Log.e(TAG, "Error loading data:"
+                            + c.getString(LocalMediaData.PhotoData.COL_DATA));
                 }
             }
-            if (c != null) {
-                c.close();
+            return null;
+        }
+
+        @Override
+        protected void onProgressUpdate(List<LocalData>... pages) {
+            if (mQueryTask != this) {
+                return;
             }
+            for (List<LocalData> page : pages) {
+                if (mFirstPage) {
+                    mFirstPage = false;
+                    LocalDataList l = new LocalDataList();
+                    for (LocalData data : page) {
+                        l.add(data);
+                    }
+                    replaceData(l);
+                } else {
+                    appendData(page);
+                }
+            }
+        }
 
-            if (l.size() != 0) {
-                l.sort(new LocalData.NewestFirstComparator());
+        @Override
+        protected void onPostExecute(Void v) {
+            if (mQueryTask != this) {
+                return;
+            }
+            mQueryTask = null;
+            if (mFirstPage) {
+                // Nothing was found.
+                replaceData(new LocalDataList());
             }
+        }
+    }
+
+    /**
+     * Queries a newly added photo or video in background and inserts it, or
+     * substitutes the existing data with the same uri.
+     */
+    private class InsertTask extends AsyncTask<Void, Void, LocalData> {
+        private final ContentResolver mResolver;
+        private final Uri mUri;
+        private final boolean mIsVideo;
+
+        InsertTask(ContentResolver resolver, Uri uri, boolean isVideo) {
+            mResolver = resolver;
+            mUri = uri;
+            mIsVideo = isVideo;
+        }
 
-            return l;
+        @Override
+        protected LocalData doInBackground(Void... v) {
+            Cursor c = mIsVideo ? queryVideos(mResolver, mUri) : queryPhotos(mResolver, mUri);
+            if (c == null) {
+                return null;
+            }
+            try {
+                if (!c.moveToFirst()) {
+                    return null;
+                }
+                if (mIsVideo) {
+                    LocalData data = LocalMediaData.VideoData.buildFromCursor(c);
+                    if (data == null) {
+                        Log.e(TAG, "video data not found");
+                    }
+                    return data;
+                }
+                return LocalMediaData.PhotoData.buildFromCursor(c);
+            } finally {
+                c.close();
+            }
         }
 
         @Override
-        protected void onPostExecute(LocalDataList l) {
-            replaceData(l);
+        protected void onPostExecute(LocalData newData) {
+            if (newData == null) {
+                return;
+            }
+            int pos = findDataByContentUri(mUri);
+            if (pos != -1) {
+                // A duplicate one, just do a substitute.
+                Log.v(TAG, "found duplicate data");
+                updateData(pos, newData);
+            } else {
+                // A new data.
+                insertData(newData);
+            }
         }
     }
 
@@ -18,37 +18,22 @@ package com.android.camera.data;
 
 import android.net.Uri;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedList;
 
 /**
  * Fast access data structure for an ordered LocalData list.
  */
 public class LocalDataList {
-    /**
-     * We use this as a way to compare a Uri to LocalData instances inside a
-     * LinkedList. A linked list in indexOf does a other.equals(get(i)).
-     */
-    private static class UriWrapper {
-        private final Uri mUri;
-
-        public UriWrapper(Uri uri) {
-            mUri = uri;
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (!(o instanceof LocalData)) {
-                return false;
-            }
-            return mUri.equals(((LocalData) o).getContentUri());
-        }
-    }
-
-    private LinkedList<LocalData> mList = new LinkedList<LocalData>();
-    private HashMap<Uri, LocalData> mUriMap = new HashMap<Uri, LocalData>();
+    private ArrayList<LocalData> mList = new ArrayList<LocalData>();
+    // Maps each uri to its position in mList. The positions are only
+    // guaranteed to be up to date below mValidCount, the rest are fixed up
+    // lazily on the next lookup, so a burst of inserts or removals near the
+    // front of the list only re-indexes once.
+    private HashMap<Uri, Integer> mUriMap = new HashMap<Uri, Integer>();
+    private int mValidCount;
 
     public LocalData get(int index) {
         return mList.get(index);
@@ -56,27 +41,38 @@ public class LocalDataList {
 
     public LocalData remove(int index) {
         LocalData removedItem = mList.remove(index);
-        mUriMap.remove(removedItem);
+        mUriMap.remove(removedItem.getContentUri());
+        invalidateFrom(index);
         return removedItem;
     }
 
     public LocalData get(Uri uri) {
-        return mUriMap.get(uri);
+        int index = indexOf(uri);
+        return index == -1 ? null : mList.get(index);
     }
 
     public void set(int pos, LocalData data) {
-        mList.set(pos, data);
-        mUriMap.put(data.getContentUri(), data);
+        LocalData oldItem = mList.set(pos, data);
+        Uri uri = data.getContentUri();
+        if (!oldItem.getContentUri().equals(uri)) {
+            mUriMap.remove(oldItem.getContentUri());
+        }
+        mUriMap.put(uri, pos);
     }
 
     public void add(LocalData data) {
+        int pos = mList.size();
         mList.add(data);
-        mUriMap.put(data.getContentUri(), data);
+        mUriMap.put(data.getContentUri(), pos);
+        if (mValidCount == pos) {
+            mValidCount++;
+        }
     }
 
     public void add(int pos, LocalData data) {
         mList.add(pos, data);
-        mUriMap.put(data.getContentUri(), data);
+        mUriMap.put(data.getContentUri(), pos);
+        invalidateFrom(pos);
     }
 
     public int size() {
@@ -85,17 +81,32 @@ public class LocalDataList {
 
     public void sort(Comparator<LocalData> comparator) {
         Collections.sort(mList, comparator);
+        invalidateFrom(0);
     }
 
     /**
-     * This implementation routes through to LinkedList.indexOf, so performs in
-     * O(n) but has a fast exit path for when the uri is not contained in the
-     * list, and immediately returns -1;
+     * Returns the position of the data with the given uri, or -1 if it is not
+     * contained in the list. This is O(1) unless the list was modified before
+     * the position of the uri since the last lookup.
      */
     public int indexOf(Uri uri) {
-        if (!mUriMap.containsKey(uri)) {
+        Integer index = mUriMap.get(uri);
+        if (index == null) {
             return -1;
         }
-        return mList.indexOf(new UriWrapper(uri));
+        if (index < mValidCount) {
+            return index;
+        }
+        for (int i = mValidCount; i < mList.size(); i++) {
+            mUriMap.put(mList.get(i).getContentUri(), i);
+        }
+        mValidCount = mList.size();
+        return mUriMap.get(uri);
+    }
+
+    private void invalidateFrom(int pos) {
+        if (pos < mValidCount) {
+            mValidCount = pos;
+        }
     }
 }
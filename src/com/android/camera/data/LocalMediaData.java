@@ -38,12 +38,16 @@ import android.view.ViewGroup;
 import android.widget.FrameLayout;
 import android.widget.ImageView;
 
+import com.android.camera.exif.ExifScanner;
 import com.android.camera.ui.FilmStripView;
 import com.android.camera.util.CameraUtil;
+import com.android.camera.util.DecodeExecutor;
 import com.android.camera.util.PhotoSphereHelper;
 import org.codeaurora.snapcam.R;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.text.DateFormat;
 import java.util.Date;
 import java.util.Locale;
@@ -55,6 +59,11 @@ import java.util.Locale;
  * return a bitmap.
  */
 public abstract class LocalMediaData implements LocalData {
+    /*
+     * Remove loading bitmaps for this adapter as we no longer use it.
+     */
+    private static final boolean LOAD_BITMAPS = false;
+
     protected final long mContentId;
     protected final String mTitle;
     protected final String mMimeType;
@@ -80,6 +89,14 @@ public abstract class LocalMediaData implements LocalData {
      */
     protected Boolean mUsing = false;
 
+    /**
+     * The full decode that replaces a preview once the data is shown in full
+     * screen. Only accessed on the main thread.
+     */
+    protected BitmapLoadTask mPendingUpgrade;
+    /** The last started load, canceled when the view is recycled. */
+    private BitmapLoadTask mLoadTask;
+
     public LocalMediaData (long contentId, String title, String mimeType,
             long dateTakenInSeconds, long dateModifiedInSeconds, String path,
             int width, int height, long sizeInBytes, double latitude,
@@ -193,7 +210,28 @@ public abstract class LocalMediaData implements LocalData {
 
     @Override
     public void onFullScreen(boolean fullScreen) {
-        // do nothing.
+        if (fullScreen) {
+            upgradePreview();
+        }
+    }
+
+    /**
+     * Starts the full decode of the data if only a preview is shown.
+     */
+    protected void upgradePreview() {
+        if (mPendingUpgrade != null) {
+            executeLoad(mPendingUpgrade);
+            mPendingUpgrade = null;
+        }
+    }
+
+    private void executeLoad(BitmapLoadTask task) {
+        // A newer load always supersedes the previous one.
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+        }
+        mLoadTask = task;
+        task.executeOnExecutor(DecodeExecutor.getInstance());
     }
 
     @Override
@@ -205,13 +243,36 @@ public abstract class LocalMediaData implements LocalData {
             int decodeWidth, int decodeHeight, Drawable placeHolder,
             LocalDataAdapter adapter) {
         v.setScaleType(ImageView.ScaleType.FIT_XY);
+        if (!LOAD_BITMAPS) {
+            v.setImageDrawable(placeHolder);
+            return v;
+        }
+        ThumbnailCache cache = ThumbnailCache.getInstance(ctx);
+        int bucket = ThumbnailCache.getBucket(decodeWidth, decodeHeight);
+        String key = ThumbnailCache.getKey(mMimeType, mContentId, getOrientation(),
+                mDateModifiedInSeconds, bucket);
+        Bitmap cached = cache.getFromMemory(key);
+        if (cached != null) {
+            v.setImageDrawable(new BitmapDrawable(cached));
+            return v;
+        }
         v.setImageDrawable(placeHolder);
-/*
- * Remove loading bitmaps for this adapter as we no longer use it.
- */
-//        BitmapLoadTask task = getBitmapLoadTask(v, decodeWidth, decodeHeight,
-//                ctx.getContentResolver(), adapter);
-//        task.execute();
+        // Decode at the bucket size so that every size in the bucket can
+        // share the cached thumbnail.
+        BitmapLoadTask task = getBitmapLoadTask(v, bucket, bucket,
+                ctx.getContentResolver(), adapter);
+        task.setThumbnailCache(cache, key, bucket);
+        BitmapLoadTask preview = getPreviewLoadTask(v);
+        if (preview != null) {
+            // Show a cheap preview first, the sampled decode only runs once
+            // the data is looked at.
+            preview.setThumbnailCache(cache, key, bucket);
+            mPendingUpgrade = task;
+            executeLoad(preview);
+        } else {
+            mPendingUpgrade = null;
+            executeLoad(task);
+        }
         return v;
     }
 
@@ -235,6 +296,12 @@ public abstract class LocalMediaData implements LocalData {
         synchronized (mUsing) {
             mUsing = false;
         }
+        mPendingUpgrade = null;
+        // The view left the filmstrip, do not decode for it any more.
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+            mLoadTask = null;
+        }
     }
 
     @Override
@@ -286,6 +353,14 @@ public abstract class LocalMediaData implements LocalData {
             ImageView v, int decodeWidth, int decodeHeight,
             ContentResolver resolver, LocalDataAdapter adapter);
 
+    /**
+     * Returns a task loading a quick, low quality preview shown until the
+     * full decode runs, or null to decode right away.
+     */
+    protected BitmapLoadTask getPreviewLoadTask(ImageView v) {
+        return null;
+    }
+
     public static final class PhotoData extends LocalMediaData {
         private static final String TAG = "CAM_PhotoData";
 
@@ -331,8 +406,8 @@ public abstract class LocalMediaData implements LocalData {
         private static final int mSupportedDataActions =
                 LocalData.ACTION_DELETE;
 
-        /** 32K buffer. */
-        private static final byte[] DECODE_TEMP_STORAGE = new byte[32 * 1024];
+        /** Enough to hold the APP1 segment with the EXIF thumbnail. */
+        private static final int EXIF_HEADER_SIZE = 72 * 1024;
 
         /** from MediaStore, can only be 0, 90, 180, 270 */
         private final int mOrientation;
@@ -495,7 +570,7 @@ public abstract class LocalMediaData implements LocalData {
             }
 
             @Override
-            protected Bitmap doInBackground(Void... v) {
+            protected Bitmap decode() {
                 int sampleSize = 1;
                 if (mWidth > mDecodeWidth || mHeight > mDecodeHeight) {
                     int heightRatio = Math.round((float) mHeight / (float) mDecodeHeight);
@@ -506,8 +581,6 @@ public abstract class LocalMediaData implements LocalData {
                 // For correctness, we need to double check the size here. The
                 // good news is that decoding bounds take much less time than
                 // decoding samples like < 1%.
-                // TODO: better organize the decoding and sampling by using a
-                // image cache.
                 int decodedWidth = 0;
                 int decodedHeight = 0;
                 BitmapFactory.Options justBoundsOpts = new BitmapFactory.Options();
@@ -535,19 +608,17 @@ public abstract class LocalMediaData implements LocalData {
 
                 BitmapFactory.Options opts = new BitmapFactory.Options();
                 opts.inSampleSize = sampleSize;
-                opts.inTempStorage = DECODE_TEMP_STORAGE;
                 if (isCancelled() || !isUsing()) {
                     return null;
                 }
-                Bitmap b = BitmapFactory.decodeFile(mPath, opts);
+                // A bitmap that gets rotated is only an intermediate.
+                Bitmap b = DecodeExecutor.decodeFile(mPath, opts, mOrientation != 0);
 
                 if (mOrientation != 0 && b != null) {
                     if (isCancelled() || !isUsing()) {
                         return null;
                     }
-                    Matrix m = new Matrix();
-                    m.setRotate(mOrientation);
-                    b = Bitmap.createBitmap(b, 0, 0, b.getWidth(), b.getHeight(), m, false);
+                    b = rotate(b, mOrientation);
                 }
                 return b;
             }
@@ -561,6 +632,89 @@ public abstract class LocalMediaData implements LocalData {
             }
         }
 
+        @Override
+        protected BitmapLoadTask getPreviewLoadTask(ImageView v) {
+            return new ExifThumbnailLoadTask(v);
+        }
+
+        /**
+         * Loads the thumbnail embedded in the EXIF data, found by scanning the
+         * head of the file without parsing any tags.
+         */
+        private final class ExifThumbnailLoadTask extends BitmapLoadTask {
+            public ExifThumbnailLoadTask(ImageView v) {
+                super(v);
+            }
+
+            @Override
+            protected Bitmap decode() {
+                if (isCancelled() || !isUsing()) {
+                    return null;
+                }
+                byte[] header = new byte[EXIF_HEADER_SIZE];
+                int length = 0;
+                RandomAccessFile file = null;
+                try {
+                    file = new RandomAccessFile(mPath, "r");
+                    int n;
+                    while (length < header.length
+                            && (n = file.read(header, length, header.length - length)) > 0) {
+                        length += n;
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to read " + mPath, e);
+                    return null;
+                } finally {
+                    if (file != null) {
+                        try {
+                            file.close();
+                        } catch (IOException e) {
+                            // Do nothing
+                        }
+                    }
+                }
+                ExifScanner scanner = new ExifScanner();
+                if (!scanner.scan(header, 0, length) || !scanner.hasThumbnail()) {
+                    return null;
+                }
+                Bitmap b = DecodeExecutor.decodeByteArray(header,
+                        scanner.getThumbnailOffset(), scanner.getThumbnailLength(),
+                        new BitmapFactory.Options(), mOrientation != 0);
+                if (b != null && mOrientation != 0) {
+                    b = rotate(b, mOrientation);
+                }
+                return b;
+            }
+
+            @Override
+            protected boolean isCacheable() {
+                // Keep the cache for the sampled decode.
+                return false;
+            }
+
+            @Override
+            protected void onPostExecute(Bitmap bitmap) {
+                if (bitmap == null) {
+                    // No usable thumbnail, decode right away.
+                    upgradePreview();
+                    return;
+                }
+                super.onPostExecute(bitmap);
+                if (isCacheHit()) {
+                    // Already the sampled decode.
+                    mPendingUpgrade = null;
+                }
+            }
+        }
+
+        private static Bitmap rotate(Bitmap b, int orientation) {
+            Matrix m = new Matrix();
+            m.setRotate(orientation);
+            Bitmap rotated = Bitmap.createBitmap(b, 0, 0, b.getWidth(), b.getHeight(), m, false);
+            DecodeExecutor.releaseScratch(b);
+            return rotated;
+        }
+
         @Override
         public boolean rotate90Degrees(Context context, LocalDataAdapter adapter,
                 int currentDataId, boolean clockwise) {
@@ -803,7 +957,7 @@ public abstract class LocalMediaData implements LocalData {
             }
 
             @Override
-            protected Bitmap doInBackground(Void... v) {
+            protected Bitmap decode() {
                 if (isCancelled() || !isUsing()) {
                     return null;
                 }
@@ -814,7 +968,8 @@ public abstract class LocalMediaData implements LocalData {
                     byte[] data = retriever.getEmbeddedPicture();
                     if (!isCancelled() && isUsing()) {
                         if (data != null) {
-                            bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+                            bitmap = DecodeExecutor.decodeByteArray(data, 0, data.length,
+                                    new BitmapFactory.Options(), false);
                         }
                         if (bitmap == null) {
                             bitmap = retriever.getFrameAtTime();
@@ -840,16 +995,66 @@ public abstract class LocalMediaData implements LocalData {
 
     /**
      * An {@link AsyncTask} class that loads the bitmap in the background
-     * thread. Sub-classes should implement their own
-     * {@code BitmapLoadTask#doInBackground(Void...)}."
+     * thread. The {@link ThumbnailCache} is consulted first, sub-classes
+     * should implement their own {@code BitmapLoadTask#decode()}.
      */
     protected abstract class BitmapLoadTask extends AsyncTask<Void, Void, Bitmap> {
         protected ImageView mView;
+        private ThumbnailCache mCache;
+        private String mKey;
+        private int mBucket;
+        private boolean mCacheHit;
 
         protected BitmapLoadTask(ImageView v) {
             mView = v;
         }
 
+        void setThumbnailCache(ThumbnailCache cache, String key, int bucket) {
+            mCache = cache;
+            mKey = key;
+            mBucket = bucket;
+        }
+
+        /**
+         * Decodes the bitmap from the original file, already rotated.
+         */
+        protected abstract Bitmap decode();
+
+        /** Whether the result of {@link #decode()} may be cached. */
+        protected boolean isCacheable() {
+            return true;
+        }
+
+        /** Whether the result came from the {@link ThumbnailCache}. */
+        protected boolean isCacheHit() {
+            return mCacheHit;
+        }
+
+        @Override
+        protected Bitmap doInBackground(Void... v) {
+            if (mCache == null) {
+                return decode();
+            }
+            Bitmap b = mCache.get(mKey);
+            if (b != null) {
+                mCacheHit = true;
+                return b;
+            }
+            b = decode();
+            if (b == null || isCancelled() || !isCacheable()) {
+                return b;
+            }
+            // Video frames come at full size, keep the cached copy small.
+            int size = Math.max(b.getWidth(), b.getHeight());
+            if (size > mBucket * 2) {
+                float scale = (float) mBucket / size;
+                b = Bitmap.createScaledBitmap(b, Math.round(b.getWidth() * scale),
+                        Math.round(b.getHeight() * scale), true);
+            }
+            mCache.put(mKey, b);
+            return b;
+        }
+
         @Override
         protected void onPostExecute(Bitmap bitmap) {
             if (!isUsing()) {
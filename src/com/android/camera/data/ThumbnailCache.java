@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.data;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.camera.util.DecodeExecutor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A two level cache of the filmstrip thumbnails. Decoded bitmaps are kept in
+ * memory up to a byte budget, and every decoded thumbnail is also written to
+ * the cache folder as a small JPEG that is already rotated, so scrolling back
+ * to an item or reopening the camera does not decode the original file again.
+ *
+ * Thumbnails are keyed by media type, content id, orientation, modification
+ * date and a size bucket, so a rotated or edited item never hits a stale
+ * entry, and an image and a video sharing a content id never share one.
+ */
+public class ThumbnailCache {
+    private static final String TAG = "CAM_ThumbnailCache";
+
+    private static final String DIR_NAME = "thumbnails";
+    private static final int JPEG_QUALITY = 85;
+    private static final long DISK_BUDGET = 32 * 1024 * 1024;
+    // The smallest bucket, buckets above it are powers of two.
+    private static final int MIN_BUCKET = 256;
+
+    private static ThumbnailCache sInstance;
+
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final File mDir;
+
+    // Guarded by this.
+    private long mDiskBytes = -1;
+    private int mMemoryHits;
+    private int mDiskHits;
+    private int mMisses;
+
+    public static synchronized ThumbnailCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ThumbnailCache(
+                    new File(context.getApplicationContext().getCacheDir(), DIR_NAME),
+                    (int) Math.min(Runtime.getRuntime().maxMemory() / 16, Integer.MAX_VALUE));
+        }
+        return sInstance;
+    }
+
+    private ThumbnailCache(File dir, int memoryBudget) {
+        mDir = dir;
+        mMemoryCache = new LruCache<String, Bitmap>(memoryBudget) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * Rounds the requested decode size up to the bucket the thumbnail is
+     * cached at, so that nearby sizes share one entry.
+     */
+    public static int getBucket(int decodeWidth, int decodeHeight) {
+        int size = Math.max(decodeWidth, decodeHeight);
+        int bucket = MIN_BUCKET;
+        while (bucket < size) {
+            bucket <<= 1;
+        }
+        return bucket;
+    }
+
+    /**
+     * Returns the cache key of a thumbnail. Images and videos live in
+     * separate media store tables, so only the top level type of the mime
+     * type together with the content id identifies the item.
+     */
+    public static String getKey(String mimeType, long contentId, int orientation,
+            long dateModified, int bucket) {
+        int slash = mimeType.indexOf('/');
+        String mediaType = slash < 0 ? mimeType : mimeType.substring(0, slash);
+        return mediaType + "_" + contentId + "_" + orientation + "_" + dateModified
+                + "_" + bucket;
+    }
+
+    /**
+     * Returns the thumbnail from memory, without any I/O. This can be called
+     * on the main thread.
+     */
+    public Bitmap getFromMemory(String key) {
+        Bitmap b = mMemoryCache.get(key);
+        if (b != null) {
+            synchronized (this) {
+                mMemoryHits++;
+            }
+        }
+        return b;
+    }
+
+    /**
+     * Returns the thumbnail from memory or disk, or null if it has to be
+     * decoded from the original. Must not be called on the main thread.
+     */
+    public Bitmap get(String key) {
+        Bitmap b = getFromMemory(key);
+        if (b != null) {
+            return b;
+        }
+        File file = new File(mDir, key + ".jpg");
+        if (file.isFile()) {
+            b = DecodeExecutor.decodeFile(file.getPath(), new BitmapFactory.Options(), false);
+            if (b != null) {
+                // Keep the file at the end of the eviction order.
+                file.setLastModified(System.currentTimeMillis());
+                mMemoryCache.put(key, b);
+                synchronized (this) {
+                    mDiskHits++;
+                }
+                return b;
+            }
+            file.delete();
+        }
+        synchronized (this) {
+            mMisses++;
+        }
+        return null;
+    }
+
+    /**
+     * Adds a decoded, already rotated thumbnail to both levels. Must not be
+     * called on the main thread.
+     */
+    public void put(String key, Bitmap bitmap) {
+        mMemoryCache.put(key, bitmap);
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            return;
+        }
+        File file = new File(mDir, key + ".jpg");
+        File tmp = new File(mDir, key + ".tmp");
+        FileOutputStream out = null;
+        boolean ok = false;
+        try {
+            out = new FileOutputStream(tmp);
+            ok = bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write thumbnail " + key, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    ok = false;
+                }
+            }
+        }
+        if (!ok || !tmp.renameTo(file)) {
+            tmp.delete();
+            return;
+        }
+        trimDisk(file.length());
+    }
+
+    /**
+     * Drops memory cached thumbnails according to the trim level from
+     * {@link ComponentCallbacks2#onTrimMemory}. The disk level is kept.
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            mMemoryCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            mMemoryCache.trimToSize(mMemoryCache.maxSize() / 2);
+        }
+        logStats();
+    }
+
+    public synchronized void logStats() {
+        int total = mMemoryHits + mDiskHits + mMisses;
+        Log.d(TAG, "memoryHits=" + mMemoryHits + " diskHits=" + mDiskHits
+                + " misses=" + mMisses
+                + " hitRate=" + (total == 0 ? 0 : (mMemoryHits + mDiskHits) * 100 / total) + "%"
+                + " memory=" + mMemoryCache.size() + "/" + mMemoryCache.maxSize()
+                + " evictions=" + mMemoryCache.evictionCount()
+                + " disk=" + mDiskBytes);
+    }
+
+    // Deletes the least recently used files once the disk budget is exceeded.
+    private synchronized void trimDisk(long added) {
+        if (mDiskBytes >= 0) {
+            mDiskBytes += added;
+            if (mDiskBytes <= DISK_BUDGET) {
+                return;
+            }
+        }
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File f : files) {
+            total += f.length();
+        }
+        if (total > DISK_BUDGET) {
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    return Long.compare(a.lastModified(), b.lastModified());
+                }
+            });
+            // Trim below the budget so that this does not run on every put.
+            for (int i = 0; i < files.length && total > DISK_BUDGET * 3 / 4; i++) {
+                long length = files[i].length();
+                if (files[i].delete()) {
+                    total -= length;
+                }
+            }
+        }
+        mDiskBytes = total;
+    }
+}
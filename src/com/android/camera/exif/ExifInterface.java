@@ -36,6 +36,7 @@ import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel.MapMode;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -712,6 +713,14 @@ public class ExifInterface {
     private ExifData mData = new ExifData(DEFAULT_BYTE_ORDER);
     public static final ByteOrder DEFAULT_BYTE_ORDER = ByteOrder.BIG_ENDIAN;
 
+    /**
+     * Zero bytes reserved at the end of every Exif header written by this
+     * class, so that {@link #patchExif} can later grow tags without copying
+     * the image data.
+     */
+    public static final int DEFAULT_EXIF_PADDING = 1024;
+    private int mExifPadding = DEFAULT_EXIF_PADDING;
+
     public ExifInterface() {
         mGPSDateStampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
     }
@@ -967,9 +976,23 @@ public class ExifInterface {
         }
         ExifOutputStream eos = new ExifOutputStream(outStream, this);
         eos.setExifData(mData);
+        eos.setPaddingSize(mExifPadding);
         return eos;
     }
 
+    /**
+     * Sets the number of zero bytes reserved after the Exif header by the
+     * writer streams. Use 0 to write the header without any reserve.
+     *
+     * @param padding the number of bytes to reserve.
+     */
+    public void setExifPadding(int padding) {
+        if (padding < 0) {
+            throw new IllegalArgumentException("Padding must be non-negative");
+        }
+        mExifPadding = padding;
+    }
+
     /**
      * Returns an OutputStream object that writes to a file. Exif tags in this
      * ExifInterface object will be added to a jpeg image written to this
@@ -1081,6 +1104,116 @@ public class ExifInterface {
         }
     }
 
+    /**
+     * Patches the exif metadata of a file in place through a memory mapping of
+     * its header. Tags whose size is unchanged are overwritten directly. If any
+     * tag changes size, the whole APP1 segment is serialized again into the
+     * space of the existing one, which succeeds as long as the new header fits
+     * in the old segment and its padding. The image data is never touched.
+     *
+     * @param filename a String containing a filepath for a jpeg file with exif
+     *            tags to patch.
+     * @param tags tags that will be written into the jpeg file.
+     * @return the number of bytes of the file that were rewritten, or -1 if the
+     *         file could not be patched in place. If -1, no changes are made to
+     *         the file.
+     * @throws FileNotFoundException
+     * @throws IOException
+     */
+    public int patchExif(String filename, Collection<ExifTag> tags)
+            throws FileNotFoundException, IOException {
+        RandomAccessFile file = null;
+        InputStream is = null;
+        int touched = -1;
+        try {
+            File temp = new File(filename);
+            is = new BufferedInputStream(new FileInputStream(temp));
+
+            // Parse beginning of APP1 in exif to find size of exif header.
+            ExifParser parser = null;
+            try {
+                parser = ExifParser.parse(is, this);
+            } catch (ExifInvalidFormatException e) {
+                throw new IOException("Invalid exif format : ", e);
+            }
+            int exifSize = parser.getOffsetToExifEndFromSOF();
+            int tiffStart = parser.getTiffStartPosition();
+
+            // Free up resources
+            is.close();
+            is = null;
+            if (tiffStart == 0) {
+                // No exif header to patch.
+                return -1;
+            }
+
+            // Open file for memory mapping.
+            file = new RandomAccessFile(temp, "rw");
+            if (file.length() < exifSize) {
+                throw new IOException("Filesize changed during operation");
+            }
+            MappedByteBuffer buf = file.getChannel().map(MapMode.READ_WRITE, 0, exifSize);
+
+            ExifModifier mod = new ExifModifier(buf, this);
+            for (ExifTag t : tags) {
+                mod.modifyTag(t);
+            }
+            if (mod.commit()) {
+                touched = mod.getBytesWritten();
+            } else {
+                // APP1 marker, segment length and "Exif\0\0" precede the TIFF header.
+                int segmentStart = tiffStart - 10;
+                byte[] segment = buildExifSegment(buf, tags, exifSize - segmentStart);
+                if (segment != null) {
+                    buf.position(segmentStart);
+                    buf.put(segment);
+                    touched = segment.length;
+                }
+            }
+            if (touched > 0) {
+                buf.force();
+            }
+        } catch (ExifInvalidFormatException e) {
+            closeSilently(file);
+            throw new IOException("Invalid exif format : " + e);
+        } catch (IOException e) {
+            closeSilently(file);
+            throw e;
+        } finally {
+            closeSilently(is);
+        }
+        file.close();
+        return touched;
+    }
+
+    /**
+     * Reads the exif header in buf, applies the given tags and serializes it
+     * into an APP1 segment of exactly segmentSize bytes.
+     *
+     * @return the segment, or null if the updated header does not fit.
+     */
+    private byte[] buildExifSegment(ByteBuffer buf, Collection<ExifTag> tags, int segmentSize)
+            throws IOException {
+        ExifData tempData = mData;
+        try {
+            buf.position(0);
+            readExif(new ByteBufferInputStream(buf));
+            setTags(tags);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(segmentSize);
+            ExifOutputStream eos = new ExifOutputStream(bytes, this);
+            eos.setExifData(mData);
+            try {
+                eos.writeExifSegment(segmentSize);
+            } catch (IOException e) {
+                return null;
+            }
+            return bytes.toByteArray();
+        } finally {
+            // Prevent clobbering of mData
+            mData = tempData;
+        }
+    }
+
     /**
      * Attempts to do an in-place rewrite of the exif metadata. If this fails,
      * fall back to overwriting file. This preserves tags that are not being
@@ -1097,7 +1230,7 @@ public class ExifInterface {
             throws FileNotFoundException,
             IOException {
         // Attempt in-place write
-        if (!rewriteExif(filename, tags)) {
+        if (patchExif(filename, tags) < 0) {
             // Fall back to doing a copy
             ExifData tempData = mData;
             mData = new ExifData(DEFAULT_BYTE_ORDER);
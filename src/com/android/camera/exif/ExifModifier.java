@@ -34,6 +34,7 @@ class ExifModifier {
     private final List<TagOffset> mTagOffsets = new ArrayList<TagOffset>();
     private final ExifInterface mInterface;
     private int mOffsetBase;
+    private int mBytesWritten;
 
     private static class TagOffset {
         final int mOffset;
@@ -150,7 +151,8 @@ class ExifModifier {
             Log.v(TAG, "modifying tag to: \n" + tag.toString());
             Log.v(TAG, "at offset: " + offset);
         }
-        mByteBuffer.position(offset + mOffsetBase);
+        int start = offset + mOffsetBase;
+        mByteBuffer.position(start);
         switch (tag.getDataType()) {
             case ExifTag.TYPE_ASCII:
                 byte buf[] = tag.getStringByte();
@@ -171,9 +173,8 @@ class ExifModifier {
             case ExifTag.TYPE_RATIONAL:
             case ExifTag.TYPE_UNSIGNED_RATIONAL:
                 for (int i = 0, n = tag.getComponentCount(); i < n; i++) {
-                    Rational v = tag.getRational(i);
-                    mByteBuffer.putInt((int) v.getNumerator());
-                    mByteBuffer.putInt((int) v.getDenominator());
+                    mByteBuffer.putInt((int) tag.getRationalNumerator(i));
+                    mByteBuffer.putInt((int) tag.getRationalDenominator(i));
                 }
                 break;
             case ExifTag.TYPE_UNDEFINED:
@@ -188,6 +189,14 @@ class ExifModifier {
                 }
                 break;
         }
+        mBytesWritten += mByteBuffer.position() - start;
+    }
+
+    /**
+     * Returns the number of bytes overwritten by the last successful commit.
+     */
+    protected int getBytesWritten() {
+        return mBytesWritten;
     }
 
     public void modifyTag(ExifTag tag) {
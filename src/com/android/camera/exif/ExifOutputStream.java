@@ -83,6 +83,7 @@ class ExifOutputStream extends FilterOutputStream {
     private final ExifInterface mInterface;
 
     private int mSize = 0;
+    private int mPaddingSize = 0;
 
     protected ExifOutputStream(OutputStream ou, ExifInterface iRef) {
         super(new BufferedOutputStream(ou, STREAMBUFFER_SIZE));
@@ -97,6 +98,15 @@ class ExifOutputStream extends FilterOutputStream {
         mExifData = exifData;
     }
 
+    /**
+     * Sets the number of zero bytes reserved at the end of the APP1 segment, so
+     * that later edits can grow the Exif header in place. The padding is reduced
+     * if the segment would otherwise exceed 64Kb.
+     */
+    protected void setPaddingSize(int paddingSize) {
+        mPaddingSize = paddingSize;
+    }
+
     /**
      * Gets the Exif header to be written into the JPEF file.
      */
@@ -218,6 +228,28 @@ class ExifOutputStream extends FilterOutputStream {
         if (mExifData == null) {
             return;
         }
+        mSize += writeApp1(out, -1);
+    }
+
+    /**
+     * Writes only the APP1 segment (marker included) to the underlying stream,
+     * padded to exactly {@code segmentSize} bytes, and flushes it. Used to
+     * replace an existing segment in place without touching the image data.
+     *
+     * @throws IOException if the Exif header does not fit in segmentSize.
+     */
+    protected void writeExifSegment(int segmentSize) throws IOException {
+        writeApp1(out, segmentSize);
+        out.flush();
+    }
+
+    /**
+     * Writes the APP1 segment. With a negative segmentSize the configured
+     * padding is appended, otherwise the segment is padded to segmentSize.
+     *
+     * @return the number of bytes written.
+     */
+    private int writeApp1(OutputStream os, int segmentSize) throws IOException {
         if (DEBUG) {
             Log.v(TAG, "Writing exif data...");
         }
@@ -227,10 +259,19 @@ class ExifOutputStream extends FilterOutputStream {
         if (exifSize + 8 > MAX_EXIF_SIZE) {
             throw new IOException("Exif header is too large (>64Kb)");
         }
-        OrderedDataOutputStream dataOutputStream = new OrderedDataOutputStream(out);
+        int padding;
+        if (segmentSize < 0) {
+            padding = Math.min(mPaddingSize, MAX_EXIF_SIZE - exifSize - 8);
+        } else {
+            padding = segmentSize - (exifSize + 10);
+            if (padding < 0 || segmentSize - 2 > MAX_EXIF_SIZE) {
+                throw new IOException("Exif header does not fit in " + segmentSize + " bytes");
+            }
+        }
+        OrderedDataOutputStream dataOutputStream = new OrderedDataOutputStream(os);
         dataOutputStream.setByteOrder(ByteOrder.BIG_ENDIAN);
         dataOutputStream.writeShort(JpegHeader.APP1);
-        dataOutputStream.writeShort((short) (exifSize + 8));
+        dataOutputStream.writeShort((short) (exifSize + 8 + padding));
         dataOutputStream.writeInt(EXIF_HEADER);
         dataOutputStream.writeShort((short) 0x0000);
         if (mExifData.getByteOrder() == ByteOrder.BIG_ENDIAN) {
@@ -243,10 +284,13 @@ class ExifOutputStream extends FilterOutputStream {
         dataOutputStream.writeInt(8);
         writeAllTags(dataOutputStream);
         writeThumbnail(dataOutputStream);
+        if (padding > 0) {
+            os.write(new byte[padding]);
+        }
         for (ExifTag t : nullTags) {
             mExifData.addTag(t);
         }
-        mSize += dataOutputStream.size();
+        return dataOutputStream.size() + Math.max(padding, 0);
     }
 
     private ArrayList<ExifTag> stripNullValueTags(ExifData data) {
@@ -508,7 +552,8 @@ class ExifOutputStream extends FilterOutputStream {
             case ExifTag.TYPE_RATIONAL:
             case ExifTag.TYPE_UNSIGNED_RATIONAL:
                 for (int i = 0, n = tag.getComponentCount(); i < n; i++) {
-                    dataOutputStream.writeRational(tag.getRational(i));
+                    dataOutputStream.writeInt((int) tag.getRationalNumerator(i));
+                    dataOutputStream.writeInt((int) tag.getRationalDenominator(i));
                 }
                 break;
             case ExifTag.TYPE_UNDEFINED:
@@ -22,8 +22,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteOrder;
 import java.nio.charset.Charset;
-import java.util.Map.Entry;
-import java.util.TreeMap;
+import java.util.Arrays;
 
 /**
  * This class provides a low-level EXIF parsing API. Given a JPEG format
@@ -176,7 +175,7 @@ class ExifParser {
     private static final short TAG_STRIP_BYTE_COUNTS = ExifInterface
             .getTrueTagKey(ExifInterface.TAG_STRIP_BYTE_COUNTS);
 
-    private final TreeMap<Integer, Object> mCorrespondingEvent = new TreeMap<Integer, Object>();
+    private final OffsetEventQueue mCorrespondingEvent = new OffsetEventQueue();
 
     private boolean isIfdRequested(int ifdType) {
         switch (ifdType) {
@@ -296,7 +295,7 @@ class ExifParser {
                 int offsetSize = 4;
                 // Some camera models use invalid length of the offset
                 if (mCorrespondingEvent.size() > 0) {
-                    offsetSize = mCorrespondingEvent.firstEntry().getKey() -
+                    offsetSize = mCorrespondingEvent.firstOffset() -
                             mTiffStream.getReadByteCount();
                 }
                 if (offsetSize < 4) {
@@ -310,19 +309,19 @@ class ExifParser {
             }
         }
         while (mCorrespondingEvent.size() != 0) {
-            Entry<Integer, Object> entry = mCorrespondingEvent.pollFirstEntry();
-            Object event = entry.getValue();
+            int eventOffset = mCorrespondingEvent.firstOffset();
+            Object event = mCorrespondingEvent.pollFirst();
             try {
-                skipTo(entry.getKey());
+                skipTo(eventOffset);
             } catch (IOException e) {
-                Log.w(TAG, "Failed to skip to data at: " + entry.getKey() +
+                Log.w(TAG, "Failed to skip to data at: " + eventOffset +
                         " for " + event.getClass().getName() + ", the file may be broken.");
                 continue;
             }
             if (event instanceof IfdEvent) {
                 mIfdType = ((IfdEvent) event).ifd;
                 mNumOfTagInIfd = mTiffStream.readUnsignedShort();
-                mIfdStartOffset = entry.getKey();
+                mIfdStartOffset = eventOffset;
 
                 if (mNumOfTagInIfd * TAG_SIZE + mIfdStartOffset + OFFSET_SIZE > mApp1End) {
                     Log.w(TAG, "Invalid size of IFD " + mIfdType);
@@ -495,8 +494,8 @@ class ExifParser {
 
     private void skipTo(int offset) throws IOException {
         mTiffStream.skipTo(offset);
-        while (!mCorrespondingEvent.isEmpty() && mCorrespondingEvent.firstKey() < offset) {
-            mCorrespondingEvent.pollFirstEntry();
+        while (!mCorrespondingEvent.isEmpty() && mCorrespondingEvent.firstOffset() < offset) {
+            mCorrespondingEvent.pollFirst();
         }
     }
 
@@ -649,14 +648,15 @@ class ExifParser {
                 type == ExifTag.TYPE_UNSIGNED_BYTE) {
             int size = tag.getComponentCount();
             if (mCorrespondingEvent.size() > 0) {
-                if (mCorrespondingEvent.firstEntry().getKey() < mTiffStream.getReadByteCount()
+                if (mCorrespondingEvent.firstOffset() < mTiffStream.getReadByteCount()
                         + size) {
-                    Object event = mCorrespondingEvent.firstEntry().getValue();
+                    Object event = mCorrespondingEvent.firstEvent();
                     if (event instanceof ImageEvent) {
                         // Tag value overlaps thumbnail, ignore thumbnail.
                         Log.w(TAG, "Thumbnail overlaps value for tag: \n" + tag.toString());
-                        Entry<Integer, Object> entry = mCorrespondingEvent.pollFirstEntry();
-                        Log.w(TAG, "Invalid thumbnail offset: " + entry.getKey());
+                        int thumbnailOffset = mCorrespondingEvent.firstOffset();
+                        mCorrespondingEvent.pollFirst();
+                        Log.w(TAG, "Invalid thumbnail offset: " + thumbnailOffset);
                     } else {
                         // Tag value overlaps another tag, shorten count
                         if (event instanceof IfdEvent) {
@@ -667,7 +667,7 @@ class ExifParser {
                                     + ((ExifTagEvent) event).tag.toString()
                                     + " overlaps value for tag: \n" + tag.toString());
                         }
-                        size = mCorrespondingEvent.firstEntry().getKey()
+                        size = mCorrespondingEvent.firstOffset()
                                 - mTiffStream.getReadByteCount();
                         Log.w(TAG, "Invalid size of tag: \n" + tag.toString()
                                 + " setting count to: " + size);
@@ -696,11 +696,11 @@ class ExifParser {
             }
                 break;
             case ExifTag.TYPE_UNSIGNED_RATIONAL: {
-                Rational value[] = new Rational[tag.getComponentCount()];
+                long value[] = new long[tag.getComponentCount() * 2];
                 for (int i = 0, n = value.length; i < n; i++) {
-                    value[i] = readUnsignedRational();
+                    value[i] = readUnsignedLong();
                 }
-                tag.setValue(value);
+                tag.setRationalPairs(value);
             }
                 break;
             case ExifTag.TYPE_UNSIGNED_SHORT: {
@@ -720,11 +720,11 @@ class ExifParser {
             }
                 break;
             case ExifTag.TYPE_RATIONAL: {
-                Rational value[] = new Rational[tag.getComponentCount()];
+                long value[] = new long[tag.getComponentCount() * 2];
                 for (int i = 0, n = value.length; i < n; i++) {
-                    value[i] = readRational();
+                    value[i] = readLong();
                 }
-                tag.setValue(value);
+                tag.setRationalPairs(value);
             }
                 break;
         }
@@ -913,4 +913,71 @@ class ExifParser {
     protected ByteOrder getByteOrder() {
         return mTiffStream.getByteOrder();
     }
+
+    /**
+     * Pending parser events ordered by their offset in the TIFF stream, kept in
+     * parallel primitive/object arrays instead of a boxed TreeMap. Adding an
+     * event at an offset that is already queued replaces the previous event.
+     */
+    private static final class OffsetEventQueue {
+        private int[] mOffsets = new int[16];
+        private Object[] mEvents = new Object[16];
+        private int mHead = 0;
+        private int mTail = 0;
+
+        int size() {
+            return mTail - mHead;
+        }
+
+        boolean isEmpty() {
+            return mTail == mHead;
+        }
+
+        int firstOffset() {
+            return mOffsets[mHead];
+        }
+
+        Object firstEvent() {
+            return mEvents[mHead];
+        }
+
+        Object pollFirst() {
+            Object event = mEvents[mHead];
+            mEvents[mHead] = null;
+            mHead++;
+            if (mHead == mTail) {
+                mHead = mTail = 0;
+            }
+            return event;
+        }
+
+        void put(int offset, Object event) {
+            int index = Arrays.binarySearch(mOffsets, mHead, mTail, offset);
+            if (index >= 0) {
+                mEvents[index] = event;
+                return;
+            }
+            index = -(index + 1);
+            if (mTail == mOffsets.length) {
+                if (mHead > 0) {
+                    // Reclaim the slots freed by pollFirst before growing.
+                    int count = mTail - mHead;
+                    System.arraycopy(mOffsets, mHead, mOffsets, 0, count);
+                    System.arraycopy(mEvents, mHead, mEvents, 0, count);
+                    Arrays.fill(mEvents, count, mTail, null);
+                    index -= mHead;
+                    mHead = 0;
+                    mTail = count;
+                } else {
+                    mOffsets = Arrays.copyOf(mOffsets, mOffsets.length * 2);
+                    mEvents = Arrays.copyOf(mEvents, mEvents.length * 2);
+                }
+            }
+            System.arraycopy(mOffsets, index, mOffsets, index + 1, mTail - index);
+            System.arraycopy(mEvents, index, mEvents, index + 1, mTail - index);
+            mOffsets[index] = offset;
+            mEvents[index] = event;
+            mTail++;
+        }
+    }
 }
@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.exif;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A minimal EXIF reader for the few values the camera needs on hot paths. It
+ * walks the JPEG markers up to the EXIF APP1 segment and reads orientation,
+ * image dimensions, the DateTime string location and the IFD1 thumbnail location
+ * straight out of the TIFF structure, without creating any {@link ExifTag}s.
+ * <p>
+ * A scanner can be reused; {@link #scan(byte[], int, int)} and
+ * {@link #scan(ByteBuffer)} do not allocate. All offsets reported are absolute
+ * positions in the scanned array or buffer.
+ *
+ * <pre>
+ * ExifScanner scanner = new ExifScanner();
+ * if (scanner.scan(jpeg, 0, jpeg.length)) {
+ *     int degrees = scanner.getRotation();
+ * }
+ * </pre>
+ */
+public class ExifScanner {
+    private static final int TAG_IMAGE_WIDTH = 0x0100;
+    private static final int TAG_IMAGE_LENGTH = 0x0101;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_DATE_TIME = 0x0132;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+    private static final int TAG_PIXEL_X_DIMENSION = 0xA002;
+    private static final int TAG_PIXEL_Y_DIMENSION = 0xA003;
+
+    private static final int TYPE_UNSIGNED_SHORT = 3;
+    private static final int TYPE_UNSIGNED_LONG = 4;
+    private static final int TYPE_LONG = 9;
+
+    private static final int IFD_ENTRY_SIZE = 12;
+    private static final int MAX_IFD_ENTRIES = 1000;
+
+    // Exactly one of these is set while a scan is running.
+    private byte[] mArray;
+    private ByteBuffer mBuffer;
+    private int mEnd;
+    private boolean mLittleEndian;
+    private int mTiffStart;
+
+    private int mOrientation;
+    private int mWidth;
+    private int mHeight;
+    private int mDateTimeOffset;
+    private int mDateTimeLength;
+    private int mThumbnailOffset;
+    private int mThumbnailLength;
+
+    /**
+     * Scans {@code length} bytes of JPEG data starting at {@code offset}.
+     *
+     * @return true if an EXIF segment was found and parsed.
+     */
+    public boolean scan(byte[] jpeg, int offset, int length) {
+        if (jpeg == null || offset < 0 || length < 0
+                || (long) offset + length > jpeg.length) {
+            throw new IllegalArgumentException("Invalid range");
+        }
+        mArray = jpeg;
+        try {
+            return scanJpeg(offset, offset + length);
+        } finally {
+            mArray = null;
+        }
+    }
+
+    /**
+     * Scans the JPEG data between the buffer's position and limit. The buffer's
+     * position is not modified.
+     *
+     * @return true if an EXIF segment was found and parsed.
+     */
+    public boolean scan(ByteBuffer jpeg) {
+        mBuffer = jpeg;
+        try {
+            return scanJpeg(jpeg.position(), jpeg.limit());
+        } finally {
+            mBuffer = null;
+        }
+    }
+
+    /** Raw orientation tag value, 0 when absent. */
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    /** Clockwise rotation in degrees derived from the orientation tag. */
+    public int getRotation() {
+        return ExifInterface.getRotationForOrientationValue((short) mOrientation);
+    }
+
+    /** Pixel width from the EXIF IFD, or from IFD0 if absent; 0 if unknown. */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /** Pixel height from the EXIF IFD, or from IFD0 if absent; 0 if unknown. */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /** Offset of the DateTime ASCII value, or -1 if absent. */
+    public int getDateTimeOffset() {
+        return mDateTimeOffset;
+    }
+
+    /** Length of the DateTime value without its terminating NUL. */
+    public int getDateTimeLength() {
+        return mDateTimeLength;
+    }
+
+    /** Offset of the compressed IFD1 thumbnail, or -1 if absent. */
+    public int getThumbnailOffset() {
+        return mThumbnailOffset;
+    }
+
+    public int getThumbnailLength() {
+        return mThumbnailLength;
+    }
+
+    public boolean hasThumbnail() {
+        return mThumbnailOffset >= 0 && mThumbnailLength > 0;
+    }
+
+    /**
+     * Convenience wrapper returning the clockwise rotation of a JPEG, 0 if it has
+     * no orientation tag.
+     */
+    public static int getRotation(byte[] jpeg) {
+        if (jpeg == null) {
+            return 0;
+        }
+        ExifScanner scanner = new ExifScanner();
+        return scanner.scan(jpeg, 0, jpeg.length) ? scanner.getRotation() : 0;
+    }
+
+    private void reset() {
+        mOrientation = 0;
+        mWidth = 0;
+        mHeight = 0;
+        mDateTimeOffset = -1;
+        mDateTimeLength = 0;
+        mThumbnailOffset = -1;
+        mThumbnailLength = 0;
+    }
+
+    private boolean scanJpeg(int start, int end) {
+        reset();
+        mEnd = end;
+        if (end - start < 4 || readU16BigEndian(start) != (JpegHeader.SOI & 0xFFFF)) {
+            return false;
+        }
+        int pos = start + 2;
+        while (pos + 4 <= end) {
+            if (readU8(pos) != 0xFF) {
+                return false;
+            }
+            int marker = readU8(pos + 1);
+            if (marker == 0xFF) {
+                // Fill byte before the actual marker.
+                pos++;
+                continue;
+            }
+            if (marker == (JpegHeader.EOI & 0xFF) || marker == 0xDA) {
+                // EOI or SOS: no EXIF segment precedes the image data.
+                return false;
+            }
+            int segmentLength = readU16BigEndian(pos + 2);
+            if (segmentLength < 2) {
+                return false;
+            }
+            int segmentEnd = pos + 2 + segmentLength;
+            if (marker == (JpegHeader.APP1 & 0xFF) && segmentLength >= 16 && pos + 10 <= end
+                    && isExifHeader(pos + 4)) {
+                mEnd = Math.min(segmentEnd, end);
+                return scanTiff(pos + 10);
+            }
+            pos = segmentEnd;
+        }
+        return false;
+    }
+
+    private boolean isExifHeader(int pos) {
+        return readU8(pos) == 'E' && readU8(pos + 1) == 'x' && readU8(pos + 2) == 'i'
+                && readU8(pos + 3) == 'f' && readU8(pos + 4) == 0 && readU8(pos + 5) == 0;
+    }
+
+    private boolean scanTiff(int tiffStart) {
+        mTiffStart = tiffStart;
+        if (tiffStart + 8 > mEnd) {
+            return false;
+        }
+        int byteOrder = readU16BigEndian(tiffStart);
+        if (byteOrder == 0x4949) {
+            mLittleEndian = true;
+        } else if (byteOrder == 0x4D4D) {
+            mLittleEndian = false;
+        } else {
+            return false;
+        }
+        if (readU16(tiffStart + 2) != 0x002A) {
+            return false;
+        }
+        int ifd1 = scanIfd(readS32(tiffStart + 4), true);
+        if (ifd1 > 0) {
+            scanIfd(ifd1, false);
+        }
+        // IFD1 stores the thumbnail offset relative to the TIFF header.
+        long thumbnailStart = (long) mTiffStart + mThumbnailOffset;
+        if (mThumbnailOffset > 0 && isInSegment(thumbnailStart, mThumbnailLength)
+                && mThumbnailLength > 0) {
+            mThumbnailOffset = (int) thumbnailStart;
+        } else {
+            mThumbnailOffset = -1;
+            mThumbnailLength = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Whether {@code length} bytes at the absolute position {@code start} lie
+     * within the TIFF data. Computed in long so that offsets and lengths from a
+     * malformed file cannot overflow.
+     */
+    private boolean isInSegment(long start, long length) {
+        return start >= mTiffStart && length >= 0 && start + length <= mEnd;
+    }
+
+    /**
+     * Reads the entries of the IFD at {@code ifdOffset} (relative to the TIFF
+     * header) and returns the offset of the next IFD, or 0 if there is none.
+     */
+    private int scanIfd(int ifdOffset, boolean isIfd0) {
+        if (ifdOffset <= 0 || !isInSegment((long) mTiffStart + ifdOffset, 2)) {
+            return 0;
+        }
+        int pos = mTiffStart + ifdOffset;
+        int count = readU16(pos);
+        pos += 2;
+        if (count > MAX_IFD_ENTRIES || !isInSegment(pos, (long) count * IFD_ENTRY_SIZE)) {
+            return 0;
+        }
+        int exifIfd = 0;
+        for (int i = 0; i < count; i++, pos += IFD_ENTRY_SIZE) {
+            int tag = readU16(pos);
+            int type = readU16(pos + 2);
+            int componentCount = readS32(pos + 4);
+            if (isIfd0) {
+                switch (tag) {
+                    case TAG_ORIENTATION:
+                        mOrientation = readIntValue(type, pos + 8);
+                        break;
+                    case TAG_IMAGE_WIDTH:
+                        if (mWidth == 0) mWidth = readIntValue(type, pos + 8);
+                        break;
+                    case TAG_IMAGE_LENGTH:
+                        if (mHeight == 0) mHeight = readIntValue(type, pos + 8);
+                        break;
+                    case TAG_DATE_TIME:
+                        if (componentCount > 4) {
+                            int offset = readS32(pos + 8);
+                            if (offset > 0 && isInSegment((long) mTiffStart + offset,
+                                    componentCount)) {
+                                mDateTimeOffset = mTiffStart + offset;
+                                mDateTimeLength = componentCount - 1;
+                            }
+                        }
+                        break;
+                    case TAG_EXIF_IFD:
+                        exifIfd = readS32(pos + 8);
+                        break;
+                }
+            } else {
+                switch (tag) {
+                    case TAG_JPEG_INTERCHANGE_FORMAT:
+                        mThumbnailOffset = readS32(pos + 8);
+                        break;
+                    case TAG_JPEG_INTERCHANGE_FORMAT_LENGTH:
+                        mThumbnailLength = readS32(pos + 8);
+                        break;
+                }
+            }
+        }
+        int next = pos + 4 <= mEnd ? readS32(pos) : 0;
+        if (exifIfd > 0) {
+            scanExifIfd(exifIfd);
+        }
+        return next;
+    }
+
+    private void scanExifIfd(int ifdOffset) {
+        if (!isInSegment((long) mTiffStart + ifdOffset, 2)) {
+            return;
+        }
+        int pos = mTiffStart + ifdOffset;
+        int count = readU16(pos);
+        pos += 2;
+        if (count > MAX_IFD_ENTRIES || !isInSegment(pos, (long) count * IFD_ENTRY_SIZE)) {
+            return;
+        }
+        for (int i = 0; i < count; i++, pos += IFD_ENTRY_SIZE) {
+            int tag = readU16(pos);
+            if (tag == TAG_PIXEL_X_DIMENSION) {
+                mWidth = readIntValue(readU16(pos + 2), pos + 8);
+            } else if (tag == TAG_PIXEL_Y_DIMENSION) {
+                mHeight = readIntValue(readU16(pos + 2), pos + 8);
+            }
+        }
+    }
+
+    private int readIntValue(int type, int pos) {
+        switch (type) {
+            case TYPE_UNSIGNED_SHORT:
+                return readU16(pos);
+            case TYPE_UNSIGNED_LONG:
+            case TYPE_LONG:
+                return readS32(pos);
+            default:
+                return 0;
+        }
+    }
+
+    private int readU8(int pos) {
+        if (mArray != null) {
+            return mArray[pos] & 0xFF;
+        }
+        return mBuffer.get(pos) & 0xFF;
+    }
+
+    private int readU16BigEndian(int pos) {
+        return (readU8(pos) << 8) | readU8(pos + 1);
+    }
+
+    private int readU16(int pos) {
+        if (mLittleEndian) {
+            return readU8(pos) | (readU8(pos + 1) << 8);
+        }
+        return readU16BigEndian(pos);
+    }
+
+    private int readS32(int pos) {
+        if (mLittleEndian) {
+            return readU16(pos) | (readU16(pos + 2) << 16);
+        }
+        return (readU16(pos) << 16) | readU16(pos + 2);
+    }
+}
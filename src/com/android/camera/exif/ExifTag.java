@@ -97,7 +97,8 @@ public class ExifTag {
     private int mComponentCountActual;
     // The ifd that this tag should be put in
     private int mIfd;
-    // The value (array of elements of type Tag Type)
+    // The value (array of elements of type Tag Type). Rationals are packed
+    // as numerator and denominator pairs in a long[].
     private Object mValue;
     // Value offset in exif header.
     private int mOffset;
@@ -373,11 +374,41 @@ public class ExifTag {
             return false;
         }
 
-        mValue = value;
+        long[] packed = new long[value.length * 2];
+        for (int i = 0; i < value.length; i++) {
+            packed[i * 2] = value[i].getNumerator();
+            packed[i * 2 + 1] = value[i].getDenominator();
+        }
+        mValue = packed;
         mComponentCountActual = value.length;
         return true;
     }
 
+    /**
+     * Sets Rational values packed as numerator and denominator pairs, without
+     * creating a {@link Rational} per component. Used by {@link ExifParser}.
+     *
+     * @see #setValue(Rational[])
+     */
+    protected boolean setRationalPairs(long[] pairs) {
+        if ((pairs.length & 1) != 0 || checkBadComponentCount(pairs.length / 2)) {
+            return false;
+        }
+        if (mDataType != TYPE_UNSIGNED_RATIONAL && mDataType != TYPE_RATIONAL) {
+            return false;
+        }
+        long min = mDataType == TYPE_UNSIGNED_RATIONAL ? 0 : LONG_MIN;
+        long max = mDataType == TYPE_UNSIGNED_RATIONAL ? UNSIGNED_LONG_MAX : LONG_MAX;
+        for (long v : pairs) {
+            if (v < min || v > max) {
+                return false;
+            }
+        }
+        mValue = pairs;
+        mComponentCountActual = pairs.length / 2;
+        return true;
+    }
+
     /**
      * Sets a Rational value into this tag. This method should be used for tags
      * of type {@link #TYPE_UNSIGNED_RATIONAL}, or {@link #TYPE_RATIONAL}. This
@@ -603,10 +634,15 @@ public class ExifTag {
      *         does not exist or cannot be converted to an array of Rationals.
      */
     public Rational[] getValueAsRationals() {
-        if (mValue instanceof Rational[]) {
-            return (Rational[]) mValue;
+        if (!isRational() || !(mValue instanceof long[])) {
+            return null;
         }
-        return null;
+        long[] pairs = (long[]) mValue;
+        Rational[] r = new Rational[pairs.length / 2];
+        for (int i = 0; i < r.length; i++) {
+            r[i] = new Rational(pairs[i * 2], pairs[i * 2 + 1]);
+        }
+        return r;
     }
 
     /**
@@ -649,7 +685,7 @@ public class ExifTag {
      *         not exist or cannot be converted to an array of ints.
      */
     public int[] getValueAsInts() {
-        if (mValue == null) {
+        if (mValue == null || isRational()) {
             return null;
         } else if (mValue instanceof long[]) {
             long[] val = (long[]) mValue;
@@ -687,7 +723,7 @@ public class ExifTag {
      *         does not exist or cannot be converted to an array of longs.
      */
     public long[] getValueAsLongs() {
-        if (mValue instanceof long[]) {
+        if (mValue instanceof long[] && !isRational()) {
             return (long[]) mValue;
         }
         return null;
@@ -714,7 +750,7 @@ public class ExifTag {
      * Gets the tag's value or null if none exists.
      */
     public Object getValue() {
-        return mValue;
+        return isRational() ? getValueAsRationals() : mValue;
     }
 
     /**
@@ -734,9 +770,11 @@ public class ExifTag {
         if (b != null && b.length >= 1) {
             return b[0];
         }
-        Rational[] r = getValueAsRationals();
-        if (r != null && r.length >= 1 && r[0].getDenominator() != 0) {
-            return (long) r[0].toDouble();
+        if (isRational() && mValue instanceof long[]) {
+            long[] pairs = (long[]) mValue;
+            if (pairs.length >= 2 && pairs[1] != 0) {
+                return (long) ((double) pairs[0] / pairs[1]);
+            }
         }
         return defaultValue;
     }
@@ -747,6 +785,13 @@ public class ExifTag {
     public String forceGetValueAsString() {
         if (mValue == null) {
             return "";
+        } else if (isRational()) {
+            Rational[] r = getValueAsRationals();
+            if (r.length == 1) {
+                return r[0].toString();
+            } else {
+                return Arrays.toString(r);
+            }
         } else if (mValue instanceof byte[]) {
             if (mDataType == TYPE_ASCII) {
                 return new String((byte[]) mValue, US_ASCII);
@@ -786,7 +831,7 @@ public class ExifTag {
      *                {@link #TYPE_RATIONAL} or {@link #TYPE_UNSIGNED_RATIONAL}.
      */
     public long getValueAt(int index) {
-        if (mValue instanceof long[]) {
+        if (mValue instanceof long[] && !isRational()) {
             return ((long[]) mValue)[index];
         } else if (mValue instanceof byte[]) {
             return ((byte[]) mValue)[index];
@@ -827,7 +872,25 @@ public class ExifTag {
             throw new IllegalArgumentException("Cannot get RATIONAL value from "
                     + convertTypeToString(mDataType));
         }
-        return ((Rational[]) mValue)[index];
+        return new Rational(getRationalNumerator(index), getRationalDenominator(index));
+    }
+
+    /**
+     * Gets the numerator of the {@link #TYPE_RATIONAL} or
+     * {@link #TYPE_UNSIGNED_RATIONAL} data at index, without creating a
+     * {@link Rational}.
+     */
+    protected long getRationalNumerator(int index) {
+        return ((long[]) mValue)[index * 2];
+    }
+
+    /**
+     * Gets the denominator of the {@link #TYPE_RATIONAL} or
+     * {@link #TYPE_UNSIGNED_RATIONAL} data at index, without creating a
+     * {@link Rational}.
+     */
+    protected long getRationalDenominator(int index) {
+        return ((long[]) mValue)[index * 2 + 1];
     }
 
     /**
@@ -879,6 +942,10 @@ public class ExifTag {
         return mHasDefinedDefaultComponentCount;
     }
 
+    private boolean isRational() {
+        return mDataType == TYPE_RATIONAL || mDataType == TYPE_UNSIGNED_RATIONAL;
+    }
+
     private boolean checkBadComponentCount(int count) {
         if (mHasDefinedDefaultComponentCount && (mComponentCountActual != count)) {
             return true;
@@ -978,11 +1045,6 @@ public class ExifTag {
                         return false;
                     }
                     return Arrays.equals((long[]) mValue, (long[]) tag.mValue);
-                } else if (mValue instanceof Rational[]) {
-                    if (!(tag.mValue instanceof Rational[])) {
-                        return false;
-                    }
-                    return Arrays.equals((Rational[]) mValue, (Rational[]) tag.mValue);
                 } else if (mValue instanceof byte[]) {
                     if (!(tag.mValue instanceof byte[])) {
                         return false;
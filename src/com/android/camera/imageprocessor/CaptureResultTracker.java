@@ -0,0 +1,152 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.os.SystemClock;
+
+/**
+ * Collects the TotalCaptureResults of one capture burst and lets the processing
+ * thread block until the result with a given sensor timestamp arrives, instead
+ * of polling. Waits give up after a timeout and fall back to the first result
+ * of the burst, if any.
+ */
+public class CaptureResultTracker {
+    /** Pass as timestamp to wait for the first result of the burst. */
+    public static final long ANY_TIMESTAMP = 0;
+
+    private final TotalCaptureResult[] mResults;
+    private final long[] mTimestamps;
+    private int mCount;
+
+    private int mWaitCount;
+    private long mLastWaitMs;
+    private long mMaxWaitMs;
+    private long mTotalWaitMs;
+    private int mTimeoutCount;
+
+    public CaptureResultTracker(int capacity) {
+        mResults = new TotalCaptureResult[capacity];
+        mTimestamps = new long[capacity];
+    }
+
+    /** Forgets the previous burst. */
+    public synchronized void reset() {
+        for (int i = 0; i < mCount; i++) {
+            mResults[i] = null;
+        }
+        mCount = 0;
+    }
+
+    /** Records the next result of the burst and wakes up any waiter. */
+    public synchronized void onResult(TotalCaptureResult result) {
+        if (mCount >= mResults.length) {
+            return;
+        }
+        Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        mTimestamps[mCount] = timestamp == null ? ANY_TIMESTAMP : timestamp;
+        mResults[mCount++] = result;
+        notifyAll();
+    }
+
+    /**
+     * Returns the result whose sensor timestamp matches the one of the image
+     * being processed, waiting at most {@code timeoutMs} for it to arrive.
+     */
+    public synchronized TotalCaptureResult await(long timestamp, long timeoutMs) {
+        long start = SystemClock.elapsedRealtime();
+        long deadline = start + timeoutMs;
+        long now = start;
+        int index = indexOf(timestamp);
+        while (index < 0 && now < deadline) {
+            try {
+                wait(deadline - now);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            now = SystemClock.elapsedRealtime();
+            index = indexOf(timestamp);
+        }
+        recordWait(now - start, index < 0);
+        if (index >= 0) {
+            return mResults[index];
+        }
+        return mCount == 0 ? null : mResults[0];
+    }
+
+    private int indexOf(long timestamp) {
+        if (timestamp == ANY_TIMESTAMP) {
+            return mCount > 0 ? 0 : -1;
+        }
+        for (int i = 0; i < mCount; i++) {
+            if (mTimestamps[i] == timestamp) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void recordWait(long waitMs, boolean timedOut) {
+        mWaitCount++;
+        mLastWaitMs = waitMs;
+        mTotalWaitMs += waitMs;
+        if (waitMs > mMaxWaitMs) {
+            mMaxWaitMs = waitMs;
+        }
+        if (timedOut) {
+            mTimeoutCount++;
+        }
+    }
+
+    /** How long the most recent {@link #await} call blocked, in milliseconds. */
+    public synchronized long getLastWaitMs() {
+        return mLastWaitMs;
+    }
+
+    public synchronized long getMaxWaitMs() {
+        return mMaxWaitMs;
+    }
+
+    public synchronized long getAverageWaitMs() {
+        return mWaitCount == 0 ? 0 : mTotalWaitMs / mWaitCount;
+    }
+
+    public synchronized int getTimeoutCount() {
+        return mTimeoutCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CaptureResultTracker waits=" + mWaitCount + " last=" + mLastWaitMs
+                + "ms max=" + mMaxWaitMs + "ms avg=" + getAverageWaitMs()
+                + "ms timeouts=" + mTimeoutCount;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.util.Log;
+import android.util.Pools;
+import android.util.SparseArray;
+
+import com.android.camera.util.PersistUtil;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+
+/**
+ * Process wide pool of direct ByteBuffers keyed by exact capacity. Full-frame
+ * YUV buffers used by PostProcessor, FrameProcessor and the image filters are
+ * borrowed from here and returned once the frame has been consumed, instead of
+ * being left to the GC/Cleaner to reclaim.
+ *
+ * Released buffers are kept while the pooled bytes stay under the limit given by
+ * persist.sys.camera.perf.bufpool, anything above that is simply dropped.
+ */
+public class DirectBufferPool {
+    private static final String TAG = "DirectBufferPool";
+    private static final int MAX_BUFFERS_PER_SIZE = 4;
+
+    private static DirectBufferPool sInstance;
+
+    private final SparseArray<Pools.SimplePool<ByteBuffer>> mPools =
+            new SparseArray<Pools.SimplePool<ByteBuffer>>();
+    private final long mLimitBytes;
+    // Buffers handed out and not yet released, so that a second release is
+    // caught even if the first one dropped the buffer instead of pooling it.
+    private final IdentityHashMap<ByteBuffer, Boolean> mOutstanding =
+            new IdentityHashMap<ByteBuffer, Boolean>();
+    private long mPooledBytes;
+    private long mOutstandingBytes;
+    private long mHighWaterMarkBytes;
+    private int mHitCount;
+    private int mMissCount;
+
+    public static synchronized DirectBufferPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new DirectBufferPool(
+                    (long) PersistUtil.getDirectBufferPoolLimitInMb() * 1024 * 1024);
+        }
+        return sInstance;
+    }
+
+    DirectBufferPool(long limitBytes) {
+        mLimitBytes = limitBytes;
+    }
+
+    /**
+     * Returns a cleared direct buffer of exactly {@code capacity} bytes.
+     */
+    public synchronized ByteBuffer acquire(int capacity) {
+        ByteBuffer buffer = null;
+        Pools.SimplePool<ByteBuffer> pool = mPools.get(capacity);
+        if (pool != null) {
+            buffer = pool.acquire();
+        }
+        if (buffer != null) {
+            mHitCount++;
+            mPooledBytes -= capacity;
+            buffer.clear();
+        } else {
+            mMissCount++;
+            buffer = ByteBuffer.allocateDirect(capacity);
+        }
+        mOutstanding.put(buffer, Boolean.TRUE);
+        mOutstandingBytes += capacity;
+        if (mOutstandingBytes > mHighWaterMarkBytes) {
+            mHighWaterMarkBytes = mOutstandingBytes;
+        }
+        return buffer;
+    }
+
+    /**
+     * Hands a buffer obtained from {@link #acquire} back to the pool. The caller
+     * must not touch the buffer afterwards. Null, buffers that did not come from
+     * {@link #acquire} and buffers that were already released are ignored.
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        if (mOutstanding.remove(buffer) == null) {
+            Log.w(TAG, "Buffer of " + capacity + " bytes released twice or not from the pool");
+            return;
+        }
+        mOutstandingBytes -= capacity;
+        if (mPooledBytes + capacity > mLimitBytes) {
+            return;
+        }
+        Pools.SimplePool<ByteBuffer> pool = mPools.get(capacity);
+        if (pool == null) {
+            pool = new Pools.SimplePool<ByteBuffer>(MAX_BUFFERS_PER_SIZE);
+            mPools.put(capacity, pool);
+        }
+        if (pool.release(buffer)) {
+            mPooledBytes += capacity;
+        }
+    }
+
+    /** Drops every pooled buffer, e.g. when the camera is closed or memory is low. */
+    public synchronized void trim() {
+        mPools.clear();
+        mPooledBytes = 0;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized float getMissRate() {
+        int total = mHitCount + mMissCount;
+        return total == 0 ? 0f : (float) mMissCount / total;
+    }
+
+    /** Peak number of bytes handed out and not yet released. */
+    public synchronized long getHighWaterMarkBytes() {
+        return mHighWaterMarkBytes;
+    }
+
+    public synchronized long getPooledBytes() {
+        return mPooledBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DirectBufferPool hits=" + mHitCount + " misses=" + mMissCount
+                + " pooled=" + mPooledBytes + " outstanding=" + mOutstandingBytes
+                + " highWaterMark=" + mHighWaterMarkBytes;
+    }
+}
@@ -138,6 +138,9 @@ public class FrameProcessor {
                 mListeningHandler = new Handler(mListeningThread.getLooper());
             }
 
+            if (mListeningTask != null) {
+                mListeningTask.releasePending();
+            }
             mListeningTask = new ListeningTask();
             mTask = new ProcessingTask();
             mInputImageReader.setOnImageAvailableListener(mTask, mProcessingHandler);
@@ -280,6 +283,10 @@ public class FrameProcessor {
             } catch (InterruptedException e) {
             }
         }
+        if (mListeningTask != null) {
+            // A frame handed over after the last run would keep its Image open.
+            mListeningTask.releasePending();
+        }
         for (ImageFilter filter : mPreviewFilters) {
             filter.deinit();
         }
@@ -428,8 +435,9 @@ public class FrameProcessor {
                         return;
                     }
                     mIsAllocationEverUsed = true;
-                    ByteBuffer bY = image.getPlanes()[0].getBuffer();
-                    ByteBuffer bVU = image.getPlanes()[2].getBuffer();
+                    ImageFilter.PlaneView planes = new ImageFilter.PlaneView(image);
+                    ByteBuffer bY = planes.y;
+                    ByteBuffer bVU = planes.vu;
                     if (yvuBytes == null || width != mSize.getWidth() || height != mSize.getHeight()) {
                         stride = image.getPlanes()[0].getRowStride();
                         width = mSize.getWidth();
@@ -441,7 +449,7 @@ public class FrameProcessor {
                     //Start processing yvu buf
                     for (ImageFilter filter : mPreviewFilters) {
                         if (filter.isFrameListener()) {
-                            if (mListeningTask.setParam(filter, bY, bVU, mSize.getWidth(), mSize.getHeight(), stride)) {
+                            if (mListeningTask.setParam(filter, planes, mSize.getWidth(), mSize.getHeight(), stride)) {
                                 mListeningHandler.post(mListeningTask);
                             }
                         } else {
@@ -466,7 +474,7 @@ public class FrameProcessor {
                         bVU.get(yvuBytes, ySize, bVU.remaining());
                         mOutingHandler.post(this);
                     }
-                    image.close();
+                    planes.release();
                 } catch (IllegalStateException e) {
                 }
             }
@@ -494,31 +502,26 @@ public class FrameProcessor {
     class ListeningTask implements Runnable {
 
         ImageFilter mFilter;
-        ByteBuffer mBY = null, mBVU = null;
+        ImageFilter.PlaneView mPlanes = null;
         int mWidth, mHeight, mStride;
-        int bYSize, bVUSize;
         Semaphore mMutureLock = new Semaphore(1);
 
-        public boolean setParam(ImageFilter filter, ByteBuffer bY, ByteBuffer bVU, int width, int height, int stride) {
+        public boolean setParam(ImageFilter filter, ImageFilter.PlaneView planes, int width, int height, int stride) {
             if (!mIsActive) {
                 return false;
             }
             if (!mMutureLock.tryAcquire()) {
                 return false;
             }
-            mFilter = filter;
-            if (mBY == null || bYSize != bY.remaining()) {
-                bYSize = bY.remaining();
-                mBY = ByteBuffer.allocateDirect(bYSize);
+            if (!planes.retain()) {
+                mMutureLock.release();
+                return false;
             }
-            if (mBVU == null || bVUSize != bVU.remaining()) {
-                bVUSize = bVU.remaining();
-                mBVU = ByteBuffer.allocateDirect(bVUSize);
+            if (mPlanes != null) {
+                mPlanes.release();
             }
-            mBY.rewind();
-            mBVU.rewind();
-            mBY.put(bY);
-            mBVU.put(bVU);
+            mFilter = filter;
+            mPlanes = planes;
             mWidth = width;
             mHeight = height;
             mStride = stride;
@@ -529,22 +532,41 @@ public class FrameProcessor {
         @Override
         public void run() {
             try {
-                if (!mIsActive) {
+                mMutureLock.acquire();
+                ImageFilter.PlaneView planes = mPlanes;
+                mPlanes = null;
+                if (planes == null) {
+                    mMutureLock.release();
                     return;
                 }
-                mMutureLock.acquire();
-                mBY.rewind();
-                mBVU.rewind();
-                mFilter.init(mWidth, mHeight, mStride, mStride);
-                if (mFilter instanceof BeautificationFilter) {
-                    mFilter.addImage(mBY, mBVU, 0, new Boolean(false));
-                } else {
-                    mFilter.addImage(mBY, mBVU, 0, new Boolean(true));
+                if (mIsActive) {
+                    // Own cursors so the preview thread can keep rewinding the shared planes.
+                    ByteBuffer bY = planes.y.duplicate();
+                    ByteBuffer bVU = planes.vu.duplicate();
+                    bY.rewind();
+                    bVU.rewind();
+                    mFilter.init(mWidth, mHeight, mStride, mStride);
+                    if (mFilter instanceof BeautificationFilter) {
+                        mFilter.addImage(bY, bVU, 0, new Boolean(false));
+                    } else {
+                        mFilter.addImage(bY, bVU, 0, new Boolean(true));
+                    }
                 }
+                planes.release();
                 mMutureLock.release();
             } catch (InterruptedException e) {
             }
         }
+
+        /* Drops a frame that was set but will never run */
+        public void releasePending() {
+            mMutureLock.acquireUninterruptibly();
+            if (mPlanes != null) {
+                mPlanes.release();
+                mPlanes = null;
+            }
+            mMutureLock.release();
+        }
     }
 }
 
@@ -81,6 +81,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import android.util.Size;
@@ -146,8 +147,11 @@ public class PostProcessor{
     private Handler mSavingHander;
     private HandlerThread mSavingHandlerThread;
     private ImageHandlerTask mImageHandlerTask;
-    private LinkedList<TotalCaptureResult> mTotalCaptureResultList = new LinkedList<TotalCaptureResult>();
+    private final CaptureResultTracker mCaptureResults =
+            new CaptureResultTracker(MAX_REQUIRED_IMAGE_NUM + 1);
     private TotalCaptureResult mZSLFallOffResult = null;
+    // Sensor timestamps of the images of the current burst, by image index.
+    private final long[] mImageTimestamps = new long[MAX_REQUIRED_IMAGE_NUM + 1];
     private boolean mIsZSLFallOff = false;
     private TotalCaptureResult mLatestResultForLongShot = null;
     private LinkedList<ZSLQueue.ImageItem> mFallOffImages = new LinkedList<ZSLQueue.ImageItem>();
@@ -164,7 +168,10 @@ public class PostProcessor{
     }
 
     public void onStartCapturing() {
-        mTotalCaptureResultList.clear();
+        mCaptureResults.reset();
+        synchronized (mImageTimestamps) {
+            Arrays.fill(mImageTimestamps, CaptureResultTracker.ANY_TIMESTAMP);
+        }
     }
 
     public ImageReader getZSLReprocessImageReader() {
@@ -400,9 +407,7 @@ public class PostProcessor{
                                        CaptureRequest request,
                                        TotalCaptureResult result) {
             Log.d(TAG, "onCaptureCompleted");
-            if(mTotalCaptureResultList.size() <= PostProcessor.MAX_REQUIRED_IMAGE_NUM) {
-                mTotalCaptureResultList.add(result);
-            }
+            mCaptureResults.onResult(result);
             if(mIsZSLFallOff) {
                 mZSLFallOffResult = result;
             } else {
@@ -764,6 +769,8 @@ public class PostProcessor{
             mZSLQueue.onClose();
             mZSLQueue = null;
         }
+        if (DEBUG_ZSL) Log.d(TAG, DirectBufferPool.getInstance().toString());
+        DirectBufferPool.getInstance().trim();
         if (mImageWriter != null) {
             mImageWriter.close();
             mImageWriter = null;
@@ -1018,6 +1025,11 @@ public class PostProcessor{
                         }
                         ByteBuffer yBuf = image.getPlanes()[0].getBuffer();
                         ByteBuffer vuBuf = image.getPlanes()[2].getBuffer();
+                        if (numImage < mImageTimestamps.length) {
+                            synchronized (mImageTimestamps) {
+                                mImageTimestamps[numImage] = image.getTimestamp();
+                            }
+                        }
 
                         if(mFilter == null) {
                             if (mIsDeepPortrait) {
@@ -1028,10 +1040,8 @@ public class PostProcessor{
                                 long current = System.currentTimeMillis();
                                 deepPortraitFilter.addImage(null,null,0,dpImage);
                                 if (DEBUG_DUMP_FILTER_IMG) {
-                                    ImageFilter.ResultImage debugResultImage = new
-                                            ImageFilter.ResultImage(ByteBuffer.allocateDirect(
-                                            mStride * mHeight * 3 / 2), new Rect(0, 0, mWidth,
-                                            mHeight), mWidth, mHeight, mStride);
+                                    ImageFilter.ResultImage debugResultImage =
+                                            acquireResultImage();
                                     yBuf.get(debugResultImage.outBuffer.array(), 0, yBuf.remaining());
                                     vuBuf.get(debugResultImage.outBuffer.array(), mStride * mHeight,
                                             vuBuf.remaining());
@@ -1039,6 +1049,8 @@ public class PostProcessor{
                                     vuBuf.rewind();
 
                                     byte[] bytes = nv21ToJpeg(debugResultImage, mOrientation, null);
+                                    DirectBufferPool.getInstance().release(
+                                            debugResultImage.outBuffer);
                                     mActivity.getMediaSaveService().addImage(
                                             bytes, "Debug_beforeApplyingFilter" + numImage, 0L, null,
                                             debugResultImage.outRoi.width(),
@@ -1062,43 +1074,40 @@ public class PostProcessor{
                                 }
                                 if (dpImage.mMask == null) {
                                     Log.d(TAG,"can't generate deepportrait mask");
-                                    mDefaultResultImage = new ImageFilter.ResultImage(
-                                            ByteBuffer.allocateDirect(mStride * mHeight*3/2),
-                                            new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStride);
+                                    mDefaultResultImage = acquireResultImage();
                                     yBuf.get(mDefaultResultImage.outBuffer.array(), 0, yBuf.remaining());
                                     vuBuf.get(mDefaultResultImage.outBuffer.array(), mStride*mHeight, vuBuf.remaining());
                                 } else {
-                                    ByteBuffer dstY = ByteBuffer.allocateDirect(yBuf.capacity());
-                                    ByteBuffer dstVU = ByteBuffer.allocateDirect(vuBuf.capacity());
                                     final SharedPreferences prefs =
                                             PreferenceManager.getDefaultSharedPreferences(mActivity);
                                     int level = prefs.getInt(SettingsManager.KEY_DEEPPORTRAIT_VALUE
                                             ,50);
+                                    // Render straight into the Y and VU regions of the result
+                                    // buffer instead of into scratch planes that get copied over.
+                                    mDefaultResultImage = acquireResultImage();
+                                    ByteBuffer out = mDefaultResultImage.outBuffer;
+                                    out.clear();
+                                    out.limit(yBuf.capacity());
+                                    ByteBuffer dstY = out.slice();
+                                    out.clear();
+                                    out.position(mStride * mHeight);
+                                    out.limit(mStride * mHeight + vuBuf.capacity());
+                                    ByteBuffer dstVU = out.slice();
+                                    out.clear();
                                     deepPortraitFilter.renderDeepportraitImage(
                                             dpImage,dstY,dstVU,0, level/100f);
                                     Log.d(TAG,"process Dp snapshot cost time "+ (System.currentTimeMillis() - current));
-                                    mDefaultResultImage = new ImageFilter.ResultImage(
-                                            ByteBuffer.allocateDirect(mStride * mHeight*3/2),
-                                            new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStride);
-                                    dstY.get(mDefaultResultImage.outBuffer.array(), 0,
-                                            dstY.remaining());
-                                    dstVU.get(mDefaultResultImage.outBuffer.array(), mStride*mHeight,
-                                            dstVU.remaining());
                                 }
                             } else {
-                                mDefaultResultImage = new ImageFilter.ResultImage(
-                                        ByteBuffer.allocateDirect(mStride * mHeight*3/2),
-                                        new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStride);
+                                mDefaultResultImage = acquireResultImage();
                                 yBuf.get(mDefaultResultImage.outBuffer.array(), 0, yBuf.remaining());
                                 vuBuf.get(mDefaultResultImage.outBuffer.array(), mStride*mHeight, vuBuf.remaining());
                             }
                             image.close();
                         } else {
                             if (DEBUG_DUMP_FILTER_IMG) {
-                                ImageFilter.ResultImage debugResultImage = new
-                                        ImageFilter.ResultImage(ByteBuffer.allocateDirect(
-                                        mStride * mHeight * 3 / 2), new Rect(0, 0, mWidth,
-                                        mHeight), mWidth, mHeight, mStride);
+                                ImageFilter.ResultImage debugResultImage =
+                                        acquireResultImage();
                                 yBuf.get(debugResultImage.outBuffer.array(), 0, yBuf.remaining());
                                 vuBuf.get(debugResultImage.outBuffer.array(), mStride * mHeight,
                                         vuBuf.remaining());
@@ -1106,6 +1115,8 @@ public class PostProcessor{
                                 vuBuf.rewind();
 
                                 byte[] bytes = nv21ToJpeg(debugResultImage, mOrientation, null);
+                                DirectBufferPool.getInstance().release(
+                                        debugResultImage.outBuffer);
                                 mActivity.getMediaSaveService().addImage(
                                         bytes, "Debug_beforeApplyingFilter" + numImage, 0L, null,
                                         debugResultImage.outRoi.width(),
@@ -1124,43 +1135,68 @@ public class PostProcessor{
             });
     }
 
+    private ImageFilter.ResultImage acquireResultImage() {
+        return new ImageFilter.ResultImage(
+                DirectBufferPool.getInstance().acquire(mStride * mHeight * 3 / 2),
+                new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStride);
+    }
+
     public static byte[] addExifTags(byte[] jpeg, int orientationInDegree, TotalCaptureResult result) {
+        return embedExif(jpeg, createExif(orientationInDegree, result));
+    }
+
+    /**
+     * Builds the EXIF block for a still from its capture result. The same object
+     * can be embedded into the JPEG bytes or handed to MediaSaveService, which
+     * streams it in front of the compressed data while writing the file.
+     */
+    public static ExifInterface createExif(int orientationInDegree, TotalCaptureResult result) {
         ExifInterface exif = new ExifInterface();
         exif.addMakeAndModelTag();
         exif.addOrientationTag(orientationInDegree);
         exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, System.currentTimeMillis(),
                 TimeZone.getDefault());
         if(result != null) {
-            if(result.get(CaptureResult.FLASH_MODE) != null) {
-                exif.addFlashTag(result.get(CaptureResult.FLASH_MODE) != CaptureResult.FLASH_MODE_OFF);
+            Integer flashMode = result.get(CaptureResult.FLASH_MODE);
+            if(flashMode != null) {
+                exif.addFlashTag(flashMode != CaptureResult.FLASH_MODE_OFF);
             }
-            if(result.get(CaptureResult.LENS_FOCAL_LENGTH) != null) {
-                exif.addFocalLength(new Rational((int)(result.get(CaptureResult.LENS_FOCAL_LENGTH)*100), 100));
+            Float focalLength = result.get(CaptureResult.LENS_FOCAL_LENGTH);
+            if(focalLength != null) {
+                exif.addFocalLength(new Rational((int)(focalLength*100), 100));
             }
-            if(result.get(CaptureResult.CONTROL_AWB_MODE) != null) {
-                exif.addWhiteBalanceMode(result.get(CaptureResult.CONTROL_AWB_MODE));
+            Integer awbMode = result.get(CaptureResult.CONTROL_AWB_MODE);
+            if(awbMode != null) {
+                exif.addWhiteBalanceMode(awbMode);
             }
-            if(result.get(CaptureResult.LENS_APERTURE) != null) {
-                exif.addAperture(new Rational((int)(result.get(CaptureResult.LENS_APERTURE)*100), 100));
+            Float aperture = result.get(CaptureResult.LENS_APERTURE);
+            if(aperture != null) {
+                exif.addAperture(new Rational((int)(aperture*100), 100));
             }
-            if(result.get(CaptureResult.SENSOR_EXPOSURE_TIME) != null) {
-                exif.addExposureTime(new Rational(result.get(CaptureResult.SENSOR_EXPOSURE_TIME)/1000000, 1000));
+            Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+            if(exposureTime != null) {
+                exif.addExposureTime(new Rational(exposureTime/1000000, 1000));
             }
-            if(result.get(CaptureResult.SENSOR_SENSITIVITY) != null) {
-                exif.addISO(result.get(CaptureResult.SENSOR_SENSITIVITY));
+            Integer sensitivity = result.get(CaptureResult.SENSOR_SENSITIVITY);
+            if(sensitivity != null) {
+                exif.addISO(sensitivity);
             }
-            if(result.get(CaptureResult.JPEG_GPS_LOCATION ) != null) {
-                exif.addGpsTags(result.get(CaptureResult.JPEG_GPS_LOCATION).getLatitude(),
-                        result.get(CaptureResult.JPEG_GPS_LOCATION).getLongitude());
+            Location location = result.get(CaptureResult.JPEG_GPS_LOCATION);
+            if(location != null) {
+                exif.addGpsTags(location.getLatitude(), location.getLongitude());
             }
         }
-        ByteArrayOutputStream jpegOut = new ByteArrayOutputStream();
+        return exif;
+    }
+
+    private static byte[] embedExif(byte[] jpeg, ExifInterface exif) {
+        BitmapOutputStream jpegOut = new BitmapOutputStream(jpeg.length + 64 * 1024);
         try {
             exif.writeExif(jpeg, jpegOut);
         } catch (IOException e) {
             Log.e(TAG, "Could not write EXIF", e);
         }
-        return jpegOut.toByteArray();
+        return jpegOut.getExactArray();
     }
 
     private void clear() {
@@ -1227,43 +1263,52 @@ public class PostProcessor{
                             ) {
                         Log.d(TAG, "Result image is not valid.");
                     } else {
-                        bytes = nv21ToJpeg(resultImage, mOrientation, waitForMetaData(0));
+                        bytes = compressNv21(resultImage);
+                        byte[] thumbnail = compressNv21Thumbnail(resultImage);
+                        if (resultImage == mDefaultResultImage) {
+                            DirectBufferPool.getInstance().release(resultImage.outBuffer);
+                            mDefaultResultImage = null;
+                        }
+                        // The EXIF block is built once and only merged into the bytes
+                        // when they leave the app; the save path streams it in front of
+                        // the compressed data while writing the file.
+                        ExifInterface exif = createExif(mOrientation, waitForMetaData(0));
+                        if (thumbnail != null) {
+                            exif.setCompressedThumbnail(thumbnail);
+                        }
                         if (mController.getCurrentIntentMode() ==
                                 CaptureModule.INTENT_MODE_CAPTURE) {
-                            mController.setJpegImageData(bytes);
+                            mController.setJpegImageData(embedExif(bytes, exif));
                             if (mController.isQuickCapture()) {
                                 mController.onCaptureDone();
                             } else {
                                 mController.showCapturedReview(bytes, mOrientation);
                             }
                         }
-                        ExifInterface exif = Exif.getExif(bytes);
                         mActivity.getMediaSaveService().addImage(
                                     bytes, title, date, null, resultImage.outRoi.width(), resultImage.outRoi.height(),
                                     mOrientation, exif, mediaSavedListener, contentResolver, "jpeg");
-                            mController.updateThumbnailJpegData(bytes);
+                            mController.updateThumbnailJpegData(bytes, mOrientation);
                     }
                 }
             }
         });
     }
 
+    /**
+     * Returns the capture result of image {@code index} of the current burst,
+     * matched by its sensor timestamp.
+     */
     public TotalCaptureResult waitForMetaData(int index) {
-        int timeout = 10; //100ms
-    	while(timeout > 0) {
-            if (mTotalCaptureResultList.size() > index) {
-                    return mTotalCaptureResultList.get(index);
-            }
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-            }
-            timeout--;
-        }
-        if(mTotalCaptureResultList.size() == 0) {
-            return null;
-        }
-        return mTotalCaptureResultList.get(0);
+        long timestamp;
+        synchronized (mImageTimestamps) {
+            timestamp = index < mImageTimestamps.length
+                    ? mImageTimestamps[index] : CaptureResultTracker.ANY_TIMESTAMP;
+        }
+        TotalCaptureResult result = mCaptureResults.await(timestamp,
+                PersistUtil.getCaptureResultTimeoutMs());
+        if (DEBUG_ZSL) Log.d(TAG, "waitForMetaData " + timestamp + ": " + mCaptureResults);
+        return result;
     }
 
     ImageReader.OnImageAvailableListener processedImageAvailableListener = new ImageReader.OnImageAvailableListener() {
@@ -1333,7 +1378,15 @@ public class PostProcessor{
     }
 
     public byte[] nv21ToJpeg(ImageFilter.ResultImage resultImage, int orientation, TotalCaptureResult result) {
-        BitmapOutputStream bos = new BitmapOutputStream(1024);
+        return addExifTags(compressNv21(resultImage), orientation, result);
+    }
+
+    /* Compresses the result image into an exactly sized JPEG without EXIF */
+    private byte[] compressNv21(ImageFilter.ResultImage resultImage) {
+        // Quality 55 output stays well under a quarter byte per pixel, so the
+        // stream almost never has to grow while the encoder writes into it.
+        BitmapOutputStream bos = new BitmapOutputStream(
+                Math.max(1024, resultImage.width * resultImage.height / 4));
         YuvImage im = new YuvImage(resultImage.outBuffer.array(), ImageFormat.NV21,
                                     resultImage.width, resultImage.height, new int[]{resultImage.stride, resultImage.stride});
         if(isSelfieMirrorOn() && !mController.isBackCamera()) {
@@ -1341,9 +1394,63 @@ public class PostProcessor{
             resultImage.outRoi = new Rect(resultImage.outRoi.left, t, resultImage.outRoi.right , resultImage.outRoi.height() + t);
         }
         im.compressToJpeg(resultImage.outRoi, getJpegQualityValue(), bos);
-        byte[] bytes = bos.getArray();
-        bytes = addExifTags(bytes, orientation, result);
-        return bytes;
+        return bos.getExactArray();
+    }
+
+    /*
+     * Compresses a thumbnail of the result image for the EXIF IFD1, sampling
+     * the NV21 planes directly instead of decoding the compressed result.
+     * Returns null if it does not fit in Exif.THUMBNAIL_MAX_BYTES even at the
+     * fallback quality.
+     */
+    private static byte[] compressNv21Thumbnail(ImageFilter.ResultImage resultImage) {
+        Rect roi = resultImage.outRoi;
+        int step = (Math.max(roi.width(), roi.height()) + Exif.THUMBNAIL_MAX_SIZE - 1)
+                / Exif.THUMBNAIL_MAX_SIZE;
+        int width = (roi.width() / step) & ~1;
+        int height = (roi.height() / step) & ~1;
+        if (width == 0 || height == 0) {
+            return null;
+        }
+        byte[] src = resultImage.outBuffer.array();
+        int stride = resultImage.stride;
+        int vuStart = stride * resultImage.height;
+        byte[] dst = new byte[width * height * 3 / 2];
+        for (int y = 0; y < height; y++) {
+            int srcRow = (roi.top + y * step) * stride + roi.left;
+            int dstRow = y * width;
+            for (int x = 0; x < width; x++) {
+                dst[dstRow + x] = src[srcRow + x * step];
+            }
+        }
+        for (int y = 0; y < height / 2; y++) {
+            int srcRow = vuStart + ((roi.top + 2 * y * step) / 2) * stride;
+            int dstRow = width * height + y * width;
+            for (int x = 0; x < width / 2; x++) {
+                int sx = ((roi.left + 2 * x * step) / 2) * 2;
+                dst[dstRow + 2 * x] = src[srcRow + sx];
+                dst[dstRow + 2 * x + 1] = src[srcRow + sx + 1];
+            }
+        }
+        YuvImage im = new YuvImage(dst, ImageFormat.NV21, width, height, null);
+        Rect rect = new Rect(0, 0, width, height);
+        BitmapOutputStream bos = new BitmapOutputStream(width * height / 4);
+        if (!im.compressToJpeg(rect, Exif.THUMBNAIL_QUALITY, bos)) {
+            return null;
+        }
+        byte[] thumbnail = bos.getExactArray();
+        if (thumbnail.length > Exif.THUMBNAIL_MAX_BYTES) {
+            bos = new BitmapOutputStream(Exif.THUMBNAIL_MAX_BYTES);
+            if (!im.compressToJpeg(rect, Exif.THUMBNAIL_FALLBACK_QUALITY, bos)) {
+                return null;
+            }
+            thumbnail = bos.getExactArray();
+        }
+        if (thumbnail.length > Exif.THUMBNAIL_MAX_BYTES) {
+            Log.w(TAG, "Thumbnail too large for EXIF: " + thumbnail.length);
+            return null;
+        }
+        return thumbnail;
     }
 
     public int getJpegQualityValue() {
@@ -1355,13 +1462,14 @@ public class PostProcessor{
         return quality;
     }
 
-    private class BitmapOutputStream extends ByteArrayOutputStream {
+    private static class BitmapOutputStream extends ByteArrayOutputStream {
         public BitmapOutputStream(int size) {
             super(size);
         }
 
-        public byte[] getArray() {
-            return buf;
+        /* Returns the written bytes, copying only if the buffer is not exactly full */
+        public byte[] getExactArray() {
+            return count == buf.length ? buf : toByteArray();
         }
     }
 
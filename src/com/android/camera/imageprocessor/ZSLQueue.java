@@ -37,15 +37,30 @@ import com.android.camera.CaptureModule;
 import com.android.camera.util.PersistUtil;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.NoSuchElementException;
+import java.util.Arrays;
 
 public class ZSLQueue {
+    private static final long INVALID_TIMESTAMP = -1;
+
+    public static final int QUALITY_LENS_MOVING = 1;
+    public static final int QUALITY_AE_SEARCHING = 1 << 1;
+    public static final int QUALITY_AF_SCANNING = 1 << 2;
+    public static final int QUALITY_AWB_SEARCHING = 1 << 3;
+    public static final int QUALITY_FLASH_REQUIRED = 1 << 4;
+    public static final int QUALITY_AE_CONVERGED = 1 << 5;
+    public static final int QUALITY_AF_FOCUSED = 1 << 6;
+    private static final int QUALITY_REJECT_MASK =
+            QUALITY_LENS_MOVING | QUALITY_AE_SEARCHING | QUALITY_AF_SCANNING;
+
     private int mCircularBufferSize;
     private ImageItem[] mBuffer;
-    private int mImageHead;
-    private int mMetaHead;
+    // Sensor timestamp owning each slot, INVALID_TIMESTAMP when the slot is free.
+    private long[] mTimestamps;
+    private TimestampIndex mIndex;
+    private int mHead;
+    private long mLastEvictedTimestamp = INVALID_TIMESTAMP;
+    private int mOrphanedFrames;
+    private int mDroppedFrames;
     private Object mLock = new Object();
     private CaptureModule mModule;
     private static final boolean DEBUG_QUEUE  =
@@ -57,164 +72,189 @@ public class ZSLQueue {
         mCircularBufferSize = PersistUtil.getCircularBufferSize();
         synchronized (mLock) {
             mBuffer = new ImageItem[mCircularBufferSize];
-            mImageHead = 0;
-            mMetaHead = 0;
+            mTimestamps = new long[mCircularBufferSize];
+            Arrays.fill(mTimestamps, INVALID_TIMESTAMP);
+            mIndex = new TimestampIndex(mCircularBufferSize);
+            mHead = 0;
             mModule = module;
         }
     }
 
-    private int findMeta(long timestamp, int index) {
-        int startIndex = index;
-        do {
-            if(mBuffer[index] != null && mBuffer[index].getMetadata() != null &&
-                    mBuffer[index].getMetadata().get(CaptureResult.SENSOR_TIMESTAMP).longValue() == timestamp) {
-                return index;
-            }
-            index = (index + 1) % mBuffer.length;
-        } while(index != startIndex);
-        return -1;
+    /**
+     * Returns the slot paired with {@code timestamp}, allocating the oldest slot
+     * for it when neither the image nor the metadata has arrived yet. Returns -1
+     * when the timestamp is older than anything still held by the queue.
+     */
+    private int acquireSlot(long timestamp) {
+        int slot = mIndex.get(timestamp);
+        if (slot >= 0) {
+            return slot;
+        }
+        if (timestamp <= mLastEvictedTimestamp) {
+            return -1;
+        }
+        slot = mHead;
+        mHead = (mHead + 1) % mBuffer.length;
+        evict(slot);
+        if (mBuffer[slot] == null) {
+            mBuffer[slot] = new ImageItem();
+        }
+        mTimestamps[slot] = timestamp;
+        mIndex.put(timestamp, slot);
+        return slot;
     }
 
-    private int findImage(long timestamp, int index) {
-        int startIndex = index;
-        do {
-            if(mBuffer[index] != null && mBuffer[index].getImage() != null &&
-                    mBuffer[index].getImage().getTimestamp() == timestamp) {
-                return index;
+    private void evict(int slot) {
+        long timestamp = mTimestamps[slot];
+        if (timestamp == INVALID_TIMESTAMP) {
+            return;
+        }
+        ImageItem item = mBuffer[slot];
+        if (item != null) {
+            if (item.isValid()) {
+                mDroppedFrames++;
+            } else {
+                mOrphanedFrames++;
             }
-            index = (index + 1) % mBuffer.length;
-        } while(index != startIndex);
-        return -1;
+            item.closeImage();
+            item.closeMeta();
+        }
+        mIndex.remove(timestamp);
+        mTimestamps[slot] = INVALID_TIMESTAMP;
+        if (timestamp > mLastEvictedTimestamp) {
+            mLastEvictedTimestamp = timestamp;
+        }
+    }
+
+    private ImageItem take(int slot) {
+        ImageItem item = mBuffer[slot];
+        mIndex.remove(mTimestamps[slot]);
+        mTimestamps[slot] = INVALID_TIMESTAMP;
+        mBuffer[slot] = null;
+        return item;
     }
 
     public void add(Image image, Image rawImage) {
-        int lastIndex = -1;
+        long timestamp = image.getTimestamp();
+        int slot = -1;
         synchronized (mLock) {
-            if(mBuffer == null)
-                return;
-            if(mBuffer[mImageHead] != null) {
-                mBuffer[mImageHead].closeImage();
-            } else {
-                mBuffer[mImageHead] = new ImageItem();
-            }
-            if(mBuffer[mImageHead].getMetadata() != null) {
-                if((mBuffer[mImageHead].getMetadata().get(CaptureResult.SENSOR_TIMESTAMP)).longValue() == image.getTimestamp()) {
-                    mBuffer[mImageHead].setImage(image,rawImage);
-                    lastIndex = mImageHead;
-                    mImageHead = (mImageHead + 1) % mBuffer.length;
-                } else if((mBuffer[mImageHead].getMetadata().get(CaptureResult.SENSOR_TIMESTAMP)).longValue() > image.getTimestamp()) {
-                    image.close();
+            if(mBuffer != null) {
+                slot = acquireSlot(timestamp);
+                if (slot >= 0) {
+                    mBuffer[slot].setImage(image, rawImage);
                 } else {
-                    int i = findMeta(image.getTimestamp(), mImageHead);
-                    if(i == -1) {
-                        mBuffer[mImageHead].setImage(image, rawImage);
-                        mBuffer[mImageHead].setMetadata(null);
-                        mImageHead = (mImageHead + 1) % mBuffer.length;
-                    } else {
-                        lastIndex = mImageHead = i;
-                        mBuffer[mImageHead].setImage(image, rawImage);
-                        mImageHead = (mImageHead + 1) % mBuffer.length;
-                    }
+                    mOrphanedFrames++;
                 }
-            } else {
-                mBuffer[mImageHead].setImage(image, rawImage);
-                lastIndex = mImageHead;
-                mImageHead = (mImageHead + 1) % mBuffer.length;
+            }
+        }
+        if (slot < 0) {
+            image.close();
+            if (rawImage != null) {
+                rawImage.close();
             }
         }
 
+        if(DEBUG_QUEUE) Log.d(TAG, "Image: " + slot + " " + timestamp);
     }
 
     public void add(TotalCaptureResult metadata) {
-        int lastIndex = -1;
+        long timestamp = INVALID_TIMESTAMP;
+        try {
+            timestamp = metadata.get(CaptureResult.SENSOR_TIMESTAMP).longValue();
+        } catch(IllegalStateException e) {
+            //This happens when corresponding image to this metadata is closed and discarded.
+            return;
+        }
+        if(timestamp == INVALID_TIMESTAMP) {
+            return;
+        }
+        // Decode 3A state before taking the lock shared with the image reader.
+        int qualityFlags = decodeQualityFlags(metadata);
+        int slot = -1;
         synchronized (mLock) {
             if(mBuffer == null)
                 return;
-            long timestamp = -1;
-            try {
-                timestamp = metadata.get(CaptureResult.SENSOR_TIMESTAMP).longValue();
-            } catch(IllegalStateException e) {
-                //This happens when corresponding image to this metadata is closed and discarded.
-                return;
-            }
-            if(timestamp == -1) {
-                return;
-            }
-            if(mBuffer[mMetaHead] == null) {
-                mBuffer[mMetaHead] = new ImageItem();
-            } else {
-                mBuffer[mMetaHead].closeMeta();
-            }
-            if(mBuffer[mMetaHead].getImage() != null) {
-                if(mBuffer[mMetaHead].getImage().getTimestamp() == timestamp) {
-                    mBuffer[mMetaHead].setMetadata(metadata);
-                    lastIndex = mMetaHead;
-                    mMetaHead = (mMetaHead + 1) % mBuffer.length;
-                } else if(mBuffer[mMetaHead].getImage().getTimestamp() > timestamp) {
-                    //Disard
-                } else {
-                    int i = findImage(timestamp, mMetaHead);
-                    if(i == -1) {
-                        mBuffer[mMetaHead].setImage(null, null);
-                        mBuffer[mMetaHead].setMetadata(metadata);
-                        mMetaHead = (mMetaHead + 1) % mBuffer.length;
-                    } else {
-                        lastIndex = mMetaHead = i;
-                        mBuffer[mMetaHead].setMetadata(metadata);
-                        mMetaHead = (mMetaHead + 1) % mBuffer.length;
-                    }
-                }
+            slot = acquireSlot(timestamp);
+            if (slot >= 0) {
+                mBuffer[slot].setMetadata(metadata, qualityFlags);
             } else {
-                mBuffer[mMetaHead].setMetadata(metadata);
-                lastIndex = mImageHead;
-                mMetaHead = (mMetaHead + 1) % mBuffer.length;
+                mOrphanedFrames++;
             }
         }
 
-        if(DEBUG_QUEUE) Log.d(TAG, "Meta: " + lastIndex + " " + metadata.get(CaptureResult.SENSOR_TIMESTAMP));
+        if(DEBUG_QUEUE) Log.d(TAG, "Meta: " + slot + " " + timestamp);
     }
 
+    /**
+     * Picks the newest complete frame whose 3A state is acceptable. The
+     * quality flags are decoded when the metadata arrives, so the scan is a
+     * bit test per slot and allocates nothing, and it runs under the lock in
+     * a single pass.
+     */
     public ImageItem tryToGetMatchingItem() {
         synchronized (mLock) {
-            int index = mImageHead;
-            ImageItem item;
-            do {
-                item = mBuffer[index];
-                if (item != null && item.isValid() && checkImageRequirement(item.getMetadata())) {
-                    mBuffer[index] = null;
-                    return item;
-                }
+            if (mBuffer == null) {
+                return null;
+            }
+            int index = mHead;
+            for (int i = 0; i < mBuffer.length; i++) {
                 index--;
                 if (index < 0) index = mBuffer.length - 1;
-            } while (index != mImageHead);
+                ImageItem item = mBuffer[index];
+                if (item != null && item.isValid()
+                        && scoreFrame(item.getQualityFlags()) >= 0) {
+                    return take(index);
+                }
+            }
         }
         return null;
     }
 
+    /**
+     * Drains every slot that holds an image, newest first.
+     */
     public List<ImageItem> getAllItems() {
         List<ImageItem> items = new ArrayList<ImageItem>(mBuffer.length);
         synchronized (mLock) {
-            int index = mImageHead;
-            ImageItem item;
-            while(true) {
-                item = mBuffer[index];
-                if (item == null) {
-                    break;
-                }
-                mBuffer[index] = null;
-                items.add(item);
+            int index = mHead;
+            for (int i = 0; i < mBuffer.length; i++) {
                 index--;
                 if (index < 0) {
                     index = mBuffer.length - 1;
                 }
+                if (mTimestamps[index] == INVALID_TIMESTAMP) {
+                    continue;
+                }
+                if (mBuffer[index].getImage() != null) {
+                    items.add(take(index));
+                } else {
+                    evict(index);
+                }
             }
-            mImageHead = 0;
+            mHead = 0;
         }
         return items;
     }
 
+    /** Number of images or results evicted, or rejected as stale, before being paired. */
+    public int getOrphanedFrameCount() {
+        synchronized (mLock) {
+            return mOrphanedFrames;
+        }
+    }
+
+    /** Number of complete frames that were evicted without ever being selected. */
+    public int getDroppedFrameCount() {
+        synchronized (mLock) {
+            return mDroppedFrames;
+        }
+    }
+
     public void onClose() {
         synchronized (mLock) {
+            if (mBuffer == null) {
+                return;
+            }
             for (int i = 0; i < mBuffer.length; i++) {
                 if (mBuffer[i] != null) {
                     mBuffer[i].closeImage();
@@ -222,45 +262,90 @@ public class ZSLQueue {
                     mBuffer[i] = null;
                 }
             }
+            if (DEBUG_QUEUE) {
+                Log.d(TAG, "onClose orphaned=" + mOrphanedFrames + " dropped=" + mDroppedFrames);
+            }
             mBuffer = null;
-            mImageHead = 0;
-            mMetaHead = 0;
+            mTimestamps = null;
+            mIndex = null;
+            mHead = 0;
         }
     }
 
-    private boolean checkImageRequirement(TotalCaptureResult captureResult) {
-        if( (captureResult.get(CaptureResult.LENS_STATE) != null &&
-             captureResult.get(CaptureResult.LENS_STATE).intValue() == CaptureResult.LENS_STATE_MOVING)
-                ||
-            (captureResult.get(CaptureResult.CONTROL_AE_STATE) != null &&
-                (captureResult.get(CaptureResult.CONTROL_AE_STATE).intValue() == CaptureResult.CONTROL_AE_STATE_SEARCHING ||
-                 captureResult.get(CaptureResult.CONTROL_AE_STATE).intValue() == CaptureResult.CONTROL_AE_STATE_PRECAPTURE))
-                ||
-            (captureResult.get(CaptureResult.CONTROL_AF_STATE) != null) &&
-                (captureResult.get(CaptureResult.CONTROL_AF_STATE) == CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN ||
-                 captureResult.get(CaptureResult.CONTROL_AF_STATE) == CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN)) {
-            return false;
+    /**
+     * Scores a frame from its packed 3A flags. Negative scores mean the frame must
+     * not be used for a still; otherwise higher is better.
+     */
+    public static int scoreFrame(int qualityFlags) {
+        if ((qualityFlags & QUALITY_REJECT_MASK) != 0) {
+            return -1;
         }
-
-        if( captureResult.get(CaptureResult.CONTROL_AE_STATE) != null &&
-            captureResult.get(CaptureResult.FLASH_MODE) != null &&
-            captureResult.get(CaptureResult.CONTROL_AE_STATE).intValue() == CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED &&
-            captureResult.get(CaptureResult.FLASH_MODE).intValue() != CaptureResult.FLASH_MODE_OFF) {
-            return true;
+        if ((qualityFlags & QUALITY_FLASH_REQUIRED) != 0) {
+            return 0;
         }
-
-        if( captureResult.get(CaptureResult.CONTROL_AWB_STATE) != null &&
-            captureResult.get(CaptureResult.CONTROL_AWB_STATE).intValue() == CaptureResult.CONTROL_AWB_STATE_SEARCHING ) {
-            return false;
+        if ((qualityFlags & QUALITY_AWB_SEARCHING) != 0) {
+            return -1;
         }
+        int score = 0;
+        if ((qualityFlags & QUALITY_AE_CONVERGED) != 0) score++;
+        if ((qualityFlags & QUALITY_AF_FOCUSED) != 0) score++;
+        return score;
+    }
 
-        return true;
+    /**
+     * Decodes the 3A and lens state of a capture result once into a bit set of
+     * QUALITY_* flags, so frame selection never touches the metadata map again.
+     */
+    static int decodeQualityFlags(TotalCaptureResult captureResult) {
+        int flags = 0;
+        Integer lensState = captureResult.get(CaptureResult.LENS_STATE);
+        if (lensState != null && lensState == CaptureResult.LENS_STATE_MOVING) {
+            flags |= QUALITY_LENS_MOVING;
+        }
+        Integer aeState = captureResult.get(CaptureResult.CONTROL_AE_STATE);
+        if (aeState != null) {
+            switch (aeState) {
+                case CaptureResult.CONTROL_AE_STATE_SEARCHING:
+                case CaptureResult.CONTROL_AE_STATE_PRECAPTURE:
+                    flags |= QUALITY_AE_SEARCHING;
+                    break;
+                case CaptureResult.CONTROL_AE_STATE_CONVERGED:
+                case CaptureResult.CONTROL_AE_STATE_LOCKED:
+                    flags |= QUALITY_AE_CONVERGED;
+                    break;
+                case CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED:
+                    Integer flashMode = captureResult.get(CaptureResult.FLASH_MODE);
+                    if (flashMode != null && flashMode != CaptureResult.FLASH_MODE_OFF) {
+                        flags |= QUALITY_FLASH_REQUIRED;
+                    }
+                    break;
+            }
+        }
+        Integer afState = captureResult.get(CaptureResult.CONTROL_AF_STATE);
+        if (afState != null) {
+            switch (afState) {
+                case CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN:
+                case CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN:
+                    flags |= QUALITY_AF_SCANNING;
+                    break;
+                case CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED:
+                case CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED:
+                    flags |= QUALITY_AF_FOCUSED;
+                    break;
+            }
+        }
+        Integer awbState = captureResult.get(CaptureResult.CONTROL_AWB_STATE);
+        if (awbState != null && awbState == CaptureResult.CONTROL_AWB_STATE_SEARCHING) {
+            flags |= QUALITY_AWB_SEARCHING;
+        }
+        return flags;
     }
 
     public static class ImageItem {
         private Image mImage = null;
         private Image mRawImage = null;
         private TotalCaptureResult mMetadata = null;
+        private int mQualityFlags = 0;
 
         public Image getImage() {
             return mImage;
@@ -285,6 +370,17 @@ public class ZSLQueue {
 
         public void setMetadata(TotalCaptureResult metadata) {
             mMetadata = metadata;
+            mQualityFlags = metadata != null ? decodeQualityFlags(metadata) : 0;
+        }
+
+        void setMetadata(TotalCaptureResult metadata, int qualityFlags) {
+            mMetadata = metadata;
+            mQualityFlags = qualityFlags;
+        }
+
+        /** Packed QUALITY_* flags decoded when the metadata was attached. */
+        public int getQualityFlags() {
+            return mQualityFlags;
         }
 
         public void closeImage() {
@@ -295,10 +391,12 @@ public class ZSLQueue {
                 mRawImage.close();
             }
             mImage = null;
+            mRawImage = null;
         }
 
         public void closeMeta() {
             mMetadata = null;
+            mQualityFlags = 0;
         }
 
         public boolean isValid() {
@@ -308,4 +406,71 @@ public class ZSLQueue {
             return false;
         }
     }
+
+    /**
+     * Open-addressed timestamp to slot map with linear probing, sized so that the
+     * load factor stays under 1/2 for a full ring.
+     */
+    private static final class TimestampIndex {
+        private final long[] mKeys;
+        private final int[] mSlots;
+        private final int mMask;
+
+        TimestampIndex(int slots) {
+            int capacity = Integer.highestOneBit(Math.max(slots, 1) * 4 - 1) << 1;
+            mKeys = new long[capacity];
+            mSlots = new int[capacity];
+            mMask = capacity - 1;
+            Arrays.fill(mKeys, INVALID_TIMESTAMP);
+        }
+
+        private int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mMask;
+        }
+
+        int get(long key) {
+            for (int i = hash(key); mKeys[i] != INVALID_TIMESTAMP; i = (i + 1) & mMask) {
+                if (mKeys[i] == key) {
+                    return mSlots[i];
+                }
+            }
+            return -1;
+        }
+
+        void put(long key, int slot) {
+            int i = hash(key);
+            while (mKeys[i] != INVALID_TIMESTAMP && mKeys[i] != key) {
+                i = (i + 1) & mMask;
+            }
+            mKeys[i] = key;
+            mSlots[i] = slot;
+        }
+
+        void remove(long key) {
+            int i = hash(key);
+            while (mKeys[i] != key) {
+                if (mKeys[i] == INVALID_TIMESTAMP) {
+                    return;
+                }
+                i = (i + 1) & mMask;
+            }
+            // Backward-shift deletion keeps probe chains intact without tombstones.
+            int j = i;
+            while (true) {
+                j = (j + 1) & mMask;
+                if (mKeys[j] == INVALID_TIMESTAMP) {
+                    break;
+                }
+                int home = hash(mKeys[j]);
+                boolean movable = (i <= j) ? (home <= i || home > j) : (home <= i && home > j);
+                if (movable) {
+                    mKeys[i] = mKeys[j];
+                    mSlots[i] = mSlots[j];
+                    i = j;
+                }
+            }
+            mKeys[i] = INVALID_TIMESTAMP;
+        }
+    }
 }
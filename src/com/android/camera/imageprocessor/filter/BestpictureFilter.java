@@ -49,6 +49,7 @@ import com.android.camera.CameraActivity;
 import com.android.camera.CaptureModule;
 import com.android.camera.MediaSaveService;
 import com.android.camera.PhotoModule;
+import com.android.camera.imageprocessor.DirectBufferPool;
 import com.android.camera.imageprocessor.PostProcessor;
 import com.android.camera.util.CameraUtil;
 
@@ -207,7 +208,8 @@ public class BestpictureFilter implements ImageFilter {
             if (!mIsOn) {
                 return null;
             }
-            mBestpictureResultImage = new ImageFilter.ResultImage(ByteBuffer.allocateDirect(
+            DirectBufferPool pool = DirectBufferPool.getInstance();
+            mBestpictureResultImage = new ImageFilter.ResultImage(pool.acquire(
                     mStrideY * mHeight * 3 / 2),
                     new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStrideY);
             yBuf.get(mBestpictureResultImage.outBuffer.array(), 0, yBuf.remaining());
@@ -216,8 +218,10 @@ public class BestpictureFilter implements ImageFilter {
             yBuf.rewind();
             vuBuf.rewind();
 
-            return nv21ToJpeg(mBestpictureResultImage, mOrientation,
+            byte[] jpeg = nv21ToJpeg(mBestpictureResultImage, mOrientation,
                     mProcessor.waitForMetaData(imageNum));
+            pool.release(mBestpictureResultImage.outBuffer);
+            return jpeg;
         }
     }
 
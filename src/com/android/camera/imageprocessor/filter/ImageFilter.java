@@ -32,6 +32,7 @@ import android.graphics.Rect;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CaptureRequest;
+import android.media.Image;
 import android.os.Handler;
 import com.android.camera.util.PersistUtil;
 
@@ -81,6 +82,50 @@ public interface ImageFilter {
         }
     }
 
+    /*
+     * View over the Y and interleaved VU planes of a YUV_420_888 image, handed to
+     * consumers without copying the pixels. The view starts with one reference held
+     * by its creator; every additional consumer must retain() it before using the
+     * buffers and release() it when done. The underlying Image is closed when the
+     * last reference is released, after which the buffers must not be touched.
+     */
+    class PlaneView {
+        public final ByteBuffer y;
+        public final ByteBuffer vu;
+        public final int width;
+        public final int height;
+        private final Image mImage;
+        private int mRefCount = 1;
+
+        public PlaneView(Image image) {
+            Image.Plane[] planes = image.getPlanes();
+            mImage = image;
+            y = planes[0].getBuffer();
+            vu = planes[2].getBuffer();
+            width = image.getWidth();
+            height = image.getHeight();
+        }
+
+        /* Returns false if the view has already been fully released */
+        public synchronized boolean retain() {
+            if (mRefCount <= 0) {
+                return false;
+            }
+            mRefCount++;
+            return true;
+        }
+
+        public synchronized void release() {
+            if (mRefCount <= 0) {
+                return;
+            }
+            mRefCount--;
+            if (mRefCount == 0) {
+                mImage.close();
+            }
+        }
+    }
+
     /* Whether it is post proc filter or frame proc filter */
     boolean isFrameListener();
 
@@ -46,6 +46,7 @@ import android.util.Range;
 
 import com.android.camera.CameraActivity;
 import com.android.camera.CaptureModule;
+import com.android.camera.imageprocessor.DirectBufferPool;
 import com.android.camera.imageprocessor.PostProcessor;
 import com.android.camera.util.CameraUtil;
 
@@ -293,7 +294,8 @@ public class UbifocusFilter implements ImageFilter {
             if (mOutBuf == null) {
                 return null;
             }
-            mUbifocusResultImage = new ImageFilter.ResultImage(ByteBuffer.allocateDirect(
+            DirectBufferPool pool = DirectBufferPool.getInstance();
+            mUbifocusResultImage = new ImageFilter.ResultImage(pool.acquire(
                     mStrideY * mHeight * 3 / 2),
                     new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStrideY);
             yBuf.get(mUbifocusResultImage.outBuffer.array(), 0, yBuf.remaining());
@@ -302,8 +304,13 @@ public class UbifocusFilter implements ImageFilter {
             yBuf.rewind();
             vuBuf.rewind();
 
-            return nv21ToJpeg(mUbifocusResultImage, mOrientation,
+            byte[] jpeg = nv21ToJpeg(mUbifocusResultImage, mOrientation,
                     mPostProcessor.waitForMetaData(imageNum));
+            if (imageNum != 0) {
+                // The first frame is kept as mOriginImage, everything else can be recycled.
+                pool.release(mUbifocusResultImage.outBuffer);
+            }
+            return jpeg;
         }
     }
 
@@ -19,7 +19,6 @@
 
 package com.android.camera.mpo;
 
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -96,11 +95,26 @@ public class MpoInterface {
         return s.size();
     }
 
+    /**
+     * Writes the mpo to a file with a single gathering write of the MP headers
+     * and the unmodified jpeg payloads.
+     *
+     * @return the size of the written file, or -1 on failure.
+     */
     public static int writeMpo(MpoData mpo, String outFilename) {
         if (mpo == null || outFilename == null)
             throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
 
-        return writeMpo(mpo, getFileWriterStream(outFilename));
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(outFilename);
+            return MpoWriter.write(mpo, out.getChannel());
+        } catch (IOException e) {
+            Log.w(TAG, "IO Exception when writing mpo image", e);
+            return -1;
+        } finally {
+            CameraUtil.closeSilently(out);
+        }
     }
 
     /**
@@ -118,26 +132,4 @@ public class MpoInterface {
         MpoOutputStream mos = new MpoOutputStream(outStream);
         return mos;
     }
-
-    /**
-     * Returns an FileOutputStream object that writes to a file.
-     *
-     * @param outFileName
-     *            an String containing a filepath for a file.
-     * @return an FileOutputStream that writes to the outFileName file.
-     * @throws FileNotFoundException
-     */
-    private static OutputStream getFileWriterStream(String outFileName) {
-        if (outFileName == null) {
-            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
-        }
-        OutputStream out = null;
-        try {
-            out = new FileOutputStream(outFileName);
-        } catch (FileNotFoundException e) {
-            CameraUtil.closeSilently(out);
-            Log.w(TAG, "File not found");
-        }
-        return out;
-    }
 }
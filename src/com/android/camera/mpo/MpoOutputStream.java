@@ -51,7 +51,7 @@ class MpoOutputStream extends FilterOutputStream {
     private static final short TIFF_LITTLE_ENDIAN = 0x4949;
     private static final int MAX_EXIF_SIZE = 65535;
 
-    private static final String DC_CROP_INFO = "Qualcomm Dual Camera Attributes";
+    static final String DC_CROP_INFO = "Qualcomm Dual Camera Attributes";
     private static final int DC_CROP_INFO_BYTE_SIZE = DC_CROP_INFO.length();
 
     private MpoData mMpoData;
@@ -343,7 +343,7 @@ class MpoOutputStream extends FilterOutputStream {
             writeIfd(attribIfd, dataOutputStream);
     }
 
-    private void writeIfd(MpoIfdData ifd, OrderedDataOutputStream dataOutputStream)
+    static void writeIfd(MpoIfdData ifd, OrderedDataOutputStream dataOutputStream)
             throws IOException {
         MpoTag[] tags = ifd.getAllTags();
         dataOutputStream.writeShort((short) tags.length);
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.android.camera.mpo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.android.camera.exif.JpegHeader;
+import com.android.camera.mpo.MpoTag.MpEntry;
+
+/**
+ * Reads the images of an MPO file. The file is memory mapped and only the MP
+ * Index IFD of the primary image is parsed; every image is then exposed as a
+ * slice of the mapping that is created on demand, so a single auxiliary image
+ * can be decoded or exported without reading the others.
+ */
+public class MpoReader {
+    private static final short TIFF_HEADER = 0x002A;
+    private static final short TIFF_BIG_ENDIAN = 0x4d4d;
+    private static final short TIFF_LITTLE_ENDIAN = 0x4949;
+
+    private final ByteBuffer mBuffer;
+    private final List<MpEntry> mEntries;
+    private final int mMpoOffsetStart;
+
+    private MpoReader(ByteBuffer buffer, List<MpEntry> entries, int mpoOffsetStart) {
+        mBuffer = buffer;
+        mEntries = entries;
+        mMpoOffsetStart = mpoOffsetStart;
+    }
+
+    /**
+     * Maps the given file and parses its MP Index IFD.
+     *
+     * @throws IOException if the file cannot be read or is not an MPO file.
+     */
+    public static MpoReader open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // The mapping stays valid after the file is closed.
+            ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    raf.length());
+            return parse(buffer);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Parses the MP Index IFD of an MPO file held in the given buffer, from
+     * its position to its limit. The buffer is not copied.
+     *
+     * @throws IOException if the buffer does not contain an MPO file.
+     */
+    public static MpoReader parse(ByteBuffer buffer) throws IOException {
+        ByteBuffer buf = buffer.slice();
+        int tiffStart = findMpTiffHeader(buf);
+        if (tiffStart < 0) {
+            throw new IOException("No MP format segment found");
+        }
+        short order = buf.getShort(tiffStart);
+        if (order == TIFF_BIG_ENDIAN) {
+            buf.order(ByteOrder.BIG_ENDIAN);
+        } else if (order == TIFF_LITTLE_ENDIAN) {
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+        } else {
+            throw new IOException("Invalid TIFF byte order");
+        }
+        if (buf.getShort(tiffStart + 2) != TIFF_HEADER) {
+            throw new IOException("Invalid TIFF header");
+        }
+        long ifdOffset = (long) tiffStart + buf.getInt(tiffStart + 4);
+        checkRange(buf, ifdOffset, 2);
+        int ifdStart = (int) ifdOffset;
+        int tagCount = buf.getShort(ifdStart) & 0xffff;
+        checkRange(buf, ifdStart + 2, (long) tagCount * MpoTag.TAG_SIZE);
+
+        List<MpEntry> entries = null;
+        for (int i = 0; i < tagCount; i++) {
+            int tagOffset = ifdStart + 2 + i * MpoTag.TAG_SIZE;
+            if (buf.getShort(tagOffset) != (short) MpoInterface.TAG_MP_ENTRY) {
+                continue;
+            }
+            int size = buf.getInt(tagOffset + 4);
+            int count = size / MpEntry.SIZE;
+            long valueStart = (long) tiffStart + buf.getInt(tagOffset + 8);
+            checkRange(buf, valueStart, (long) count * MpEntry.SIZE);
+            entries = new ArrayList<MpEntry>(count);
+            buf.position((int) valueStart);
+            for (int j = 0; j < count; j++) {
+                entries.add(new MpEntry(buf));
+            }
+            break;
+        }
+        if (entries == null || entries.isEmpty()) {
+            throw new IOException("No MP entries found");
+        }
+        buf.position(0);
+        buf.order(ByteOrder.BIG_ENDIAN);
+        return new MpoReader(buf, entries, tiffStart);
+    }
+
+    // Returns the offset of the TIFF header in the APP2 MP format segment of
+    // the primary image, or -1.
+    private static int findMpTiffHeader(ByteBuffer buf) {
+        int limit = buf.limit();
+        if (limit < 4 || buf.getShort(0) != JpegHeader.SOI) {
+            return -1;
+        }
+        int pos = 2;
+        while (pos + 8 <= limit) {
+            short marker = buf.getShort(pos);
+            if (JpegHeader.isSofMarker(marker) || marker == JpegHeader.EOI) {
+                return -1;
+            }
+            int length = buf.getShort(pos + 2) & 0xffff;
+            if (marker == JpegHeader.APP2
+                    && buf.getInt(pos + 4) == MpoImageData.MP_FORMAT_IDENTIFIER) {
+                return pos + 8;
+            }
+            pos += 2 + length;
+        }
+        return -1;
+    }
+
+    // Offsets and lengths come from the file, so they are checked in long
+    // arithmetic where a large value cannot wrap around.
+    private static void checkRange(ByteBuffer buf, long offset, long length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > buf.limit()) {
+            throw new IOException("MP data out of range");
+        }
+    }
+
+    public int getImageCount() {
+        return mEntries.size();
+    }
+
+    public int getImageAttrib(int index) {
+        return mEntries.get(index).getImageAttrib();
+    }
+
+    public int getImageSize(int index) {
+        return mEntries.get(index).getImageSize();
+    }
+
+    /**
+     * Returns the offset of the image from the start of the file. The MP
+     * entries store it relative to the primary TIFF header.
+     */
+    public int getImageOffset(int index) {
+        // primary offset is always 0
+        return index == 0 ? 0 : mMpoOffsetStart + mEntries.get(index).getImageOffset();
+    }
+
+    /**
+     * Returns a read-only view of the jpeg data of the given image. Nothing is
+     * read from the file until the view is accessed.
+     *
+     * @throws IOException if the entry points outside the file.
+     */
+    public ByteBuffer getImage(int index) throws IOException {
+        long offset = index == 0 ? 0
+                : (long) mMpoOffsetStart + mEntries.get(index).getImageOffset();
+        int size = getImageSize(index);
+        checkRange(mBuffer, offset, size);
+        ByteBuffer view = mBuffer.asReadOnlyBuffer();
+        view.limit((int) offset + size);
+        view.position((int) offset);
+        return view.slice();
+    }
+
+    /**
+     * Copies the jpeg data of the given image, for example to save it as a
+     * standalone file.
+     */
+    public byte[] getImageBytes(int index) throws IOException {
+        ByteBuffer view = getImage(index);
+        byte[] bytes = new byte[view.remaining()];
+        view.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Decodes the given image only.
+     */
+    public Bitmap decodeImage(int index, BitmapFactory.Options options) throws IOException {
+        byte[] bytes = getImageBytes(index);
+        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+    }
+}
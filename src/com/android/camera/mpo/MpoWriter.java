@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.android.camera.mpo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.android.camera.exif.JpegHeader;
+import com.android.camera.exif.OrderedDataOutputStream;
+import com.android.camera.mpo.MpoTag.MpEntry;
+
+/**
+ * Writes an MPO file with a single gathering write. All MP Index and MP
+ * Attribute IFD offsets are known from {@link MpoImageData#calculateImageSize}
+ * before anything is written, so the APP2 segments are built up front and the
+ * JPEG payloads are handed to the channel as untouched slices.
+ */
+class MpoWriter {
+    private static final short TIFF_HEADER = 0x002A;
+    private static final short TIFF_BIG_ENDIAN = 0x4d4d;
+    private static final short TIFF_LITTLE_ENDIAN = 0x4949;
+    private static final int MAX_EXIF_SIZE = 65535;
+
+    // APP2 marker, segment length and MP format identifier.
+    private static final int MP_SEGMENT_PREFIX_SIZE = 8;
+
+    private MpoWriter() {
+    }
+
+    /**
+     * Writes the MPO to the channel.
+     *
+     * @return the number of bytes written, which is the size of the file.
+     */
+    static int write(MpoData mpo, FileChannel channel) throws IOException {
+        mpo.updateAllTags();
+        MpoImageData primary = mpo.getPrimaryMpoImage();
+        List<MpoImageData> auxiliaries = mpo.getAuxiliaryMpoImages();
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(4 * (auxiliaries.size() + 1));
+
+        // MP entry offsets are relative to the TIFF header of the primary image.
+        int insertOffset = findInsertOffset(primary.getJpegData());
+        updateIndexIfdOffsets(primary, insertOffset + MP_SEGMENT_PREFIX_SIZE);
+        // The dual camera crop info is only cleared from the ClearSight image.
+        addImage(buffers, primary, insertOffset, auxiliaries.size() > 1);
+        for (MpoImageData image : auxiliaries) {
+            addImage(buffers, image, findInsertOffset(image.getJpegData()), false);
+        }
+
+        ByteBuffer[] srcs = buffers.toArray(new ByteBuffer[buffers.size()]);
+        long total = 0;
+        for (ByteBuffer b : srcs) {
+            total += b.remaining();
+        }
+        long written = 0;
+        while (written < total) {
+            written += channel.write(srcs);
+        }
+        return (int) total;
+    }
+
+    private static void addImage(List<ByteBuffer> buffers, MpoImageData image,
+            int insertOffset, boolean clearCropInfo) throws IOException {
+        byte[] jpeg = image.getJpegData();
+        buffers.add(ByteBuffer.wrap(jpeg, 0, insertOffset));
+        buffers.add(ByteBuffer.wrap(buildMpSegment(image)));
+        int cropOffset = clearCropInfo ? findCropInfo(jpeg, insertOffset) : -1;
+        if (cropOffset < 0) {
+            buffers.add(ByteBuffer.wrap(jpeg, insertOffset, jpeg.length - insertOffset));
+            return;
+        }
+        // Keep the marker and length, zero out the payload.
+        int payloadOffset = cropOffset + 4;
+        int payloadLength = readUnsignedShort(jpeg, cropOffset + 2) - 2;
+        int end = payloadOffset + payloadLength;
+        buffers.add(ByteBuffer.wrap(jpeg, insertOffset, payloadOffset - insertOffset));
+        buffers.add(ByteBuffer.allocate(payloadLength));
+        buffers.add(ByteBuffer.wrap(jpeg, end, jpeg.length - end));
+    }
+
+    /**
+     * Returns the offset of the first segment after SOI that is neither APP0
+     * nor APP1. The MP segment is inserted there.
+     */
+    private static int findInsertOffset(byte[] jpeg) throws IOException {
+        if (jpeg.length < 4 || (short) readUnsignedShort(jpeg, 0) != JpegHeader.SOI) {
+            throw new IOException("Not a valid jpeg image, cannot write mpo");
+        }
+        int pos = 2;
+        while (pos + 4 <= jpeg.length) {
+            short marker = (short) readUnsignedShort(jpeg, pos);
+            if (marker != JpegHeader.APP0 && marker != JpegHeader.APP1) {
+                return pos;
+            }
+            pos += 2 + readUnsignedShort(jpeg, pos + 2);
+        }
+        throw new IOException("Truncated jpeg image, cannot write mpo");
+    }
+
+    /**
+     * Returns the offset of the dual camera crop info segment that precedes
+     * SOF, or -1 if there is none.
+     */
+    private static int findCropInfo(byte[] jpeg, int pos) {
+        byte[] magic = MpoOutputStream.DC_CROP_INFO.getBytes();
+        while (pos + 4 <= jpeg.length) {
+            short marker = (short) readUnsignedShort(jpeg, pos);
+            if (JpegHeader.isSofMarker(marker) || marker == JpegHeader.EOI) {
+                return -1;
+            }
+            int length = readUnsignedShort(jpeg, pos + 2);
+            if (length - 2 >= magic.length && pos + 4 + magic.length <= jpeg.length) {
+                boolean match = true;
+                for (int i = 0; i < magic.length && match; i++) {
+                    match = jpeg[pos + 4 + i] == magic[i];
+                }
+                if (match) {
+                    return pos;
+                }
+            }
+            pos += 2 + length;
+        }
+        return -1;
+    }
+
+    private static void updateIndexIfdOffsets(MpoImageData primary, int mpoOffset) {
+        MpoTag mpEntryTag = primary.getTag((short) MpoInterface.TAG_MP_ENTRY,
+                MpoIfdData.TYPE_MP_INDEX_IFD);
+        List<MpEntry> mpEntries = mpEntryTag.getMpEntryValue();
+        // primary offset is always 0
+        for (int i = 1; i < mpEntries.size(); i++) {
+            MpEntry entry = mpEntries.get(i);
+            entry.setImageOffset(entry.getImageOffset() - mpoOffset);
+        }
+        mpEntryTag.setValue(mpEntries);
+    }
+
+    private static byte[] buildMpSegment(MpoImageData image) throws IOException {
+        int exifSize = image.calculateAllIfdOffsets() + MpoImageData.APP_HEADER_SIZE;
+        if (exifSize > MAX_EXIF_SIZE) {
+            throw new IOException("Exif header is too large (>64Kb)");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(exifSize + 2);
+        OrderedDataOutputStream dataOutputStream = new OrderedDataOutputStream(bytes);
+        dataOutputStream.setByteOrder(ByteOrder.BIG_ENDIAN);
+        dataOutputStream.writeShort(JpegHeader.APP2);
+        dataOutputStream.writeShort((short) (exifSize));
+        dataOutputStream.writeInt(MpoImageData.MP_FORMAT_IDENTIFIER);
+        if (image.getByteOrder() == ByteOrder.BIG_ENDIAN) {
+            dataOutputStream.writeShort(TIFF_BIG_ENDIAN);
+        } else {
+            dataOutputStream.writeShort(TIFF_LITTLE_ENDIAN);
+        }
+        dataOutputStream.setByteOrder(image.getByteOrder());
+        dataOutputStream.writeShort(TIFF_HEADER);
+        if (exifSize > MpoImageData.MP_HEADER_SIZE + MpoImageData.APP_HEADER_SIZE) {
+            dataOutputStream.writeInt(MpoImageData.OFFSET_TO_FIRST_IFD);
+            MpoIfdData indexIfd = image.getIndexIfdData();
+            if (indexIfd.getTagCount() > 0) {
+                MpoOutputStream.writeIfd(indexIfd, dataOutputStream);
+            }
+            MpoIfdData attribIfd = image.getAttribIfdData();
+            if (attribIfd.getTagCount() > 0) {
+                MpoOutputStream.writeIfd(attribIfd, dataOutputStream);
+            }
+        } else {
+            dataOutputStream.writeInt(0);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static int readUnsignedShort(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+    }
+}
@@ -55,6 +55,8 @@ public class ApiHelper {
 
     public static final boolean HAS_RESUME_SUPPORTED =
             Build.VERSION.SDK_INT > Build.VERSION_CODES.M;
+    public static final boolean HAS_ASYNC_TRACE =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q;
 
     public static int getIntFieldIfExists(Class<?> klass, String fieldName,
             Class<?> obj, int defaultVal) {
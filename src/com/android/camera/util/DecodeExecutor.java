@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool for bitmap decoding in the filmstrip, crop and thumbnail
+ * code. Every worker owns its decode temp storage and a scratch bitmap, so
+ * concurrent decodes never share scratch memory.
+ *
+ * <pre>
+ * task.executeOnExecutor(DecodeExecutor.getInstance());
+ * </pre>
+ */
+public class DecodeExecutor implements Executor {
+    private static final String TAG = "CAM_DecodeExecutor";
+
+    private static final int MAX_THREADS = 4;
+    private static final long KEEP_ALIVE_MS = 10000;
+    private static final int TEMP_STORAGE_SIZE = 32 * 1024;
+
+    private static DecodeExecutor sInstance;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    // Guarded by this.
+    private int mQueued;
+    private int mMaxQueued;
+    private long mCompleted;
+    private long mBusyTimeMs;
+    private long mWaitTimeMs;
+    private long mFirstStartMs = -1;
+    private long mLastEndMs;
+
+    public static synchronized DecodeExecutor getInstance() {
+        if (sInstance == null) {
+            // Leave one core to the camera pipeline.
+            int threads = Runtime.getRuntime().availableProcessors() - 1;
+            sInstance = new DecodeExecutor(Math.max(1, Math.min(threads, MAX_THREADS)));
+        }
+        return sInstance;
+    }
+
+    private DecodeExecutor(int threads) {
+        mExecutor = new ThreadPoolExecutor(threads, threads,
+                KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Worker(r, "CameraDecode-" + mCount.incrementAndGet());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        final long enqueued = SystemClock.uptimeMillis();
+        synchronized (this) {
+            mQueued++;
+            if (mQueued > mMaxQueued) {
+                mMaxQueued = mQueued;
+            }
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.uptimeMillis();
+                try {
+                    command.run();
+                } finally {
+                    onDone(enqueued, start, SystemClock.uptimeMillis());
+                }
+            }
+        });
+    }
+
+    private synchronized void onDone(long enqueued, long start, long end) {
+        mQueued--;
+        mCompleted++;
+        mWaitTimeMs += start - enqueued;
+        mBusyTimeMs += end - start;
+        if (mFirstStartMs < 0) {
+            mFirstStartMs = start;
+        }
+        mLastEndMs = end;
+    }
+
+    public synchronized void logStats() {
+        if (mCompleted == 0) return;
+        long elapsed = Math.max(1, mLastEndMs - mFirstStartMs);
+        Log.d(TAG, "threads=" + mExecutor.getMaximumPoolSize()
+                + " completed=" + mCompleted
+                + " queued=" + mQueued + " maxQueued=" + mMaxQueued
+                + " avgDecode=" + mBusyTimeMs / mCompleted + "ms"
+                + " avgWait=" + mWaitTimeMs / mCompleted + "ms"
+                + " throughput=" + mCompleted * 1000 / elapsed + "/s"
+                + " utilization=" + mBusyTimeMs * 100
+                        / (elapsed * mExecutor.getMaximumPoolSize()) + "%");
+    }
+
+    /**
+     * Returns the decode temp storage of the calling worker, or a new buffer
+     * when not called on a decode worker.
+     */
+    public static byte[] getTempStorage() {
+        Thread t = Thread.currentThread();
+        if (t instanceof Worker) {
+            return ((Worker) t).mTempStorage;
+        }
+        return new byte[TEMP_STORAGE_SIZE];
+    }
+
+    /**
+     * Decodes a file with the temp storage of the calling worker. If
+     * {@code intermediate} is true, the result is only used to produce another
+     * bitmap, so it is decoded into the worker's scratch bitmap when that is
+     * large enough; it must then be handed back with {@link #releaseScratch}.
+     */
+    public static Bitmap decodeFile(String path, BitmapFactory.Options opts,
+            boolean intermediate) {
+        opts.inTempStorage = getTempStorage();
+        if (intermediate && setScratch(opts)) {
+            try {
+                return BitmapFactory.decodeFile(path, opts);
+            } catch (IllegalArgumentException e) {
+                // The scratch bitmap cannot hold this image.
+                opts.inBitmap = null;
+            }
+        }
+        return BitmapFactory.decodeFile(path, opts);
+    }
+
+    /**
+     * Same as {@link #decodeFile} for a byte array.
+     */
+    public static Bitmap decodeByteArray(byte[] data, int offset, int length,
+            BitmapFactory.Options opts, boolean intermediate) {
+        opts.inTempStorage = getTempStorage();
+        if (intermediate && setScratch(opts)) {
+            try {
+                return BitmapFactory.decodeByteArray(data, offset, length, opts);
+            } catch (IllegalArgumentException e) {
+                // The scratch bitmap cannot hold this image.
+                opts.inBitmap = null;
+            }
+        }
+        return BitmapFactory.decodeByteArray(data, offset, length, opts);
+    }
+
+    /**
+     * Hands an intermediate bitmap back to the calling worker, which reuses
+     * its memory for the next intermediate decode.
+     */
+    public static void releaseScratch(Bitmap b) {
+        Thread t = Thread.currentThread();
+        if (!(t instanceof Worker) || b == null || !b.isMutable()) {
+            return;
+        }
+        Worker w = (Worker) t;
+        if (w.mScratch == b) {
+            return;
+        }
+        // Keep the larger one, so the scratch bitmap fits more images.
+        if (w.mScratch == null
+                || w.mScratch.getAllocationByteCount() < b.getAllocationByteCount()) {
+            if (w.mScratch != null) {
+                w.mScratch.recycle();
+            }
+            w.mScratch = b;
+        } else {
+            b.recycle();
+        }
+    }
+
+    private static boolean setScratch(BitmapFactory.Options opts) {
+        opts.inMutable = true;
+        Thread t = Thread.currentThread();
+        if (!(t instanceof Worker)) {
+            return false;
+        }
+        Worker w = (Worker) t;
+        if (w.mScratch == null) {
+            return false;
+        }
+        opts.inBitmap = w.mScratch;
+        return true;
+    }
+
+    private static class Worker extends Thread {
+        private final byte[] mTempStorage = new byte[TEMP_STORAGE_SIZE];
+        private Bitmap mScratch;
+
+        Worker(Runnable r, String name) {
+            super(r, name);
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            super.run();
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.util;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Emits an extended XMP packet as a series of APP1 marker segments without
+ * building the packet in memory. Binary property values are Base64 encoded on
+ * the fly from their source arrays, once to compute the MD5 GUID and once
+ * while writing, so the heap cost is a single segment buffer regardless of
+ * the payload size.
+ *
+ * To use it:
+ * ExtendedXmpWriter extendedXmp = new ExtendedXmpWriter();
+ * extendedXmp.addProperty(GDepth.NAMESPACE_URL, GDepth.PREFIX, GDepth.PROPERTY_DATA, jpeg);
+ * XmpUtil.writeXMPMeta(inputStream, outputStream, standardMeta, extendedXmp);
+ */
+public class ExtendedXmpWriter {
+    private static final String TAG = "ExtendedXmpWriter";
+
+    /*
+     * The extended XMP JPEG marker segment content holds:
+     * - a signature string, "http://ns.adobe.com/xmp/extension/\0"
+     * - a 128 bit GUID stored as a 32 byte ASCII hex string
+     * - a UInt32 full length of the entire extended XMP
+     * - a UInt32 offset for this portion of the extended XMP
+     * - the UTF-8 text for this portion of the extended XMP
+     */
+    private static final byte[] SIGNATURE =
+            "http://ns.adobe.com/xmp/extension/\0".getBytes(StandardCharsets.US_ASCII);
+    private static final int GUID_SIZE = 32;
+    private static final int HEADER_SIZE = 75;
+    private static final int FULL_LENGTH_OFFSET = SIGNATURE.length + GUID_SIZE;
+    private static final int PORTION_OFFSET = FULL_LENGTH_OFFSET + 4;
+    static final int MAX_PORTION_SIZE = 65000;
+
+    private static final int M_APP1 = 0xe1;
+    private static final byte[] BASE64_ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+                    .getBytes(StandardCharsets.US_ASCII);
+
+    private final Map<String, String> mNamespaces = new LinkedHashMap<String, String>();
+    private final List<String> mNames = new ArrayList<String>();
+    private final List<byte[]> mValues = new ArrayList<byte[]>();
+    private List<Part> mParts;
+    private int mLength;
+    private String mGuid;
+
+    public ExtendedXmpWriter() {
+    }
+
+    /**
+     * Creates a writer for an extended XMP packet that is already serialized.
+     */
+    public ExtendedXmpWriter(byte[] serialized) {
+        mParts = new ArrayList<Part>(1);
+        mParts.add(new TextPart(serialized));
+        mLength = serialized.length;
+    }
+
+    /**
+     * Adds a property whose value is the Base64 encoding of data. The array is
+     * read when the GUID is computed and again when the segments are written,
+     * so it must not change in between.
+     */
+    public void addProperty(String namespace, String prefix, String name, byte[] data) {
+        if (mParts != null) {
+            throw new IllegalStateException("Extended XMP is already serialized");
+        }
+        mNamespaces.put(prefix, namespace);
+        mNames.add(prefix + ":" + name);
+        mValues.add(data);
+    }
+
+    /**
+     * Returns the length in bytes of the serialized extended XMP.
+     */
+    public int getLength() {
+        build();
+        return mLength;
+    }
+
+    /**
+     * Returns the MD5 digest of the serialized extended XMP as the 32 character
+     * upper case hex string stored in xmpNote:HasExtendedXMP, or null if MD5 is
+     * not available.
+     */
+    public String getGuid() {
+        if (mGuid != null) {
+            return mGuid;
+        }
+        build();
+        MessageDigest digester;
+        try {
+            digester = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException exception) {
+            Log.d(TAG, "get md5 instance failure" + exception);
+            return null;
+        }
+        byte[] buffer = new byte[Math.min(MAX_PORTION_SIZE, mLength)];
+        for (int offset = 0; offset < mLength; offset += buffer.length) {
+            int n = Math.min(buffer.length, mLength - offset);
+            read(offset, buffer, n);
+            digester.update(buffer, 0, n);
+        }
+        byte[] digest = digester.digest();
+        StringBuilder builder = new StringBuilder(GUID_SIZE);
+        for (byte b : digest) {
+            builder.append(Character.toUpperCase(Character.forDigit((b >> 4) & 0xf, 16)));
+            builder.append(Character.toUpperCase(Character.forDigit(b & 0xf, 16)));
+        }
+        mGuid = builder.toString();
+        return mGuid;
+    }
+
+    /**
+     * Writes the extended XMP as APP1 marker segments, each carrying at most
+     * MAX_PORTION_SIZE bytes of the packet.
+     */
+    public void writeTo(OutputStream os) throws IOException {
+        String guid = getGuid();
+        if (guid == null) {
+            throw new IOException("Cannot compute extended XMP GUID");
+        }
+        byte[] header = new byte[HEADER_SIZE];
+        System.arraycopy(SIGNATURE, 0, header, 0, SIGNATURE.length);
+        System.arraycopy(guid.getBytes(StandardCharsets.US_ASCII), 0, header,
+                SIGNATURE.length, GUID_SIZE);
+        putInt(header, FULL_LENGTH_OFFSET, mLength);
+
+        byte[] portion = new byte[Math.min(MAX_PORTION_SIZE, mLength)];
+        for (int offset = 0; offset < mLength; offset += portion.length) {
+            int n = Math.min(portion.length, mLength - offset);
+            putInt(header, PORTION_OFFSET, offset);
+            // Segment length includes the 2 length bytes.
+            int segmentLength = 2 + HEADER_SIZE + n;
+            os.write(0xff);
+            os.write(M_APP1);
+            os.write(segmentLength >> 8);
+            os.write(segmentLength & 0xff);
+            os.write(header);
+            read(offset, portion, n);
+            os.write(portion, 0, n);
+        }
+    }
+
+    private void build() {
+        if (mParts != null) {
+            return;
+        }
+        mParts = new ArrayList<Part>(2 * mNames.size() + 1);
+        StringBuilder text = new StringBuilder();
+        text.append("<x:xmpmeta xmlns:x=\"adobe:ns:meta/\">")
+                .append("<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">")
+                .append("<rdf:Description rdf:about=\"\"");
+        for (Map.Entry<String, String> ns : mNamespaces.entrySet()) {
+            text.append(" xmlns:").append(ns.getKey())
+                    .append("=\"").append(ns.getValue()).append('"');
+        }
+        for (int i = 0; i < mNames.size(); i++) {
+            text.append(' ').append(mNames.get(i)).append("=\"");
+            addText(text);
+            mParts.add(new Base64Part(mValues.get(i)));
+            text.append('"');
+        }
+        text.append("/></rdf:RDF></x:xmpmeta>");
+        addText(text);
+
+        long length = 0;
+        for (Part part : mParts) {
+            length += part.length();
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Extended XMP is too large");
+        }
+        mLength = (int) length;
+    }
+
+    private void addText(StringBuilder text) {
+        mParts.add(new TextPart(text.toString().getBytes(StandardCharsets.UTF_8)));
+        text.setLength(0);
+    }
+
+    // Copies len bytes of the serialization starting at pos into dst.
+    private void read(int pos, byte[] dst, int len) {
+        int partStart = 0;
+        int off = 0;
+        for (Part part : mParts) {
+            int partLength = part.length();
+            if (pos < partStart + partLength) {
+                int n = Math.min(len - off, partStart + partLength - pos);
+                part.read(pos - partStart, dst, off, n);
+                off += n;
+                pos += n;
+                if (off == len) {
+                    return;
+                }
+            }
+            partStart += partLength;
+        }
+    }
+
+    private static void putInt(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) (value >>> 24);
+        dst[offset + 1] = (byte) (value >>> 16);
+        dst[offset + 2] = (byte) (value >>> 8);
+        dst[offset + 3] = (byte) value;
+    }
+
+    private abstract static class Part {
+        abstract int length();
+
+        abstract void read(int pos, byte[] dst, int off, int len);
+    }
+
+    private static class TextPart extends Part {
+        private final byte[] mText;
+
+        TextPart(byte[] text) {
+            mText = text;
+        }
+
+        @Override
+        int length() {
+            return mText.length;
+        }
+
+        @Override
+        void read(int pos, byte[] dst, int off, int len) {
+            System.arraycopy(mText, pos, dst, off, len);
+        }
+    }
+
+    // Base64 without line breaks, so the value needs no escaping in an
+    // attribute.
+    private static class Base64Part extends Part {
+        private final byte[] mData;
+        private final byte[] mGroup = new byte[4];
+
+        Base64Part(byte[] data) {
+            mData = data;
+        }
+
+        @Override
+        int length() {
+            return (mData.length + 2) / 3 * 4;
+        }
+
+        @Override
+        void read(int pos, byte[] dst, int off, int len) {
+            int end = off + len;
+            // Leading partial group.
+            if ((pos & 3) != 0) {
+                encodeGroup(pos >> 2, mGroup, 0);
+                int n = Math.min(4 - (pos & 3), len);
+                System.arraycopy(mGroup, pos & 3, dst, off, n);
+                off += n;
+                pos += n;
+            }
+            // Whole groups straight into the destination.
+            while (end - off >= 4) {
+                encodeGroup(pos >> 2, dst, off);
+                off += 4;
+                pos += 4;
+            }
+            // Trailing partial group.
+            if (off < end) {
+                encodeGroup(pos >> 2, mGroup, 0);
+                System.arraycopy(mGroup, 0, dst, off, end - off);
+            }
+        }
+
+        private void encodeGroup(int group, byte[] out, int outOff) {
+            int in = group * 3;
+            int remaining = mData.length - in;
+            int b0 = mData[in] & 0xff;
+            int b1 = remaining > 1 ? mData[in + 1] & 0xff : 0;
+            int b2 = remaining > 2 ? mData[in + 2] & 0xff : 0;
+            out[outOff] = BASE64_ALPHABET[b0 >> 2];
+            out[outOff + 1] = BASE64_ALPHABET[((b0 & 0x3) << 4) | (b1 >> 4)];
+            out[outOff + 2] = remaining > 1 ? BASE64_ALPHABET[((b1 & 0xf) << 2) | (b2 >> 6)]
+                    : (byte) '=';
+            out[outOff + 3] = remaining > 2 ? BASE64_ALPHABET[b2 & 0x3f] : (byte) '=';
+        }
+    }
+}
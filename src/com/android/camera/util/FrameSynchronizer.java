@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.util;
+
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Matches frames of several camera streams by sensor timestamp. Every stream
+ * keeps its frames sorted by timestamp in primitive arrays, so the closest
+ * frame to a reference timestamp is found with a binary search.
+ *
+ * Stream 0 is the reference. {@link #poll} returns the oldest reference
+ * frame together with the closest frame of every other stream, if all of
+ * them are within the tolerance. Frames that can no longer be matched, because
+ * a newer frame has already arrived on the other stream, are handed to the
+ * {@link Releaser}, as are frames that overflow the capacity of a stream.
+ *
+ * <pre>
+ * sync.add(BAYER, result.get(CaptureResult.SENSOR_TIMESTAMP), exposure, bayer);
+ * while (sync.poll(pair)) {
+ *     reprocess(pair[BAYER], pair[MONO]);
+ * }
+ * </pre>
+ *
+ * Not thread safe, it is meant to be owned by one handler thread.
+ */
+public class FrameSynchronizer<T> {
+    private static final String TAG = "CAM_FrameSynchronizer";
+
+    public interface Releaser<T> {
+        void release(T frame);
+    }
+
+    private final Stream<T>[] mStreams;
+    private final long mToleranceNs;
+    private final Releaser<T> mReleaser;
+
+    // Match statistics, per stream relative to the reference stream.
+    private final long[] mDriftSumNs;
+    private final long[] mDriftMaxNs;
+    private int mMatched;
+    private int mDropped;
+    private int mOverflowed;
+
+    @SuppressWarnings("unchecked")
+    public FrameSynchronizer(int streamCount, int capacity, long toleranceNs,
+            Releaser<T> releaser) {
+        mStreams = new Stream[streamCount];
+        for (int i = 0; i < streamCount; i++) {
+            mStreams[i] = new Stream<T>(capacity);
+        }
+        mToleranceNs = toleranceNs;
+        mReleaser = releaser;
+        mDriftSumNs = new long[streamCount];
+        mDriftMaxNs = new long[streamCount];
+    }
+
+    public void add(int stream, long timestampNs, T frame) {
+        add(stream, timestampNs, 0, frame);
+    }
+
+    /**
+     * Adds a frame. If an exposure time is given, two frames also match when
+     * their ends of exposure are within the tolerance.
+     */
+    public void add(int stream, long timestampNs, long exposureNs, T frame) {
+        Stream<T> s = mStreams[stream];
+        if (s.mSize == s.mTimestamps.length) {
+            mOverflowed++;
+            release(s.remove(0));
+        }
+        s.insert(timestampNs, exposureNs, frame);
+    }
+
+    public int size(int stream) {
+        return mStreams[stream].mSize;
+    }
+
+    public boolean isEmpty(int stream) {
+        return mStreams[stream].mSize == 0;
+    }
+
+    /**
+     * Removes the oldest matching set of frames, one per stream, into
+     * {@code out}, which must have room for every stream.
+     *
+     * @return false if no set matches yet.
+     */
+    public boolean poll(T[] out) {
+        Stream<T> ref = mStreams[0];
+        int[] match = new int[mStreams.length];
+        while (ref.mSize > 0) {
+            long ts = ref.mTimestamps[0];
+            long eof = ts + ref.mExposures[0];
+            boolean pending = false;
+            boolean unmatched = false;
+            for (int i = 1; i < mStreams.length; i++) {
+                Stream<T> s = mStreams[i];
+                // Frames that ended before the oldest reference frame started
+                // can not match it, nor any later one.
+                while (s.mSize > 0
+                        && s.mTimestamps[0] + s.mExposures[0] < ts - mToleranceNs) {
+                    mDropped++;
+                    release(s.remove(0));
+                }
+                int j = s.findClosest(ts);
+                if (j >= 0 && s.matches(j, ts, eof, mToleranceNs)) {
+                    match[i] = j;
+                } else if (j >= 0 && s.mTimestamps[s.mSize - 1] > ts + mToleranceNs) {
+                    // A later frame arrived on this stream, nothing that is
+                    // still to come can match the reference frame.
+                    unmatched = true;
+                } else {
+                    pending = true;
+                }
+            }
+            if (unmatched) {
+                mDropped++;
+                release(ref.remove(0));
+                continue;
+            }
+            if (pending) {
+                return false;
+            }
+
+            out[0] = ref.remove(0);
+            for (int i = 1; i < mStreams.length; i++) {
+                Stream<T> s = mStreams[i];
+                long drift = s.mTimestamps[match[i]] - ts;
+                mDriftSumNs[i] += drift;
+                mDriftMaxNs[i] = Math.max(mDriftMaxNs[i], Math.abs(drift));
+                out[i] = s.remove(match[i]);
+                // Older frames would only match older reference frames,
+                // which are gone.
+                for (int k = 0; k < match[i]; k++) {
+                    mDropped++;
+                    release(s.remove(0));
+                }
+            }
+            mMatched++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Releases all frames that are still queued.
+     */
+    public void clear() {
+        for (Stream<T> s : mStreams) {
+            while (s.mSize > 0) {
+                release(s.remove(0));
+            }
+        }
+    }
+
+    public void logStats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("matched=").append(mMatched)
+                .append(" dropped=").append(mDropped)
+                .append(" overflowed=").append(mOverflowed);
+        for (int i = 1; i < mStreams.length; i++) {
+            sb.append(" drift[").append(i).append("]: avg=")
+                    .append(mMatched == 0 ? 0 : mDriftSumNs[i] / mMatched / 1000)
+                    .append("us max=").append(mDriftMaxNs[i] / 1000).append("us");
+        }
+        Log.d(TAG, sb.toString());
+    }
+
+    private void release(T frame) {
+        if (mReleaser != null && frame != null) {
+            mReleaser.release(frame);
+        }
+    }
+
+    private static class Stream<T> {
+        final long[] mTimestamps;
+        final long[] mExposures;
+        final Object[] mFrames;
+        int mSize;
+
+        Stream(int capacity) {
+            mTimestamps = new long[capacity];
+            mExposures = new long[capacity];
+            mFrames = new Object[capacity];
+        }
+
+        void insert(long timestamp, long exposure, T frame) {
+            // Frames arrive almost in order, so this rarely moves anything.
+            int i = Arrays.binarySearch(mTimestamps, 0, mSize, timestamp);
+            if (i < 0) i = -i - 1;
+            System.arraycopy(mTimestamps, i, mTimestamps, i + 1, mSize - i);
+            System.arraycopy(mExposures, i, mExposures, i + 1, mSize - i);
+            System.arraycopy(mFrames, i, mFrames, i + 1, mSize - i);
+            mTimestamps[i] = timestamp;
+            mExposures[i] = exposure;
+            mFrames[i] = frame;
+            mSize++;
+        }
+
+        @SuppressWarnings("unchecked")
+        T remove(int i) {
+            T frame = (T) mFrames[i];
+            int tail = mSize - i - 1;
+            System.arraycopy(mTimestamps, i + 1, mTimestamps, i, tail);
+            System.arraycopy(mExposures, i + 1, mExposures, i, tail);
+            System.arraycopy(mFrames, i + 1, mFrames, i, tail);
+            mSize--;
+            mFrames[mSize] = null;
+            return frame;
+        }
+
+        // Returns the index of the frame closest to the timestamp, or -1.
+        int findClosest(long timestamp) {
+            if (mSize == 0) return -1;
+            int i = Arrays.binarySearch(mTimestamps, 0, mSize, timestamp);
+            if (i >= 0) return i;
+            i = -i - 1;
+            if (i == 0) return 0;
+            if (i == mSize) return mSize - 1;
+            return timestamp - mTimestamps[i - 1] <= mTimestamps[i] - timestamp ? i - 1 : i;
+        }
+
+        boolean matches(int i, long sof, long eof, long tolerance) {
+            if (Math.abs(mTimestamps[i] - sof) <= tolerance) return true;
+            // Only compare the ends of exposure if both frames have one.
+            return mExposures[i] > 0 && eof > sof
+                    && Math.abs(mTimestamps[i] + mExposures[i] - eof) <= tolerance;
+        }
+    }
+}
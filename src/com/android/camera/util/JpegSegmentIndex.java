@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Index of the APP0-APP15 segments of a jpeg file. The scanner only reads the
+ * marker, length and signature of each segment and skips everything else, so
+ * metadata can be read or replaced by offset without loading the image data.
+ *
+ * To use it:
+ * JpegSegmentIndex index = JpegSegmentIndex.scan(channel);
+ * JpegSegmentIndex.Segment xmp = index.findFirst(JpegSegmentIndex.TYPE_XMP);
+ * byte[] payload = index.readPayload(channel, xmp);
+ */
+public class JpegSegmentIndex {
+    public static final int TYPE_OTHER = 0;
+    public static final int TYPE_EXIF = 1;
+    public static final int TYPE_XMP = 2;
+    public static final int TYPE_EXTENDED_XMP = 3;
+
+    public static final int M_SOI = 0xd8;
+    public static final int M_EOI = 0xd9;
+    public static final int M_SOS = 0xda;
+    public static final int M_APP0 = 0xe0;
+    public static final int M_APP1 = 0xe1;
+    public static final int M_APP15 = 0xef;
+
+    private static final byte[] EXIF_SIGNATURE =
+            "Exif\0\0".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] XMP_SIGNATURE =
+            "http://ns.adobe.com/xap/1.0/\0".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] EXTENDED_XMP_SIGNATURE =
+            "http://ns.adobe.com/xmp/extension/\0".getBytes(StandardCharsets.US_ASCII);
+
+    // Marker and length, followed by the longest signature.
+    private static final int PEEK_SIZE = 4 + EXTENDED_XMP_SIGNATURE.length;
+
+    /**
+     * A metadata segment. offset is the position of the 0xFF marker byte and
+     * length is the value of the length field, which counts itself.
+     */
+    public static class Segment {
+        public final int marker;
+        public final int type;
+        public final long offset;
+        public final int length;
+
+        Segment(int marker, int type, long offset, int length) {
+            this.marker = marker;
+            this.type = type;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public long getPayloadOffset() {
+            return offset + 4;
+        }
+
+        public int getPayloadLength() {
+            return length - 2;
+        }
+
+        public long getEnd() {
+            return offset + 2 + length;
+        }
+    }
+
+    private final List<Segment> mSegments;
+    private final long mSosOffset;
+
+    private JpegSegmentIndex(List<Segment> segments, long sosOffset) {
+        mSegments = segments;
+        mSosOffset = sosOffset;
+    }
+
+    /**
+     * Walks the markers of the jpeg file from SOI to SOS.
+     *
+     * @throws IOException if the channel does not hold a valid jpeg file.
+     */
+    public static JpegSegmentIndex scan(FileChannel channel) throws IOException {
+        long size = channel.size();
+        ByteBuffer peek = ByteBuffer.allocate(PEEK_SIZE);
+        if (read(channel, peek, 0) < 2
+                || (peek.get(0) & 0xff) != 0xff || (peek.get(1) & 0xff) != M_SOI) {
+            throw new IOException("Not a jpeg file");
+        }
+        List<Segment> segments = new ArrayList<Segment>();
+        long sosOffset = -1;
+        long pos = 2;
+        while (pos + 4 <= size) {
+            int n = read(channel, peek, pos);
+            if ((peek.get(0) & 0xff) != 0xff) {
+                throw new IOException("Invalid marker at " + pos);
+            }
+            int marker = peek.get(1) & 0xff;
+            if (marker == 0xff) {
+                // Fill byte.
+                pos++;
+                continue;
+            }
+            if (marker == M_SOS) {
+                sosOffset = pos;
+                break;
+            }
+            if (marker == M_EOI) {
+                break;
+            }
+            int length = ((peek.get(2) & 0xff) << 8) | (peek.get(3) & 0xff);
+            if (length < 2 || pos + 2 + length > size) {
+                throw new IOException("Invalid segment length at " + pos);
+            }
+            if (marker >= M_APP0 && marker <= M_APP15) {
+                int type = TYPE_OTHER;
+                if (marker == M_APP1) {
+                    int available = Math.min(n, 2 + length) - 4;
+                    if (startsWith(peek, available, EXIF_SIGNATURE)) {
+                        type = TYPE_EXIF;
+                    } else if (startsWith(peek, available, XMP_SIGNATURE)) {
+                        type = TYPE_XMP;
+                    } else if (startsWith(peek, available, EXTENDED_XMP_SIGNATURE)) {
+                        type = TYPE_EXTENDED_XMP;
+                    }
+                }
+                segments.add(new Segment(marker, type, pos, length));
+            }
+            pos += 2 + length;
+        }
+        return new JpegSegmentIndex(segments, sosOffset);
+    }
+
+    private static int read(FileChannel channel, ByteBuffer buffer, long pos)
+            throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, pos + buffer.position());
+            if (n < 0) {
+                break;
+            }
+        }
+        return buffer.position();
+    }
+
+    private static boolean startsWith(ByteBuffer peek, int available, byte[] signature) {
+        if (available < signature.length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length; i++) {
+            if (peek.get(4 + i) != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public List<Segment> getSegments() {
+        return mSegments;
+    }
+
+    /**
+     * Returns the offset of the SOS marker, or -1 if it was not found.
+     */
+    public long getSosOffset() {
+        return mSosOffset;
+    }
+
+    public Segment findFirst(int type) {
+        for (Segment segment : mSegments) {
+            if (segment.type == type) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the offset at which a new XMP segment goes: after the Exif
+     * segment if the file starts with one, otherwise right after SOI.
+     */
+    public long getXmpInsertOffset() {
+        if (!mSegments.isEmpty() && mSegments.get(0).marker == M_APP1 && mSegments.get(0).offset == 2) {
+            return mSegments.get(0).getEnd();
+        }
+        return 2;
+    }
+
+    /**
+     * Reads the payload of a segment, without its marker and length.
+     */
+    public byte[] readPayload(FileChannel channel, Segment segment) throws IOException {
+        byte[] payload = new byte[segment.getPayloadLength()];
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        readFully(channel, buffer, segment.getPayloadOffset());
+        return payload;
+    }
+
+    /**
+     * Overwrites a segment in place with a payload of the same length.
+     *
+     * @return false if the lengths differ and nothing was written.
+     */
+    public static boolean replaceInPlace(FileChannel channel, Segment segment, byte[] payload)
+            throws IOException {
+        if (payload.length != segment.getPayloadLength()) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        long pos = segment.getPayloadOffset();
+        while (buffer.hasRemaining()) {
+            pos += channel.write(buffer, pos);
+        }
+        return true;
+    }
+
+    /**
+     * Copies src to dst, replacing the bytes in [start, end) with a segment
+     * holding the given marker and payload. Pass start == end to insert. The
+     * rest of the file is transferred between the channels without going
+     * through the heap.
+     */
+    public static void splice(FileChannel src, long start, long end, int marker,
+            byte[] payload, FileChannel dst) throws IOException {
+        if (payload.length + 2 > 0xffff) {
+            throw new IOException("Segment too large");
+        }
+        transferFully(src, 0, start, dst);
+        int length = payload.length + 2;
+        ByteBuffer header = ByteBuffer.allocate(4);
+        header.put((byte) 0xff).put((byte) marker)
+                .put((byte) (length >> 8)).put((byte) (length & 0xff));
+        header.flip();
+        ByteBuffer body = ByteBuffer.wrap(payload);
+        while (header.hasRemaining() || body.hasRemaining()) {
+            dst.write(new ByteBuffer[] {header, body});
+        }
+        transferFully(src, end, src.size() - end, dst);
+    }
+
+    private static void transferFully(FileChannel src, long pos, long count, FileChannel dst)
+            throws IOException {
+        while (count > 0) {
+            long n = src.transferTo(pos, count, dst);
+            if (n <= 0) {
+                throw new IOException("Transfer stalled at " + pos);
+            }
+            pos += n;
+            count -= n;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long pos)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, pos);
+            if (n < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            pos += n;
+        }
+    }
+}
@@ -102,6 +102,14 @@ public class PersistUtil {
             getInt("persist.sys.camera.zsl.buffer.size", 9);
     private static final int SAVE_TASK_MEMORY_LIMIT_IN_MB =
             getInt("persist.sys.camera.perf.memlimit", 120);
+    private static final int DIRECT_BUFFER_POOL_LIMIT_IN_MB =
+            getInt("persist.sys.camera.perf.bufpool", 64);
+    private static final int CAPTURE_RESULT_TIMEOUT_MS =
+            getInt("persist.sys.camera.perf.meta_timeout", 100);
+    private static final int SAVE_JPEG_THREADS =
+            getInt("persist.sys.camera.perf.save_threads", 2);
+    private static final int SAVE_BLOCK_TIMEOUT_MS =
+            getInt("persist.sys.camera.perf.save_block_ms", 200);
     private static final boolean PERSIST_CAMERA_UI_AUTO_TEST_ENABLED =
             getBoolean("persist.sys.camera.ui.auto_test", false);
     private static final boolean PERSIST_SEND_REQUEST_AFTER_FLUSH =
@@ -119,7 +127,11 @@ public class PersistUtil {
             getInt("persist.sys.camera.cs.timeout", 300);
     private static final boolean PERSIST_DUMP_DEPTH_ENABLED =
             getBoolean("persist.sys.camera.cs.dumpdepth", false);
+    private static final int PERSIST_CS_INFLIGHT_BUDGET_MB =
+            getInt("persist.sys.camera.cs.inflight_mb", 64);
     // ClearSight eend
+    private static final long PERSIST_MPO_TIMESTAMP_LIMIT =
+            getInt("persist.sys.camera.mpo.threshold", 100);
     private static final String PERSIST_DISPLAY_UMAX =
             get("persist.sys.camera.display.umax", "");
     private static final String PERSIST_DISPLAY_LMAX =
@@ -293,6 +305,22 @@ public class PersistUtil {
         return SAVE_TASK_MEMORY_LIMIT_IN_MB;
     }
 
+    public static int getDirectBufferPoolLimitInMb(){
+        return DIRECT_BUFFER_POOL_LIMIT_IN_MB;
+    }
+
+    public static int getCaptureResultTimeoutMs(){
+        return CAPTURE_RESULT_TIMEOUT_MS;
+    }
+
+    public static int getSaveJpegThreads(){
+        return SAVE_JPEG_THREADS;
+    }
+
+    public static int getSaveBlockTimeoutMs(){
+        return SAVE_BLOCK_TIMEOUT_MS;
+    }
+
     public static boolean isAutoTestEnabled(){
         return PERSIST_CAMERA_UI_AUTO_TEST_ENABLED;
     }
@@ -359,6 +387,14 @@ public class PersistUtil {
         return PERSIST_DUMP_DEPTH_ENABLED;
     }
 
+    public static int getClearSightInFlightBudgetMb() {
+        return PERSIST_CS_INFLIGHT_BUDGET_MB;
+    }
+
+    public static long getMpoTimestampLimit() {
+        return PERSIST_MPO_TIMESTAMP_LIMIT;
+    }
+
     public static boolean is3ADebugEnabled() {
         return getBoolean("persist.sys.cameraapp.3adebug", false);
     }
@@ -23,18 +23,16 @@ import com.adobe.xmp.XMPMeta;
 import com.adobe.xmp.XMPMetaFactory;
 import com.adobe.xmp.options.SerializeOptions;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.Closeable;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
-import java.nio.ByteBuffer;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.Formatter;
 import java.util.List;
 
 /**
@@ -56,19 +54,16 @@ public class XmpUtil {
   private static final String XMP_HEADER = "http://ns.adobe.com/xap/1.0/\0";
   private static final int MAX_XMP_BUFFER_SIZE = 65502;
 
-  private static final String EXTENDED_XMP_HEADER_SIGNATURE = "http://ns.adobe.com/xmp/extension/\0";
   private static final String XMP_NOTE_NAMESPACE = "http://ns.adobe.com/xmp/note/";
   private static final String NOTE_PREFIX = "xmpNote";
 
-  private static final int MAX_EXTENDED_XMP_BUFFER_SIZE = 65000;
-  private static final int EXTEND_XMP_HEADER_SIZE = 75;
-
   private static final String GOOGLE_PANO_NAMESPACE = "http://ns.google.com/photos/1.0/panorama/";
   private static final String PANO_PREFIX = "GPano";
 
   private static final int M_SOI = 0xd8; // File start marker.
   private static final int M_APP1 = 0xe1; // Marker for Exif or XMP.
   private static final int M_SOS = 0xda; // Image data marker.
+  private static final int COPY_BUFFER_SIZE = 16 * 1024;
 
   // Jpeg file is composed of many sections and image data. This class is used
   // to hold the section data from image file.
@@ -103,11 +98,22 @@ public class XmpUtil {
       return null;
     }
 
+    RandomAccessFile file = null;
     try {
-      return extractXMPMeta(new FileInputStream(filename));
-    } catch (FileNotFoundException e) {
+      // Only the XMP segment is read, the image data is skipped.
+      file = new RandomAccessFile(filename, "r");
+      FileChannel channel = file.getChannel();
+      JpegSegmentIndex index = JpegSegmentIndex.scan(channel);
+      JpegSegmentIndex.Segment segment = index.findFirst(JpegSegmentIndex.TYPE_XMP);
+      if (segment == null) {
+        return null;
+      }
+      return parseXMPSection(index.readPayload(channel, segment));
+    } catch (IOException e) {
       Log.e(TAG, "Could not read file: " + filename, e);
       return null;
+    } finally {
+      closeSilently(file);
     }
   }
 
@@ -125,22 +131,25 @@ public class XmpUtil {
     // Now we don't support extended xmp.
     for (Section section : sections) {
       if (hasXMPHeader(section.data)) {
-        int end = getXMPContentEnd(section.data);
-        byte[] buffer = new byte[end - XMP_HEADER_SIZE];
-        System.arraycopy(
-            section.data, XMP_HEADER_SIZE, buffer, 0, buffer.length);
-        try {
-          XMPMeta result = XMPMetaFactory.parseFromBuffer(buffer);
-          return result;
-        } catch (XMPException e) {
-          Log.d(TAG, "XMP parse error", e);
-          return null;
-        }
+        return parseXMPSection(section.data);
       }
     }
     return null;
   }
 
+  private static XMPMeta parseXMPSection(byte[] data) {
+    int end = getXMPContentEnd(data);
+    byte[] buffer = new byte[end - XMP_HEADER_SIZE];
+    System.arraycopy(data, XMP_HEADER_SIZE, buffer, 0, buffer.length);
+    try {
+      XMPMeta result = XMPMetaFactory.parseFromBuffer(buffer);
+      return result;
+    } catch (XMPException e) {
+      Log.d(TAG, "XMP parse error", e);
+      return null;
+    }
+  }
+
   /**
    * Creates a new XMPMeta.
    */
@@ -157,7 +166,9 @@ public class XmpUtil {
   }
 
   /**
-   * Writes the XMPMeta to the jpeg image file.
+   * Writes the XMPMeta to the jpeg image file. An existing XMP segment of the
+   * same size is overwritten in place; otherwise the file is rewritten with
+   * the image data copied between channels, never loaded into memory.
    */
   public static boolean writeXMPMeta(String filename, XMPMeta meta) {
     if (!filename.toLowerCase().endsWith(".jpg")
@@ -165,37 +176,52 @@ public class XmpUtil {
       Log.d(TAG, "XMP parse: only jpeg file is supported");
       return false;
     }
-    List<Section> sections = null;
-    try {
-      sections = parse(new FileInputStream(filename), false);
-      sections = insertXMPSection(sections, meta);
-      if (sections == null) {
-        return false;
-      }
-    } catch (FileNotFoundException e) {
-      Log.e(TAG, "Could not read file: " + filename, e);
+    Section xmpSection = createStandardXMPSection(meta);
+    if (xmpSection == null) {
       return false;
     }
+    File target = new File(filename);
+    File temp = new File(filename + ".tmp");
+    RandomAccessFile file = null;
     FileOutputStream os = null;
     try {
-      // Overwrite the image file with the new meta data.
-      os = new FileOutputStream(filename);
-      writeJpegFile(os, sections);
+      file = new RandomAccessFile(target, "rw");
+      FileChannel channel = file.getChannel();
+      JpegSegmentIndex index = JpegSegmentIndex.scan(channel);
+      JpegSegmentIndex.Segment old = index.findFirst(JpegSegmentIndex.TYPE_XMP);
+      if (old != null && JpegSegmentIndex.replaceInPlace(channel, old, xmpSection.data)) {
+        return true;
+      }
+      long start = old != null ? old.offset : index.getXmpInsertOffset();
+      long end = old != null ? old.getEnd() : start;
+      os = new FileOutputStream(temp);
+      JpegSegmentIndex.splice(channel, start, end, M_APP1, xmpSection.data, os.getChannel());
+      os.close();
+      os = null;
+      if (!temp.renameTo(target)) {
+        throw new IOException("Could not replace " + filename);
+      }
     } catch (IOException e) {
       Log.d(TAG, "Write file failed:" + filename, e);
+      temp.delete();
       return false;
     } finally {
-      if (os != null) {
-        try {
-          os.close();
-        } catch (IOException e) {
-          // Ignore.
-        }
-      }
+      closeSilently(os);
+      closeSilently(file);
     }
     return true;
   }
 
+  private static void closeSilently(Closeable c) {
+    if (c != null) {
+      try {
+        c.close();
+      } catch (IOException e) {
+        // Ignore.
+      }
+    }
+  }
+
   /**
    * Updates a jpeg file from inputStream with XMPMeta to outputStream.
    */
@@ -233,15 +259,22 @@ public class XmpUtil {
     os.write(0xff);
     os.write(M_SOI);
     for (Section section : sections) {
-      os.write(0xff);
-      os.write(section.marker);
-      if (section.length > 0) {
-        // It's not the image data.
-        int lh = section.length >> 8;
-        int ll = section.length & 0xff;
-        os.write(lh);
-        os.write(ll);
-      }
+      writeSection(os, section);
+    }
+  }
+
+  private static void writeSection(OutputStream os, Section section)
+      throws IOException {
+    os.write(0xff);
+    os.write(section.marker);
+    if (section.length > 0) {
+      // It's not the image data.
+      int lh = section.length >> 8;
+      int ll = section.length & 0xff;
+      os.write(lh);
+      os.write(ll);
+    }
+    if (section.data != null) {
       os.write(section.data);
     }
   }
@@ -351,6 +384,18 @@ public class XmpUtil {
    * @return The parse result.
    */
   private static List<Section> parse(InputStream is, boolean readMetaOnly) {
+    return parse(is, readMetaOnly, true);
+  }
+
+  /**
+   * Like {@link #parse(InputStream, boolean)}, but if readImageData is false
+   * the image data section is added without data and the stream is left
+   * open, positioned right after the M_SOS marker, so that the caller can
+   * copy the image data without holding it in memory.
+   */
+  private static List<Section> parse(InputStream is, boolean readMetaOnly,
+      boolean readImageData) {
+    boolean keepOpen = false;
     try {
       if (is.read() != 0xff || is.read() != M_SOI) {
         return null;
@@ -375,8 +420,12 @@ public class XmpUtil {
             Section section = new Section();
             section.marker = marker;
             section.length = -1;
-            section.data = new byte[is.available()];
-            is.read(section.data, 0, section.data.length);
+            if (readImageData) {
+              section.data = new byte[is.available()];
+              is.read(section.data, 0, section.data.length);
+            } else {
+              keepOpen = true;
+            }
             sections.add(section);
           }
           return sections;
@@ -405,7 +454,7 @@ public class XmpUtil {
       Log.d(TAG, "Could not parse file.", e);
       return null;
     } finally {
-      if (is != null) {
+      if (is != null && !keepOpen) {
         try {
           is.close();
         } catch (IOException e) {
@@ -446,90 +495,6 @@ public class XmpUtil {
     return xmpSection;
   }
 
-  private static Section createSection(byte[] portionOfExtendedMeta, byte[] headerBytes) {
-
-    if (portionOfExtendedMeta.length > MAX_EXTENDED_XMP_BUFFER_SIZE) {
-      // Do not support extended xmp now.
-      Log.e(TAG, "createSection fail exceed max size");
-      return null;
-    }
-
-    byte[] xmpdata = new byte[portionOfExtendedMeta.length + 75];
-    System.arraycopy(headerBytes, 0, xmpdata, 0, headerBytes.length);
-
-    System.arraycopy(portionOfExtendedMeta, 0, xmpdata, headerBytes.length, portionOfExtendedMeta.length);
-    Section xmpSection = new Section();
-    xmpSection.marker = M_APP1;
-    // Adds the length place (2 bytes) to the section length.
-    xmpSection.length = xmpdata.length + 2;
-    xmpSection.data = xmpdata;
-    ByteBuffer byteBuffer2 = ByteBuffer.wrap(xmpdata);
-    Log.d(TAG, "fullLength=" + byteBuffer2.getInt(67) + " offset=" + byteBuffer2.getInt(71));
-    return xmpSection;
-  }
-
-  /**
-   * Split extendXMPMeta to multiple marker segments
-   * @param extendedXMPMetaBytes serialized extended XMP
-   * @param guid Is a 128-bit MD5 digest of the full ExtendedXMP serialization,
-   *             stored as a 32-byte ASCII hex string
-   * @return  split result
-   */
-  private static List<Section> splitExtendXMPMeta(byte[] extendedXMPMetaBytes, String guid){
-    List<Section> sections = new ArrayList<Section>();
-     /*
-    The extended XMP JPEG marker segment content holds:
-    - a signature string, "http://ns.adobe.com/xmp/extension/\0"
-    - a 128 bit GUID stored as a 32 byte ASCII hex string
-    - a UInt32 full length of the entire extended XMP
-    - a UInt32 offset for this portion of the extended XMP
-    - the UTF-8 text for this portion of the extended XMP
-     */
-    int splitNum = extendedXMPMetaBytes.length/MAX_EXTENDED_XMP_BUFFER_SIZE;
-    byte[] portion = new byte[MAX_EXTENDED_XMP_BUFFER_SIZE];
-    ByteBuffer byteBuffer = ByteBuffer.wrap(extendedXMPMetaBytes);
-    Section extendedXmpSection = null;
-
-    byte[] headerBytes = new byte[EXTEND_XMP_HEADER_SIZE];
-    int index = 0;
-    System.arraycopy(EXTENDED_XMP_HEADER_SIGNATURE.getBytes(), 0, headerBytes, 0, EXTENDED_XMP_HEADER_SIGNATURE.length());
-    index += EXTENDED_XMP_HEADER_SIGNATURE.length();
-
-    System.arraycopy(guid.getBytes(), 0, headerBytes, index, guid.length());
-    index += guid.length();
-
-    Log.d(TAG, "buffer.length=" + extendedXMPMetaBytes.length);
-    byte[] fullLengthBytes = new byte[4];
-    ByteBuffer intBuffer = ByteBuffer.wrap(fullLengthBytes);
-    intBuffer.putInt(0, extendedXMPMetaBytes.length);
-    System.arraycopy(fullLengthBytes, 0, headerBytes, index, 4);
-    index += 4;
-
-    byte[] offsetBytes = new byte[4];
-    ByteBuffer offsetBuffer = ByteBuffer.wrap(offsetBytes);
-    for( int i=0; i < splitNum; ++i ) {
-      offsetBuffer.putInt(0, i*MAX_EXTENDED_XMP_BUFFER_SIZE);
-      System.arraycopy(offsetBytes, 0, headerBytes, index, 4);
-
-      byteBuffer.get(portion);
-      extendedXmpSection = createSection(portion, headerBytes);
-      sections.add(extendedXmpSection);
-    }
-
-    int remainSize = extendedXMPMetaBytes.length - splitNum*MAX_EXTENDED_XMP_BUFFER_SIZE;
-    if (  remainSize > 0 ) {
-      offsetBuffer.putInt(0, splitNum*MAX_EXTENDED_XMP_BUFFER_SIZE);
-      System.arraycopy(offsetBytes, 0, headerBytes, index, 4);
-
-      byte[] remain = new byte[remainSize];
-      byteBuffer.get(remain);
-      extendedXmpSection = createSection(remain, headerBytes);
-      sections.add(extendedXmpSection);
-    }
-
-    return sections;
-  }
-
   /**
    *  Updates a jpeg file from inputStream with XMPMeta to outputStream.
    * @param inputStream Input image data stream
@@ -554,37 +519,72 @@ public class XmpUtil {
       Log.d(TAG, "Serialize extended xmp failed", e);
       return false;
     }
+    return writeXMPMeta(inputStream, outputStream, standardMeta,
+        new ExtendedXmpWriter(buffer));
+  }
 
-    String guid = getGUID(buffer);
+  /**
+   *  Updates a jpeg file from inputStream with XMPMeta to outputStream. The
+   *  extended XMP segments are streamed by extendedXmp straight into
+   *  outputStream.
+   * @param inputStream Input image data stream
+   * @param outputStream Output image data stream
+   * @param standardMeta The main portion of the metadata tree must be serialized and written as
+   *                     the standard XMP packet
+   * @param extendedXmp The extended portion, written as a series of APP1 marker segments
+   */
+  public static boolean writeXMPMeta(InputStream inputStream, OutputStream outputStream,
+                                     XMPMeta standardMeta, ExtendedXmpWriter extendedXmp) {
+    String guid = extendedXmp.getGuid();
+    if (guid == null) {
+      return false;
+    }
     try {
       standardMeta.setProperty(XMP_NOTE_NAMESPACE, "HasExtendedXMP", guid);
     } catch (XMPException exception) {
       Log.d(TAG, "set XMPMeta Property", exception);
       return false;
     }
-    List<Section> sections = parse(inputStream, false);
-    List<Section> xmpSections = new ArrayList<Section>();
+    // The image data is copied straight from the input below.
+    List<Section> sections = parse(inputStream, false, false);
     Section standardXmpSection = createStandardXMPSection(standardMeta);
     if (standardXmpSection == null) {
       Log.e(TAG, "create standard meta section error");
+      closeSilently(inputStream);
       return false;
     }
-    xmpSections.add(standardXmpSection);
-
-    List<Section> extendedSections = splitExtendXMPMeta(buffer, guid);
-    xmpSections.addAll(extendedSections);
-    sections = insertXMPSection(sections, xmpSections);
-    if (sections == null) {
+    if (sections == null || sections.size() <= 1) {
       Log.d(TAG, "Insert XMP fialed");
+      closeSilently(inputStream);
       return false;
     }
+    // If the first section is Exif, insert XMP data before the second section,
+    // otherwise, make xmp data the first section.
+    int position = (sections.get(0).marker == M_APP1) ? 1 : 0;
     try {
       // Overwrite the image file with the new meta data.
-      writeJpegFile(outputStream, sections);
+      outputStream.write(0xff);
+      outputStream.write(M_SOI);
+      for (int i = 0; i < position; i++) {
+        writeSection(outputStream, sections.get(i));
+      }
+      writeSection(outputStream, standardXmpSection);
+      extendedXmp.writeTo(outputStream);
+      for (int i = position; i < sections.size(); i++) {
+        writeSection(outputStream, sections.get(i));
+      }
+      byte[] buffer = new byte[COPY_BUFFER_SIZE];
+      int n;
+      while ((n = inputStream.read(buffer)) > 0) {
+        outputStream.write(buffer, 0, n);
+      }
+      // Report a failed final write instead of losing it in close().
+      outputStream.flush();
     } catch (IOException e) {
       Log.d(TAG, "Write to stream failed", e);
       return false;
     } finally {
+      closeSilently(inputStream);
       if (outputStream != null) {
         try {
           outputStream.close();
@@ -596,40 +596,5 @@ public class XmpUtil {
     return true;
   }
 
-  private static List<Section> insertXMPSection(
-          List<Section> sections, List<Section> xmpSections) {
-    if (sections == null || sections.size() <= 1) {
-      return null;
-    }
-
-    // If the first section is Exif, insert XMP data before the second section,
-    // otherwise, make xmp data the first section.
-    List<Section> newSections = new ArrayList<Section>();
-    int position = (sections.get(0).marker == M_APP1) ? 1 : 0;
-    newSections.addAll(sections.subList(0, position));
-    newSections.addAll(xmpSections);
-    newSections.addAll(sections.subList(position, sections.size()));
-    return newSections;
-  }
-
-  private static String getGUID(byte[] src) {
-    StringBuilder builder = new StringBuilder();
-    try {
-      MessageDigest digester = MessageDigest.getInstance("MD5");
-      digester.update(src);
-      byte[] digest = digester.digest();
-
-      Formatter formatter = new Formatter(builder);
-      for (int i = 0; i < digest.length; ++i) {
-        formatter.format("%02x", ((256 + digest[i]) % 256));
-      }
-    } catch (NoSuchAlgorithmException exception) {
-      Log.d(TAG, "get md5 instance failure" + exception);
-      return null;
-    }
-
-    return builder.toString().toUpperCase();
-  }
-
   private XmpUtil() {}
 }
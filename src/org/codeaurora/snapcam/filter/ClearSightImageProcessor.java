@@ -67,6 +67,7 @@ import android.media.Image.Plane;
 import android.media.ImageReader;
 import android.media.ImageReader.OnImageAvailableListener;
 import android.media.ImageWriter;
+import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
@@ -86,6 +87,7 @@ import com.android.camera.PhotoModule.NamedImages.NamedEntity;
 import com.android.camera.SettingsManager;
 import com.android.camera.Storage;
 import com.android.camera.util.CameraUtil;
+import com.android.camera.util.FrameSynchronizer;
 import com.android.camera.util.PersistUtil;
 import com.android.camera.util.VendorTagUtil;
 
@@ -113,6 +115,7 @@ public class ClearSightImageProcessor {
     private static final int MSG_CALIBRATION_DATA = 7;
     private static final int MSG_NEW_LENS_FOCUS_DISTANCE_BAYER = 8;
     private static final int MSG_NEW_DEPTH = 9;
+    private static final int MSG_DEPTH_RELEASED = 10;
 
     private static final int CAM_TYPE_BAYER = 0;
     private static final int CAM_TYPE_MONO = 1;
@@ -162,6 +165,15 @@ public class ClearSightImageProcessor {
     private boolean mIsClosing;
     private int mFinishReprocessNum;
 
+    // Captures that left the fusion engine and are not saved yet. The
+    // shutter is only handed back while another capture fits the budget.
+    private final Object mInFlightLock = new Object();
+    private long mInFlightBudget;
+    private long mCaptureBytes;
+    private long mInFlightBytes;
+    private int mInFlightCount;
+    private boolean mShutterPending;
+
     private static ClearSightImageProcessor mInstance;
 
     private ClearSightImageProcessor() {
@@ -188,6 +200,9 @@ public class ClearSightImageProcessor {
         mCsTimeout = PersistUtil.getClearSightTimeout();
         Log.d(TAG, "mCsTimeout: " + mCsTimeout);
 
+        mInFlightBudget = PersistUtil.getClearSightInFlightBudgetMb() * 1024L * 1024L;
+        Log.d(TAG, "mInFlightBudget: " + mInFlightBudget);
+
     }
 
     public static void createInstance() {
@@ -234,11 +249,22 @@ public class ClearSightImageProcessor {
         mClearsightRegisterHandler = new ClearsightRegisterHandler(mClearsightRegisterThread.getLooper());
         mClearsightProcessHandler = new ClearsightProcessHandler(mClearsightProcessThread.getLooper());
         mImageEncodeHandler = new ImageEncodeHandler(mImageEncodeThread.getLooper());
-        mDepthProcessHandler = new DepthProcessHandler(mImageEncodeThread.getLooper());
+        // Depth generation gets its own looper, so it runs next to the fusion
+        // and JPEG encoding instead of behind them.
+        mDepthProcessHandler = new DepthProcessHandler(mDepthProcessThread.getLooper());
 
         mFinalPictureSize = new Size(width, height);
         mFinalPictureRatio = (float)width / (float)height;
         mFinalMonoSize = getFinalMonoSize();
+        // Upper bound of the bayer, mono and fused JPEGs, the embedded
+        // GImage and the depth map that a capture holds until it is saved.
+        mCaptureBytes = (long) width * height
+                + (long) mFinalMonoSize.getWidth() * mFinalMonoSize.getHeight();
+        synchronized (mInFlightLock) {
+            mInFlightBytes = 0;
+            mInFlightCount = 0;
+            mShutterPending = false;
+        }
         Size maxSize = findMaxOutputSize(map);
         int maxWidth = maxSize.getWidth();
         int maxHeight = maxSize.getHeight();
@@ -450,6 +476,80 @@ public class ClearSightImageProcessor {
         return mIsClosing;
     }
 
+    private void releaseShutter() {
+        if(mCallback != null) mCallback.onReleaseShutterLock();
+    }
+
+    /**
+     * Fails a capture that has not reached the encoder yet. It never held
+     * any in-flight memory, so the shutter is handed back right away.
+     */
+    private void failCapture(CaptureState state) {
+        state.mTimeline.finish(false);
+        if(mCallback != null) mCallback.onClearSightFailure(null);
+        releaseShutter();
+    }
+
+    /**
+     * Takes the reference images of a capture out of the fusion engine and
+     * asks the depth stage to let go of them. The depth stage answers with
+     * MSG_DEPTH_RELEASED on the fusion thread, which only then queues the
+     * images to the encoder or closes them.
+     */
+    private void releaseDepthInputs(CaptureState state) {
+        ClearSightNativeEngine engine = ClearSightNativeEngine.getInstance();
+        for (int cam = 0; cam < NUM_CAM; cam++) {
+            boolean isBayer = (cam == CAM_TYPE_BAYER);
+            state.mRefImages[cam] = engine.detachReferenceImage(isBayer);
+            state.mRefResults[cam] = engine.getReferenceResult(isBayer);
+        }
+        DepthProcessHandler depthHandler = mDepthProcessHandler;
+        if (depthHandler != null) {
+            depthHandler.obtainMessage(MSG_END_CAPTURE, state).sendToTarget();
+            return;
+        }
+        ClearsightProcessHandler processHandler = mClearsightProcessHandler;
+        if (processHandler != null) {
+            processHandler.obtainMessage(MSG_DEPTH_RELEASED, state).sendToTarget();
+        } else {
+            state.closeReferenceImages();
+        }
+    }
+
+    // Called once the fusion engine is free for the next capture.
+    private void onCaptureFused(CaptureState state) {
+        boolean release;
+        synchronized (mInFlightLock) {
+            mInFlightBytes += state.mBytes;
+            mInFlightCount++;
+            release = canAdmitLocked();
+            mShutterPending = !release;
+            Log.d(TAG, "onCaptureFused - capture " + state.getId() + " inFlight="
+                    + mInFlightCount + " bytes=" + mInFlightBytes
+                    + (release ? "" : " - waiting for a save"));
+        }
+        if (release) releaseShutter();
+    }
+
+    // Called once a fused capture is saved or dropped by the encoder.
+    private void onCaptureDone(CaptureState state) {
+        boolean release = false;
+        synchronized (mInFlightLock) {
+            mInFlightBytes -= state.mBytes;
+            mInFlightCount--;
+            if (mShutterPending && canAdmitLocked()) {
+                mShutterPending = false;
+                release = true;
+            }
+        }
+        if (release) releaseShutter();
+    }
+
+    // A single capture is always admitted, even if it exceeds the budget.
+    private boolean canAdmitLocked() {
+        return mInFlightCount == 0 || mInFlightBytes + mCaptureBytes <= mInFlightBudget;
+    }
+
     private ImageReader createImageReader(final int cam, int width, int height) {
         ImageReader reader = ImageReader.newInstance(width, height,
                 ImageFormat.YUV_420_888, mNumBurstCount + mNumFrameCount);
@@ -499,11 +599,73 @@ public class ClearSightImageProcessor {
         }
     }
 
+    /**
+     * State of one capture, from its burst until the result is saved. The
+     * pair, register and fusion stages share a single native engine and
+     * handle one capture at a time, while depth, encode and save keep their
+     * state here so that several captures can be in flight behind them.
+     */
+    private static class CaptureState {
+        final ClearSightTimeline mTimeline = new ClearSightTimeline();
+        final NamedEntity mNamedEntity;
+        final long mBytes;
+        // Taken from the fusion engine by releaseDepthInputs() and held until
+        // the depth stage no longer reads them.
+        final Image[] mRefImages = new Image[NUM_CAM];
+        final TotalCaptureResult[] mRefResults = new TotalCaptureResult[NUM_CAM];
+
+        // Only used on the fusion thread. The fused image is sent to the
+        // encoder after the references, once the depth stage is done.
+        boolean mFused;
+        Image mCsImage;
+        CaptureRequest.Builder mCsRequest;
+
+        // Handed from the depth thread to the encode thread with MSG_NEW_DEPTH.
+        GDepth.DepthMap mDepthMap;
+
+        // Only used on the encode thread.
+        short mEncodeRequest;
+        short mEncodeResults;
+        boolean mHasFailure;
+        byte[] mBayerBytes;
+        byte[] mClearSightBytes;
+        int mWidth;
+        int mHeight;
+        GImage mGImage;
+        boolean mDepthMapReady;
+        boolean mClearSightReady;
+
+        CaptureState(NamedEntity namedEntity, long bytes) {
+            mNamedEntity = namedEntity;
+            mBytes = bytes;
+        }
+
+        int getId() {
+            return mTimeline.getId();
+        }
+
+        void closeReferenceImages() {
+            for (int i = 0; i < NUM_CAM; i++) {
+                if (mRefImages[i] != null) {
+                    mRefImages[i].close();
+                    mRefImages[i] = null;
+                }
+            }
+        }
+    }
+
     private class ImageProcessHandler extends Handler {
-        private ArrayDeque<ReprocessableImage> mBayerFrames = new ArrayDeque<ReprocessableImage>(
-                mNumBurstCount);
-        private ArrayDeque<ReprocessableImage> mMonoFrames = new ArrayDeque<ReprocessableImage>(
-                mNumBurstCount);
+        // Bayer is the reference stream, CAM_TYPE_BAYER == 0.
+        private FrameSynchronizer<ReprocessableImage> mFrameSync =
+                new FrameSynchronizer<ReprocessableImage>(NUM_CAM, mNumBurstCount,
+                        mTimestampThresholdNs, new FrameSynchronizer.Releaser<ReprocessableImage>() {
+                    @Override
+                    public void release(ReprocessableImage frame) {
+                        Log.d(TAG, "frameSync - toss frame ts: "
+                                + frame.mImage.getTimestamp());
+                        frame.mImage.close();
+                    }
+                });
         private ArrayDeque<TotalCaptureResult> mBayerCaptureResults = new ArrayDeque<TotalCaptureResult>(
                 mNumBurstCount);
         private ArrayDeque<TotalCaptureResult> mMonoCaptureResults = new ArrayDeque<TotalCaptureResult>(
@@ -519,8 +681,10 @@ public class ClearSightImageProcessor {
         private int mReprocessedBayerCount;
         private int mReprocessedMonoCount;
         private NamedEntity mNamedEntity;
+        private CaptureState mState;
         private int[] mNumImagesToProcess = new int[NUM_CAM];
         private boolean mCaptureDone;
+        private boolean mCaptureStarted;
         private boolean mHasFailures;
 
         ImageProcessHandler(Looper looper) {
@@ -535,18 +699,24 @@ public class ClearSightImageProcessor {
 
             switch (msg.what) {
             case MSG_START_CAPTURE:
+                mNumImagesToProcess[msg.arg1] = msg.arg2;
+                // Both cameras start the same capture, the stages are
+                // only started once.
+                if(mCaptureStarted) break;
+                mCaptureStarted = true;
                 mCaptureDone = false;
                 mFinishReprocessNum = 0;
                 mHasFailures = false;
                 mReprocessingPairCount = 0;
                 mReprocessedBayerCount = 0;
                 mReprocessedMonoCount = 0;
-                mNumImagesToProcess[msg.arg1] = msg.arg2;
                 mNamedImages.nameNewImage(System.currentTimeMillis());
                 mNamedEntity = mNamedImages.getNextNameEntity();
+                mState = new CaptureState(mNamedEntity, mCaptureBytes);
+                mState.mTimeline.begin(ClearSightTimeline.STAGE_PAIR);
                 mClearsightRegisterHandler.obtainMessage(MSG_START_CAPTURE,
-                        0, 0, mNamedEntity).sendToTarget();
-                mDepthProcessHandler.obtainMessage(MSG_START_CAPTURE).sendToTarget();
+                        0, 0, mState).sendToTarget();
+                mDepthProcessHandler.obtainMessage(MSG_START_CAPTURE, mState).sendToTarget();
                 break;
             case MSG_END_CAPTURE:
                 // TIMED OUT WAITING FOR FRAME
@@ -572,6 +742,7 @@ public class ClearSightImageProcessor {
 
         private void handleTimeout() {
             Log.d(TAG, "handleTimeout");
+            mFrameSync.clear();
             releaseBayerFrames();
             releaseMonoFrames();
             mReprocessingFrames[CAM_TYPE_BAYER].clear();
@@ -586,6 +757,7 @@ public class ClearSightImageProcessor {
 
             // set capture done so that any loose frames coming in will be closed
             mCaptureDone = true;
+            mCaptureStarted = false;
             mClearsightRegisterHandler.obtainMessage(MSG_END_CAPTURE, 0, 1).sendToTarget();
         }
 
@@ -624,16 +796,13 @@ public class ClearSightImageProcessor {
 
             ArrayDeque<Image> imageQueue;
             ArrayDeque<TotalCaptureResult> resultQueue;
-            ArrayDeque<ReprocessableImage> frameQueue;
             // push image onto queue
             if (msg.arg1 == CAM_TYPE_BAYER) {
                 imageQueue = mBayerImages;
                 resultQueue = mBayerCaptureResults;
-                frameQueue = mBayerFrames;
             } else {
                 imageQueue = mMonoImages;
                 resultQueue = mMonoCaptureResults;
-                frameQueue = mMonoFrames;
             }
 
             if(msg.what == MSG_NEW_IMG) {
@@ -655,7 +824,9 @@ public class ClearSightImageProcessor {
             if (!imageQueue.isEmpty() && !resultQueue.isEmpty()) {
                 Image headImage = imageQueue.poll();
                 TotalCaptureResult headResult = resultQueue.poll();
-                frameQueue.add(new ReprocessableImage(headImage, headResult));
+                mFrameSync.add(msg.arg1, headResult.get(CaptureResult.SENSOR_TIMESTAMP),
+                        headResult.get(CaptureResult.SENSOR_EXPOSURE_TIME),
+                        new ReprocessableImage(headImage, headResult));
                 mNumImagesToProcess[msg.arg1]--;
                 checkForValidFramePairAndReprocess();
             }
@@ -668,15 +839,6 @@ public class ClearSightImageProcessor {
                     " mNumFrameCount: " + mNumFrameCount +
                     " mFinishReprocessNum: " + mFinishReprocessNum);
 
-            if ((mNumImagesToProcess[CAM_TYPE_BAYER] == 0
-                    && mNumImagesToProcess[CAM_TYPE_MONO] == 0)
-                    && mReprocessingPairCount != mNumFrameCount) {
-                while (!mBayerFrames.isEmpty() && !mMonoFrames.isEmpty()
-                        && mReprocessingPairCount != mNumFrameCount) {
-                    checkForValidFramePairAndReprocess();
-                }
-            }
-
             if (mReprocessingPairCount == mNumFrameCount ||
                     (mNumImagesToProcess[CAM_TYPE_BAYER] == 0
                     && mNumImagesToProcess[CAM_TYPE_MONO] == 0)) {
@@ -689,55 +851,22 @@ public class ClearSightImageProcessor {
         }
 
         private void checkForValidFramePairAndReprocess() {
-            // if we have images from both
-            // as we just added an image onto one of the queues
-            // this condition is only true when both are not empty
+            // if timestamps of the oldest frames are within threshold,
+            // send them for reproc. Frames that can no longer be paired
+            // are tossed by the synchronizer.
             Log.d(TAG,
                     "checkForValidFramePair - num bayer frames: "
-                            + mBayerFrames.size() + " num mono frames: "
-                            + mMonoFrames.size());
-
-            if (!mBayerFrames.isEmpty() && !mMonoFrames.isEmpty()) {
-                // peek oldest pair of images
-                ReprocessableImage bayer = mBayerFrames.peek();
-                ReprocessableImage mono = mMonoFrames.peek();
-
-                long bayerTsSOF = bayer.mCaptureResult.get(CaptureResult.SENSOR_TIMESTAMP);
-                long bayerTsEOF = bayerTsSOF + bayer.mCaptureResult.get(
-                        CaptureResult.SENSOR_EXPOSURE_TIME);
-                long monoTsSOF = mono.mCaptureResult.get(CaptureResult.SENSOR_TIMESTAMP);
-                long monoTsEOF = monoTsSOF + mono.mCaptureResult.get(
-                        CaptureResult.SENSOR_EXPOSURE_TIME);
-
-
-                Log.d(TAG,
-                        "checkForValidFramePair - bayer ts SOF: "
-                                + bayerTsSOF + ", EOF: " + bayerTsEOF
-                                + ", mono ts SOF: " + monoTsSOF + ", EOF: " + monoTsEOF);
-                Log.d(TAG,
-                        "checkForValidFramePair - difference SOF: "
-                                + Math.abs(bayerTsSOF - monoTsSOF)
-                                + ", EOF: " + Math.abs(bayerTsEOF - monoTsEOF));
-                // if timestamps are within threshold, keep frames
-                if ((Math.abs(bayerTsSOF - monoTsSOF) > mTimestampThresholdNs) &&
-                        (Math.abs(bayerTsEOF - monoTsEOF) > mTimestampThresholdNs)) {
-                    if(bayerTsSOF > monoTsSOF) {
-                        Log.d(TAG, "checkForValidFramePair - toss mono");
-                        // no match, toss
-                        mono = mMonoFrames.poll();
-                        mono.mImage.close();
-                    } else {
-                        Log.d(TAG, "checkForValidFramePair - toss bayer");
-                        // no match, toss
-                        bayer = mBayerFrames.poll();
-                        bayer.mImage.close();
-                    }
-                } else {
-                    // send for reproc
-                    sendReprocessRequest(CAM_TYPE_BAYER, mBayerFrames.poll());
-                    sendReprocessRequest(CAM_TYPE_MONO, mMonoFrames.poll());
-                    mReprocessingPairCount++;
-                }
+                            + mFrameSync.size(CAM_TYPE_BAYER) + " num mono frames: "
+                            + mFrameSync.size(CAM_TYPE_MONO));
+
+            ReprocessableImage[] pair = new ReprocessableImage[NUM_CAM];
+            while (mReprocessingPairCount != mNumFrameCount && mFrameSync.poll(pair)) {
+                Log.d(TAG, "checkForValidFramePair - bayer ts: "
+                        + pair[CAM_TYPE_BAYER].mImage.getTimestamp()
+                        + ", mono ts: " + pair[CAM_TYPE_MONO].mImage.getTimestamp());
+                sendReprocessRequest(CAM_TYPE_BAYER, pair[CAM_TYPE_BAYER]);
+                sendReprocessRequest(CAM_TYPE_MONO, pair[CAM_TYPE_MONO]);
+                mReprocessingPairCount++;
             }
         }
 
@@ -805,12 +934,6 @@ public class ClearSightImageProcessor {
         }
 
         private void releaseBayerFrames() {
-            for (ReprocessableImage reprocImg : mBayerFrames) {
-                reprocImg.mImage.close();
-            }
-
-            mBayerFrames.clear();
-
             for (Image img : mBayerImages) {
                 img.close();
             }
@@ -820,12 +943,6 @@ public class ClearSightImageProcessor {
         }
 
         private void releaseMonoFrames() {
-            for (ReprocessableImage reprocImg : mMonoFrames) {
-                reprocImg.mImage.close();
-            }
-
-            mMonoFrames.clear();
-
             for (Image img : mMonoImages) {
                 img.close();
             }
@@ -836,6 +953,8 @@ public class ClearSightImageProcessor {
 
         private void processFinalPair() {
             Log.d(TAG, "processFinalPair");
+            mFrameSync.logStats();
+            mFrameSync.clear();
             releaseBayerFrames();
             releaseMonoFrames();
 
@@ -848,7 +967,8 @@ public class ClearSightImageProcessor {
                 // No matching pairs = nothing registered, no need to reset engine
                 Log.w(TAG, "processFinalPair - no matching pairs found");
                 removeMessages(MSG_END_CAPTURE);
-                if(mCallback != null) mCallback.onClearSightFailure(null);
+                mCaptureStarted = false;
+                failCapture(mState);
             }
         }
 
@@ -915,6 +1035,8 @@ public class ClearSightImageProcessor {
                     && mReprocessingFrames[CAM_TYPE_MONO].size() == 0
                     && mReprocessingRequests.isEmpty()) {
                 mClearsightRegisterHandler.obtainMessage(MSG_END_CAPTURE, mHasFailures?1:0, 0).sendToTarget();
+                mState.mTimeline.end(ClearSightTimeline.STAGE_PAIR);
+                mCaptureStarted = false;
                 removeMessages(MSG_NEW_REPROC_RESULT);
                 removeMessages(MSG_NEW_REPROC_FAIL);
                 mCaptureDone = false;
@@ -930,7 +1052,7 @@ public class ClearSightImageProcessor {
     };
 
     private class ClearsightRegisterHandler extends Handler {
-        private NamedEntity mNamedEntity;
+        private CaptureState mState;
 
         ClearsightRegisterHandler(Looper looper) {
             super(looper);
@@ -942,7 +1064,7 @@ public class ClearSightImageProcessor {
 
             switch (msg.what) {
             case MSG_START_CAPTURE:
-                mNamedEntity = (NamedEntity) msg.obj;
+                mState = (CaptureState) msg.obj;
                 break;
             case MSG_NEW_IMG:
                 registerImage(msg);
@@ -951,11 +1073,13 @@ public class ClearSightImageProcessor {
                 // Check if timeout
                 if(msg.arg2 == 1) {
                     Log.d(TAG, "ClearsightRegisterHandler - handleTimeout");
+                    releaseDepthInputs(mState);
                     ClearSightNativeEngine.getInstance().reset();
-                    if(mCallback != null) mCallback.onClearSightFailure(null);
+                    failCapture(mState);
                 } else {
+                    mState.mTimeline.end(ClearSightTimeline.STAGE_REGISTER);
                     mClearsightProcessHandler.obtainMessage(MSG_START_CAPTURE,
-                            msg.arg1, 0, mNamedEntity).sendToTarget();
+                            msg.arg1, 0, mState).sendToTarget();
                 }
                 break;
             }
@@ -964,6 +1088,7 @@ public class ClearSightImageProcessor {
         private void registerImage(Message msg) {
             boolean isBayer = (msg.arg1 == CAM_TYPE_BAYER);
             Image image = (Image)msg.obj;
+            mState.mTimeline.begin(ClearSightTimeline.STAGE_REGISTER);
 
             if (!ClearSightNativeEngine.getInstance()
                     .hasReferenceImage(isBayer)) {
@@ -991,28 +1116,37 @@ public class ClearSightImageProcessor {
 
             switch (msg.what) {
             case MSG_START_CAPTURE:
-                processClearSight((NamedEntity) msg.obj);
+                processClearSight((CaptureState) msg.obj);
+                break;
+            case MSG_DEPTH_RELEASED:
+                sendEncodeRequests((CaptureState) msg.obj);
                 break;
             }
         }
 
-        private void processClearSight(NamedEntity namedEntity) {
+        private void processClearSight(CaptureState state) {
 
             short encodeRequest = 0;
             /* In same case, timeout will reset ClearSightNativeEngine object, so fields
                in the object is not initial, need to return and skip process.
             */
             if (ClearSightNativeEngine.getInstance().getReferenceImage(true) == null) {
+                releaseDepthInputs(state);
+                ClearSightNativeEngine.getInstance().reset();
+                failCapture(state);
                 return;
             }
+            state.mTimeline.begin(ClearSightTimeline.STAGE_FUSE);
             long csTs = ClearSightNativeEngine.getInstance().getReferenceImage(true).getTimestamp();
             CaptureRequest.Builder csRequest = createEncodeReprocRequest(
                     ClearSightNativeEngine.getInstance().getReferenceResult(true), CAM_TYPE_BAYER);
-            csRequest.setTag(new Object());
+            csRequest.setTag(state);
 
             boolean processInit = ClearSightNativeEngine.getInstance().initProcessImage();
-            sendReferenceMonoEncodeRequest();
-            sendReferenceBayerEncodeRequest();
+            // The reference images are encoded once the depth stage is done
+            // with them, see sendEncodeRequests().
+            releaseDepthInputs(state);
+            state.mFused = true;
             encodeRequest |= ImageEncodeHandler.MASK_BAYER_ENCODE|ImageEncodeHandler.MASK_MONO_ENCODE;
             ClearSightNativeEngine.getInstance().reset();
 
@@ -1023,33 +1157,49 @@ public class ClearSightImageProcessor {
 
                 if(ClearSightNativeEngine.getInstance().processImage(csImage)) {
                     encodeRequest |= ImageEncodeHandler.MASK_CS_ENCODE;
-                    sendReprocessRequest(csRequest, encodeImage, CAM_TYPE_BAYER);
+                    state.mCsImage = encodeImage;
+                    state.mCsRequest = csRequest;
                 } else {
                     csImage = null;
                     encodeImage.close();
                 }
             }
+            state.mTimeline.end(ClearSightTimeline.STAGE_FUSE);
 
+            // Registered before the first request, so the encoder can match
+            // the JPEGs to this capture.
+            state.mTimeline.begin(ClearSightTimeline.STAGE_ENCODE);
+            mImageEncodeHandler.obtainMessage(MSG_START_CAPTURE, state).sendToTarget();
             mImageEncodeHandler.obtainMessage(MSG_END_CAPTURE,
-                    encodeRequest, 0, namedEntity).sendToTarget();
-        }
-
-        private void sendReferenceMonoEncodeRequest() {
-            // First Mono
-            CaptureRequest.Builder monoRequest = createEncodeReprocRequest(
-                    ClearSightNativeEngine.getInstance().getReferenceResult(false), CAM_TYPE_MONO);
-            sendReprocessRequest(monoRequest,
-                    ClearSightNativeEngine.getInstance().getReferenceImage(false),
-                    CAM_TYPE_MONO);
+                    encodeRequest, 0, state).sendToTarget();
+            // The engine is free, the next capture can start while this one
+            // is encoded and saved.
+            onCaptureFused(state);
+        }
+
+        // The depth stage released the references of the capture. Captures
+        // arrive here in fusion order, so every session still gets its
+        // requests in capture order, the bayer reference before the fused
+        // image.
+        private void sendEncodeRequests(CaptureState state) {
+            if (!state.mFused) {
+                state.closeReferenceImages();
+                return;
+            }
+            sendReferenceEncodeRequest(state, CAM_TYPE_MONO);
+            sendReferenceEncodeRequest(state, CAM_TYPE_BAYER);
+            if (state.mCsImage != null) {
+                sendReprocessRequest(state.mCsRequest, state.mCsImage, CAM_TYPE_BAYER);
+                state.mCsImage = null;
+                state.mCsRequest = null;
+            }
         }
 
-        private void sendReferenceBayerEncodeRequest() {
-            // bayer
-            CaptureRequest.Builder bayerRequest = createEncodeReprocRequest(
-                    ClearSightNativeEngine.getInstance().getReferenceResult(true), CAM_TYPE_BAYER);
-            sendReprocessRequest(bayerRequest,
-                    ClearSightNativeEngine.getInstance().getReferenceImage(true),
-                    CAM_TYPE_BAYER);
+        private void sendReferenceEncodeRequest(CaptureState state, int camType) {
+            CaptureRequest.Builder request = createEncodeReprocRequest(
+                    state.mRefResults[camType], camType);
+            sendReprocessRequest(request, state.mRefImages[camType], camType);
+            state.mRefImages[camType] = null;
         }
 
         private CaptureRequest.Builder createEncodeReprocRequest(TotalCaptureResult captureResult, int camType) {
@@ -1138,20 +1288,10 @@ public class ClearSightImageProcessor {
         static final short MASK_BAYER_ENCODE = 0x02;
         static final short MASK_MONO_ENCODE = 0x04;
 
-        private short mEncodeRequest;
-        private short mEncodeResults;
-        private boolean mHasFailure;
-        private Image mMonoImage;
-        private Image mBayerImage;
-        private Image mClearSightImage;
-        private NamedEntity mNamedEntity;
-
-        private GDepth.DepthMap mDepthMap;
-        private GImage mGImage;
-        private boolean mDepthMapReady;
-        private boolean mClearSightReady;
-
-        private long CLEAR_SIGHT_IMAGE_SAVE_DELAY = 1*500;
+        // Captures in the order the fusion stage sent their encode requests.
+        // Every session returns its JPEGs in request order, so each one
+        // belongs to the oldest capture that still waits for it.
+        private final ArrayDeque<CaptureState> mEncoding = new ArrayDeque<CaptureState>();
 
         public ImageEncodeHandler(Looper looper) {
             super(looper);
@@ -1164,155 +1304,198 @@ public class ClearSightImageProcessor {
             switch (msg.what) {
             case MSG_START_CAPTURE:
                 Log.d(TAG, "ImageEncodeEvent - START_CAPTURE");
-                resetParams();
+                mEncoding.add((CaptureState) msg.obj);
                 break;
             case MSG_END_CAPTURE:
                 Log.d(TAG, "ImageEncodeEvent - END_CAPTURE");
-                mNamedEntity = (NamedEntity) msg.obj;
-                mEncodeRequest = (short)msg.arg1;
-                mClearSightReady = true;
-                saveClearSightImage();
+                CaptureState state = (CaptureState) msg.obj;
+                state.mEncodeRequest = (short)msg.arg1;
+                state.mClearSightReady = true;
+                saveClearSightImage(state);
                 break;
             case MSG_NEW_IMG:
             case MSG_NEW_CAPTURE_RESULT:
             case MSG_NEW_CAPTURE_FAIL:
-                processNewEvent(msg);
-                saveClearSightImage();
+                saveClearSightImage(processNewEvent(msg));
                 break;
             case MSG_NEW_DEPTH:
-                 processNewGDepth(msg);
-                 saveClearSightImage();
+                 saveClearSightImage(processNewGDepth(msg));
                  break;
             }
         }
 
-        private void processNewEvent(Message msg) {
+        private CaptureState processNewEvent(Message msg) {
             if(msg.what == MSG_NEW_IMG) {
                 Log.d(TAG, "processNewEncodeEvent - newImg: " + msg.arg1);
+                Image image = (Image)msg.obj;
+                // Copy the JPEG out, so the reader can take the next capture.
+                byte[] bytes = getJpegData(image);
+                int width = image.getWidth();
+                int height = image.getHeight();
+                image.close();
+
                 if(msg.arg1 == CAM_TYPE_MONO) {
-                    mMonoImage = (Image)msg.obj;
-                    mEncodeResults |= MASK_MONO_ENCODE;
+                    CaptureState state = findMissing(MASK_MONO_ENCODE);
+                    if(state == null) return null;
+                    state.mEncodeResults |= MASK_MONO_ENCODE;
                     if ( mDumpDepth ) {
-                        saveToFile(getJpegData(mMonoImage), "mono", "jpg");
+                        saveToFile(bytes, "mono", "jpg");
+                    }
+                    return state;
+                }
+                // The bayer session encodes the reference first, then the
+                // fused image.
+                CaptureState state = findWaitingBayer();
+                if(state == null) {
+                    return null;
+                } else if((state.mEncodeResults & MASK_BAYER_ENCODE) == 0) {
+                    state.mBayerBytes = bytes;
+                    state.mEncodeResults |= MASK_BAYER_ENCODE;
+                    state.mGImage = new GImage(bytes, "image/jpeg");
+                    if(state.mWidth == 0) {
+                        state.mWidth = width;
+                        state.mHeight = height;
                     }
-                } else if(mBayerImage == null){
-                    mBayerImage = (Image)msg.obj;
-                    mEncodeResults |= MASK_BAYER_ENCODE;
-                    mGImage = new GImage(getJpegData(mBayerImage), "image/jpeg");
                     if ( mDumpDepth ) {
-                        saveToFile(getJpegData(mBayerImage), "bayer", "jpg");
+                        saveToFile(bytes, "bayer", "jpg");
                     }
-                } else {
-                    mClearSightImage = (Image)msg.obj;
-                    mEncodeResults |= MASK_CS_ENCODE;
-
+                    return state;
                 }
+                state.mClearSightBytes = bytes;
+                state.mWidth = width;
+                state.mHeight = height;
+                state.mEncodeResults |= MASK_CS_ENCODE;
+                return state;
             } else if (msg.what == MSG_NEW_CAPTURE_RESULT) {
                 Log.d(TAG, "processNewEncodeEvent - newResult: " + msg.arg1);
+                return null;
             } else {
                 Log.d(TAG, "processNewEncodeEvent - newFailure: " + msg.arg1);
-                mHasFailure = true;
+                CaptureState state;
+                short mask;
                 if(msg.arg1 == CAM_TYPE_MONO) {
-                    mEncodeResults |= MASK_MONO_ENCODE;
+                    mask = MASK_MONO_ENCODE;
+                    state = findMissing(mask);
                 } else {
                     CaptureFailure failure = (CaptureFailure)msg.obj;
-                    if(failure.getRequest().getTag() != null)
-                        mEncodeResults |= MASK_CS_ENCODE;
-                    else
-                        mEncodeResults |= MASK_BAYER_ENCODE;
+                    Object tag = failure.getRequest().getTag();
+                    if(tag instanceof CaptureState) {
+                        mask = MASK_CS_ENCODE;
+                        state = (CaptureState) tag;
+                    } else {
+                        mask = MASK_BAYER_ENCODE;
+                        state = findMissing(mask);
+                    }
+                }
+                if(state == null) return null;
+                state.mHasFailure = true;
+                state.mEncodeResults |= mask;
+                return state;
+            }
+        }
+
+        // Returns the oldest capture that has no result for the given JPEG.
+        private CaptureState findMissing(short mask) {
+            for (CaptureState state : mEncoding) {
+                if ((state.mEncodeResults & mask) == 0) return state;
+            }
+            Log.w(TAG, "findMissing - no capture waits for " + mask);
+            return null;
+        }
+
+        // Returns the oldest capture that still waits for a bayer JPEG.
+        private CaptureState findWaitingBayer() {
+            for (CaptureState state : mEncoding) {
+                if ((state.mEncodeResults & MASK_BAYER_ENCODE) == 0) return state;
+                // Until END_CAPTURE it is not known whether the capture gets
+                // a fused JPEG, but no later capture has sent requests yet.
+                if ((state.mEncodeResults & MASK_CS_ENCODE) == 0
+                        && (!state.mClearSightReady
+                                || (state.mEncodeRequest & MASK_CS_ENCODE) != 0)) {
+                    return state;
                 }
             }
+            Log.w(TAG, "findWaitingBayer - no capture waits for a bayer JPEG");
+            return null;
         }
 
-        private void processNewGDepth(Message msg) {
-            mDepthMap = (GDepth.DepthMap)msg.obj;
-            mDepthMapReady = true;
+        private CaptureState processNewGDepth(Message msg) {
+            CaptureState state = (CaptureState)msg.obj;
+            state.mDepthMapReady = true;
+            return state;
         }
 
-        private void saveClearSightImage() {
-            if ( !isReadyToSave() || mEncodeRequest != mEncodeResults) {
-                Log.d(TAG, "saveClearSightImage - not yet ready to save");
+        private void saveClearSightImage(CaptureState state) {
+            if (state == null) return;
+            if ( !isReadyToSave(state) || state.mEncodeRequest != state.mEncodeResults) {
+                Log.d(TAG, "saveClearSightImage - capture " + state.getId()
+                        + " not yet ready to save");
                 return;
             }
+            mEncoding.remove(state);
+            state.mTimeline.end(ClearSightTimeline.STAGE_ENCODE);
 
-            if(mHasFailure) {
+            if(state.mHasFailure) {
                 // don't save anything and fail
                 Log.d(TAG, "saveClearSightImage has failure - aborting.");
+                state.mTimeline.finish(false);
                 if(mCallback != null) mCallback.onClearSightFailure(null);
-                resetParams();
+                onCaptureDone(state);
                 return;
             }
 
-            Log.d(TAG, "saveClearSightImage");
-            byte[] clearSightBytes = getJpegData(mClearSightImage);
-
-            String title = (mNamedEntity == null) ? null : mNamedEntity.title;
-            long date = (mNamedEntity == null) ? -1 : mNamedEntity.date;
+            Log.d(TAG, "saveClearSightImage - capture " + state.getId());
+            byte[] clearSightBytes = state.mClearSightBytes;
+            byte[] bayerBytes = state.mBayerBytes;
 
-            int width = 0;
-            int height = 0;
-            if ( mBayerImage != null ) {
-                mBayerImage.getWidth();
-                mBayerImage.getHeight();
-            }
-            if ( mClearSightImage != null ) {
-                width = mClearSightImage.getWidth();
-                height = mClearSightImage.getHeight();
-            }
+            String title = (state.mNamedEntity == null) ? null : state.mNamedEntity.title;
+            long date = (state.mNamedEntity == null) ? -1 : state.mNamedEntity.date;
 
-            byte[] bayerBytes = getJpegData(mBayerImage);
             if ( bayerBytes != null ) {
                 ExifInterface exif = Exif.getExif(bayerBytes);
                 int orientation = Exif.getOrientation(exif);
 
                 if(clearSightBytes != null) {
                     if(mCallback != null) mCallback.onClearSightSuccess(clearSightBytes);
-                } else if (bayerBytes != null) {
-                    if(mCallback != null) mCallback.onClearSightFailure(bayerBytes);
                 } else {
-                    if(mCallback != null) mCallback.onClearSightFailure(null);
+                    if(mCallback != null) mCallback.onClearSightFailure(bayerBytes);
                 }
 
+                // The GDepth and XMP embedding runs on the save service,
+                // the next capture may already generate its depth map.
+                final CaptureState saving = state;
+                final OnMediaSavedListener listener = mMediaSavedListener;
+                state.mTimeline.begin(ClearSightTimeline.STAGE_SAVE);
                 mMediaSaveService.addClearsightImage(
                         clearSightBytes != null ? clearSightBytes : bayerBytes,
-                        mGImage, mDepthMap,title, date, null,
-                        width, height, orientation, exif,
-                        mMediaSavedListener,
+                        state.mGImage, state.mDepthMap, title, date, null,
+                        state.mWidth, state.mHeight, orientation, exif,
+                        new OnMediaSavedListener() {
+                            @Override
+                            public void onMediaSaved(Uri uri) {
+                                saving.mTimeline.finish(uri != null);
+                                onCaptureDone(saving);
+                                if (listener != null) listener.onMediaSaved(uri);
+                            }
+                        },
                         mMediaSaveService.getContentResolver(), "jpeg");
+            } else {
+                state.mTimeline.finish(false);
+                if(mCallback != null) mCallback.onClearSightFailure(null);
+                onCaptureDone(state);
             }
-            resetParams();
         }
 
-        private boolean isReadyToSave() {
-            return (mDepthMapReady &&mClearSightReady);
-        }
-
-        void resetParams() {
-            if(mBayerImage != null) {
-                mBayerImage.close();
-                mBayerImage = null;
-            }
-            if(mMonoImage != null) {
-                mMonoImage.close();
-                mMonoImage = null;
-            }
-            if(mClearSightImage != null) {
-                mClearSightImage.close();
-                mClearSightImage = null;
-            }
-            mNamedEntity = null;
-            mHasFailure = false;
-            mEncodeRequest = 0;
-            mEncodeResults = 0;
-            mGImage = null;
-            mDepthMapReady = false;
-            mClearSightReady = false;
+        private boolean isReadyToSave(CaptureState state) {
+            return (state.mDepthMapReady && state.mClearSightReady);
         }
     }
 
     private class DepthProcessHandler extends Handler{
         private TotalCaptureResult mReprocessCaptureResult;
         private DDMNativeEngine mDDMNativeEngine;
+        private CaptureState mState;
+        private boolean mDepthPosted;
         public DepthProcessHandler(Looper looper) {
             super(looper);
             mDDMNativeEngine = new DDMNativeEngine();
@@ -1330,9 +1513,15 @@ public class ClearSightImageProcessor {
                     break;
 
                 case MSG_START_CAPTURE:
+                    mState = (CaptureState) msg.obj;
+                    mDepthPosted = false;
                     resetParams();
                     break;
 
+                case MSG_END_CAPTURE:
+                    releaseInputs((CaptureState) msg.obj);
+                    break;
+
                 case MSG_NEW_IMG:
                     registerImage(msg);
                     break;
@@ -1355,6 +1544,26 @@ public class ClearSightImageProcessor {
             mDDMNativeEngine.setBayerLensFocusDistance((float)msg.obj);
         }
 
+        // The reference images are about to be handed to the encoder or
+        // closed, so they must not be read after this.
+        private void releaseInputs(CaptureState state) {
+            if (state == mState && !mDepthPosted) {
+                Log.w(TAG, "releaseInputs - no depth map for capture " + state.getId());
+                postDepthMap(null);
+            }
+            resetParams();
+            ClearsightProcessHandler handler = mClearsightProcessHandler;
+            if (handler != null) {
+                handler.obtainMessage(MSG_DEPTH_RELEASED, state).sendToTarget();
+            }
+        }
+
+        private void postDepthMap(GDepth.DepthMap depthMap) {
+            mDepthPosted = true;
+            mState.mDepthMap = depthMap;
+            mImageEncodeHandler.obtainMessage(MSG_NEW_DEPTH, 0, 0, mState).sendToTarget();
+        }
+
         private void registerImage(Message msg) {
             boolean isBayer = (msg.arg1 == CAM_TYPE_BAYER);
             Image image = (Image) msg.obj;
@@ -1364,7 +1573,7 @@ public class ClearSightImageProcessor {
                 mDDMNativeEngine.setMonoImage(image);
             }
 
-            if ( mDDMNativeEngine.isReadyForGenerateDepth() ) {
+            if ( !mDepthPosted && mDDMNativeEngine.isReadyForGenerateDepth() ) {
                 generateDepthmap();
             }
         }
@@ -1380,14 +1589,14 @@ public class ClearSightImageProcessor {
                 mDDMNativeEngine.setMonoReprocessResult(result);
             }
 
-            if ( mDDMNativeEngine.isReadyForGenerateDepth() ) {
+            if ( !mDepthPosted && mDDMNativeEngine.isReadyForGenerateDepth() ) {
                 generateDepthmap();
             }
 
         }
 
         private void generateDepthmap() {
-            mImageEncodeHandler.obtainMessage(MSG_START_CAPTURE).sendToTarget();
+            mState.mTimeline.begin(ClearSightTimeline.STAGE_DEPTH);
             GDepth.DepthMap depthMap = null;
             int[] size = new int[2];
             if ( mDDMNativeEngine.getDepthMapSize(size) ) {
@@ -1408,6 +1617,7 @@ public class ClearSightImageProcessor {
                     depthMap = new GDepth.DepthMap(width, height);
                     depthMap.roi = roiRect;
                     depthMap.rawDepth = depthBuffer;
+                    depthMap.stride = stride;
                 }else{
                     Log.e(TAG, "dualCameraGenerateDDM failure");
                 }
@@ -1417,7 +1627,8 @@ public class ClearSightImageProcessor {
             if ( mDumpDepth ) {
                 dumpCameraParam();
             }
-            mImageEncodeHandler.obtainMessage(MSG_NEW_DEPTH, 0, 0, depthMap).sendToTarget();
+            mState.mTimeline.end(ClearSightTimeline.STAGE_DEPTH);
+            postDepthMap(depthMap);
         }
 
         private void dumpCameraParam() {
@@ -218,6 +218,22 @@ public class ClearSightNativeEngine {
         return color ? mRefColorImage : mRefMonoImage;
     }
 
+    /**
+     * Hands the reference image over to the caller, who has to close it.
+     * {@link #reset} no longer closes it afterwards.
+     */
+    public Image detachReferenceImage(boolean color) {
+        Image image;
+        if (color) {
+            image = mRefColorImage;
+            mRefColorImage = null;
+        } else {
+            image = mRefMonoImage;
+            mRefMonoImage = null;
+        }
+        return image;
+    }
+
     public TotalCaptureResult getReferenceResult(boolean color) {
         return color ? mRefColorResult : mRefMonoResult;
     }
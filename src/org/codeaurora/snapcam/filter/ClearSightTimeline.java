@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codeaurora.snapcam.filter;
+
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+import com.android.camera.util.ApiHelper;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records when each stage of one ClearSight capture runs. On Q and later
+ * every stage is exported as an async trace section named after the stage,
+ * with the capture id as cookie, so overlapping captures show up as separate
+ * tracks in systrace. A summary with the offset and duration of every stage
+ * is logged when the capture finishes.
+ */
+class ClearSightTimeline {
+    private static final String TAG = "ClearSightTimeline";
+
+    static final int STAGE_PAIR = 0;
+    static final int STAGE_REGISTER = 1;
+    static final int STAGE_FUSE = 2;
+    static final int STAGE_DEPTH = 3;
+    static final int STAGE_ENCODE = 4;
+    static final int STAGE_SAVE = 5;
+    private static final int STAGE_COUNT = 6;
+    private static final String[] STAGE_NAMES = {
+        "cs_pair", "cs_register", "cs_fuse", "cs_depth", "cs_encode", "cs_save"
+    };
+
+    private static final AtomicInteger sNextId = new AtomicInteger();
+
+    private final int mId;
+    private final long mStartNs;
+
+    // Guarded by this.
+    private final long[] mBeginNs = new long[STAGE_COUNT];
+    private final long[] mEndNs = new long[STAGE_COUNT];
+    private boolean mFinished;
+
+    ClearSightTimeline() {
+        mId = sNextId.incrementAndGet();
+        mStartNs = SystemClock.elapsedRealtimeNanos();
+        Arrays.fill(mBeginNs, -1);
+        Arrays.fill(mEndNs, -1);
+    }
+
+    int getId() {
+        return mId;
+    }
+
+    /**
+     * Marks the start of a stage. Only the first call for a stage counts, so
+     * stages that are entered once per frame can call this every time.
+     */
+    synchronized void begin(int stage) {
+        if (mFinished || mBeginNs[stage] >= 0) return;
+        mBeginNs[stage] = SystemClock.elapsedRealtimeNanos();
+        if (ApiHelper.HAS_ASYNC_TRACE) {
+            Trace.beginAsyncSection(STAGE_NAMES[stage], mId);
+        }
+    }
+
+    synchronized void end(int stage) {
+        if (mBeginNs[stage] < 0 || mEndNs[stage] >= 0) return;
+        mEndNs[stage] = SystemClock.elapsedRealtimeNanos();
+        if (ApiHelper.HAS_ASYNC_TRACE) {
+            Trace.endAsyncSection(STAGE_NAMES[stage], mId);
+        }
+    }
+
+    /**
+     * Closes the stages that are still open and logs the timeline.
+     */
+    synchronized void finish(boolean success) {
+        if (mFinished) return;
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            end(i);
+        }
+        mFinished = true;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("capture ").append(mId).append(success ? " done" : " failed")
+                .append(" total=").append(toMs(SystemClock.elapsedRealtimeNanos() - mStartNs))
+                .append("ms");
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            if (mBeginNs[i] < 0) continue;
+            sb.append(' ').append(STAGE_NAMES[i])
+                    .append("=+").append(toMs(mBeginNs[i] - mStartNs))
+                    .append('/').append(toMs(mEndNs[i] - mBeginNs[i])).append("ms");
+        }
+        Log.d(TAG, sb.toString());
+    }
+
+    private static long toMs(long ns) {
+        return ns / 1000000;
+    }
+}
@@ -28,9 +28,9 @@
  */
 package org.codeaurora.snapcam.filter;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.graphics.ImageFormat;
 import android.graphics.Rect;
+import android.graphics.YuvImage;
 import android.hardware.Camera.Size;
 import android.util.Base64;
 import android.util.Log;
@@ -39,6 +39,7 @@ import android.util.Log;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import java.io.OutputStream;
 import java.io.File;
@@ -69,11 +70,17 @@ public class GDepth{
     private final static String MIME = "image/jpeg";
 
     private DepthMap mDepthMap;
+    private byte[] mJpegBytes;
     private String mData;
     private int mNear;
     private int mFar;
     private final String mFormat = "RangeLinear";
-    private int[] mMap;
+    private final static int JPEG_QUALITY = 100;
+    private final static byte NEUTRAL_CHROMA = (byte) 128;
+
+    // Grayscale buffer kept between encodings, depth maps of one camera
+    // always have the same size.
+    private static byte[] sScratch;
 
     static {
         try {
@@ -86,19 +93,6 @@ public class GDepth{
 
     private GDepth(DepthMap depthMap){
         mDepthMap = depthMap;
-        mMap = new int[depthMap.buffer.length];
-
-        for( int i=0; i < mMap.length; ++i ) {
-            mMap[i] = (256+depthMap.buffer[i])%256;
-        }
-        mNear = mFar = mMap[0];
-        for(int d : mMap ) {
-            if ( d < mNear) {
-                mNear = d;
-            }else if ( d > mFar) {
-                mFar = d;
-            }
-        }
     }
 
     public int getNear() {
@@ -117,7 +111,15 @@ public class GDepth{
         return MIME;
     }
 
+    public byte[] getJpegBytes(){
+        return mJpegBytes;
+    }
+
+    // Encoded on first use; writers can stream getJpegBytes() instead.
     public String getData(){
+        if (mData == null && mJpegBytes != null) {
+            mData = serializeAsBase64Str(mJpegBytes);
+        }
         return mData;
     }
 
@@ -134,60 +136,92 @@ public class GDepth{
 
     private  boolean encoding(){
         Log.d(TAG, "encoding");
-        boolean result = false;
-        int[]  grayscaleImage = convertIntoImage(mMap);
-        byte[] jpegBytes = compressToJPEG(grayscaleImage );
-        if (jpegBytes != null ) {
-            String base64String = serializeAsBase64Str(jpegBytes);
-            result = true;
-            mData = base64String;
-        }else{
-            Log.e(TAG, "compressToJPEG failure");
+        byte[] depth = mDepthMap.rawDepth != null ? mDepthMap.rawDepth : mDepthMap.buffer;
+        int width = mDepthMap.width;
+        int height = mDepthMap.height;
+        int stride = mDepthMap.stride > 0 ? mDepthMap.stride : width;
+        if (depth == null || width <= 0 || height <= 0
+                || depth.length < stride * (height - 1) + width) {
+            Log.e(TAG, "invalid depth map");
+            return false;
         }
 
-        return result;
-    }
+        findNearFar(depth, width, height, stride);
+        byte[] lut = buildRangeLinearLut(mNear, mFar);
 
-    private  int[] convertIntoImage(int[] depthMap) {
-        int[] imageBuffer = new int[depthMap.length];
-        float dividend = mFar-mNear;
-        for ( int i =0; i < imageBuffer.length; ++i) {
-            if ( depthMap[i] == 0 && mNear == 0 ) {
-                imageBuffer[i] = 0;
-            }else{
-                imageBuffer[i] = getRangeLinearDepth(depthMap[i], mNear, dividend);
+        // The depth is quantized straight into the Y plane of an NV21 image
+        // with neutral chroma, which YuvImage encodes as a grayscale JPEG.
+        int chromaSize = width * ((height + 1) / 2);
+        byte[] yuv = obtainScratch(width * height + chromaSize);
+        try {
+            for (int y = 0; y < height; ++y) {
+                int src = y * stride;
+                int dst = y * width;
+                for (int x = 0; x < width; ++x) {
+                    yuv[dst + x] = lut[depth[src + x] & 0xFF];
+                }
             }
+            Arrays.fill(yuv, width * height, width * height + chromaSize, NEUTRAL_CHROMA);
+
+            YuvImage image = new YuvImage(yuv, ImageFormat.NV21, width, height,
+                    new int[] {width, width});
+            ByteArrayOutputStream out = new ByteArrayOutputStream(width * height / 2);
+            if (!image.compressToJpeg(new Rect(0, 0, width & ~1, height & ~1),
+                    JPEG_QUALITY, out)) {
+                Log.e(TAG, "compressToJPEG failure");
+                return false;
+            }
+            mJpegBytes = out.toByteArray();
+            return true;
+        } finally {
+            releaseScratch(yuv);
         }
-        return imageBuffer;
     }
 
-    private   int getRangeLinearDepth(int depth, int near, float dividend) {
-        return (int)(255*(depth-near)/dividend);
+    private void findNearFar(byte[] depth, int width, int height, int stride) {
+        int near = 255;
+        int far = 0;
+        for (int y = 0; y < height; ++y) {
+            for (int i = y * stride, end = i + width; i < end; ++i) {
+                int d = depth[i] & 0xFF;
+                if (d < near) {
+                    near = d;
+                }
+                if (d > far) {
+                    far = d;
+                }
+            }
+        }
+        mNear = near;
+        mFar = far;
     }
 
-    private   int getRangeLinearDepth(int depth, int near, int far) {
-        return (int)(255*(depth-near)/(float)(far-near));
+    /*
+     * Maps every 8 bit depth between near and far to its RangeLinear value,
+     * so that quantizing a pixel is a single table lookup.
+     */
+    private static byte[] buildRangeLinearLut(int near, int far) {
+        byte[] lut = new byte[256];
+        float dividend = far - near;
+        for (int d = near; d <= far && dividend > 0; ++d) {
+            lut[d] = (byte) (int) (255 * (d - near) / dividend);
+        }
+        return lut;
     }
 
-    private  byte[] compressToJPEG(int[] image) {
-        Log.d(TAG, "compressToJPEG int[].size=" + image.length);
-        byte[] bitsBuffer = new byte[image.length];
-        for(int i=0; i < image.length; ++i){
-            bitsBuffer[i] = (byte)image[i];
+    private static synchronized byte[] obtainScratch(int size) {
+        byte[] buffer = sScratch;
+        sScratch = null;
+        if (buffer == null || buffer.length < size) {
+            buffer = new byte[size];
         }
-        return compressToJPEG(bitsBuffer);
+        return buffer;
     }
 
-    private  byte[] compressToJPEG(byte[] image) {
-        Log.d(TAG, "compressToJPEG byte[].size=" + image.length);
-        Bitmap bmp = BitmapFactory.decodeByteArray (image, 0, image.length);
-        if ( bmp == null ) {
-            Log.d(TAG, " buffer can't be decoded ");
-            return null;
+    private static synchronized void releaseScratch(byte[] buffer) {
+        if (sScratch == null || sScratch.length < buffer.length) {
+            sScratch = buffer;
         }
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        bmp.compress(Bitmap.CompressFormat.JPEG, 100, outputStream);
-        return outputStream.toByteArray();
     }
 
     private  String serializeAsBase64Str(byte[] image) {
@@ -241,11 +275,14 @@ public class GDepth{
         public byte[] buffer;
         public int width;
         public int height;
+        // Row stride of rawDepth, in bytes.
+        public int stride;
         public Rect roi;
         public byte[] rawDepth;
         public DepthMap(int width, int height){
             this.width = width;
             this.height = height;
+            this.stride = width;
         }
     }
 